@@ -0,0 +1,233 @@
+package io.github.nelsoncrosby.mcci.loadtest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Generates synthetic content that looks enough like the real thing to be
+ *  detected and installed: mods with {@code mcmod.info}, resource packs with
+ *  {@code pack.mcmeta}, worlds with an NBT {@code level.dat} and region files,
+ *  and collections nested to any depth
+ * <p/>
+ * Entry data is chosen to compress about as well as the real thing (class
+ *  files and textures somewhat, region files barely), and everything comes
+ *  from one seed, so the same seed always generates the same corpus.
+ */
+public class CorpusGenerator {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    /** The size of one region file sector */
+    private static final int SECTOR = 4096;
+
+    private final Random random;
+    private int counter = 0;
+
+    /**
+     * @param seed The seed everything is generated from
+     */
+    public CorpusGenerator(long seed) {
+        this.random = new Random(seed);
+    }
+
+    /**
+     * Generate a Forge mod
+     *
+     * @param dest The jar to write
+     * @param modid The mod's ID
+     * @param classes How many class-like entries to put in it
+     * @param requiredMods The IDs of mods it depends on
+     * @return {@code dest}
+     * @throws IOException The jar couldn't be written
+     */
+    public File mod(File dest, String modid, int classes, List<String> requiredMods) throws IOException {
+        StringBuilder info = new StringBuilder("[{\"modid\":\"").append(modid)
+                .append("\",\"name\":\"").append(modid).append("\",\"version\":\"1.0\",\"requiredMods\":[");
+        for (int i = 0; i < requiredMods.size(); i++) {
+            if (i > 0) info.append(',');
+            info.append('"').append(requiredMods.get(i)).append('"');
+        }
+        info.append("]}]");
+
+        try (ZipOutputStream zout = new ZipOutputStream(new FileOutputStream(dest))) {
+            put(zout, "mcmod.info", info.toString().getBytes(UTF8));
+            for (int i = 0; i < classes; i++) {
+                put(zout, "com/example/" + modid + "/C" + i + ".class", compressible(2048 + random.nextInt(8192)));
+            }
+        }
+        return dest;
+    }
+
+    /**
+     * Generate a resource pack
+     *
+     * @param dest The zip to write
+     * @param assets How many texture-like entries to put in it
+     * @return {@code dest}
+     * @throws IOException The zip couldn't be written
+     */
+    public File resourcePack(File dest, int assets) throws IOException {
+        try (ZipOutputStream zout = new ZipOutputStream(new FileOutputStream(dest))) {
+            put(zout, "pack.mcmeta",
+                    "{\"pack\":{\"pack_format\":1,\"description\":\"Synthetic\"}}".getBytes(UTF8));
+            for (int i = 0; i < assets; i++) {
+                put(zout, "assets/minecraft/textures/blocks/t" + i + ".png", compressible(512 + random.nextInt(4096)));
+            }
+        }
+        return dest;
+    }
+
+    /**
+     * Generate a world
+     *
+     * @param dest The zip to write
+     * @param levelName The name in {@code level.dat}
+     * @param regions How many region files to put in it
+     * @param regionSize The size of each region file (rounded up to whole
+     *      sectors)
+     * @return {@code dest}
+     * @throws IOException The zip couldn't be written
+     */
+    public File world(File dest, String levelName, int regions, int regionSize) throws IOException {
+        int side = (int) Math.ceil(Math.sqrt(regions));
+        try (ZipOutputStream zout = new ZipOutputStream(new FileOutputStream(dest))) {
+            put(zout, "level.dat", levelDat(levelName));
+            for (int i = 0; i < regions; i++) {
+                put(zout, "region/r." + (i % side) + "." + (i / side) + ".mca", region(regionSize));
+            }
+        }
+        return dest;
+    }
+
+    /**
+     * Generate a collection of mods, with another collection nested inside it
+     *  (and so on, {@code depth} times)
+     *
+     * @param dest The zip to write
+     * @param depth How many collections deep to go (1 is just this one)
+     * @param modsPerLevel How many mods to put at each level
+     * @param classesPerMod How many class-like entries to put in each mod
+     * @return {@code dest}
+     * @throws IOException The zip couldn't be written
+     */
+    public File collection(File dest, int depth, int modsPerLevel, int classesPerMod) throws IOException {
+        File scratch = new File(dest.getParentFile(), "." + dest.getName() + ".parts");
+        scratch.mkdirs();
+        try (ZipOutputStream zout = new ZipOutputStream(new FileOutputStream(dest))) {
+            for (int i = 0; i < modsPerLevel; i++) {
+                String modid = "synthetic" + (counter++);
+                File mod = mod(new File(scratch, modid + ".jar"), modid, classesPerMod,
+                        Collections.<String>emptyList());
+                putFile(zout, "mods/" + mod.getName(), mod);
+                mod.delete();
+            }
+            if (depth > 1) {
+                File nested = collection(new File(scratch, "nested" + (counter++) + ".zip"),
+                        depth - 1, modsPerLevel, classesPerMod);
+                putFile(zout, nested.getName(), nested);
+                nested.delete();
+            }
+        }
+        scratch.delete();
+        return dest;
+    }
+
+    /**
+     * @return A gzipped NBT {@code level.dat} with the usual fields
+     */
+    private byte[] levelDat(String levelName) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream nbt = new DataOutputStream(new GZIPOutputStream(bytes))) {
+            nbt.writeByte(10);
+            nbt.writeUTF("");
+            nbt.writeByte(10);
+            nbt.writeUTF("Data");
+            nbt.writeByte(8);
+            nbt.writeUTF("LevelName");
+            nbt.writeUTF(levelName);
+            nbt.writeByte(4);
+            nbt.writeUTF("RandomSeed");
+            nbt.writeLong(random.nextLong());
+            nbt.writeByte(4);
+            nbt.writeUTF("LastPlayed");
+            nbt.writeLong(1400000000000L + random.nextInt(1000000000));
+            nbt.writeByte(3);
+            nbt.writeUTF("GameType");
+            nbt.writeInt(random.nextInt(3));
+            nbt.writeByte(3);
+            nbt.writeUTF("version");
+            nbt.writeInt(19133);
+            nbt.writeByte(1);
+            nbt.writeUTF("hardcore");
+            nbt.writeByte(0);
+            nbt.writeByte(0);
+            nbt.writeByte(0);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @return Region-file-like data: a header of sector offsets, chunks of
+     *      already-compressed (random) data, and zero padding
+     */
+    private byte[] region(int size) {
+        int sectors = Math.max(3, (size + SECTOR - 1) / SECTOR);
+        byte[] data = new byte[sectors * SECTOR];
+        int sector = 2;
+        for (int chunk = 0; chunk < 1024 && sector < sectors; chunk++) {
+            int length = 1 + random.nextInt(2);
+            if (sector + length > sectors) break;
+            int header = chunk * 4;
+            data[header] = (byte) (sector >> 16);
+            data[header + 1] = (byte) (sector >> 8);
+            data[header + 2] = (byte) sector;
+            data[header + 3] = (byte) length;
+            // Chunks are zlib data, so incompressible, but rarely fill their sectors
+            byte[] chunkData = new byte[SECTOR * length - random.nextInt(SECTOR)];
+            random.nextBytes(chunkData);
+            System.arraycopy(chunkData, 0, data, sector * SECTOR, chunkData.length);
+            sector += length;
+        }
+        return data;
+    }
+
+    /**
+     * @return Data that deflates to about a third of its size
+     */
+    private byte[] compressible(int size) {
+        byte[] data = new byte[size];
+        byte[] vocabulary = new byte[256];
+        random.nextBytes(vocabulary);
+        for (int i = 0; i < size; i++) {
+            data[i] = random.nextInt(3) == 0 ? (byte) random.nextInt() : vocabulary[random.nextInt(16)];
+        }
+        return data;
+    }
+
+    private static void put(ZipOutputStream zout, String name, byte[] data) throws IOException {
+        zout.putNextEntry(new ZipEntry(name));
+        zout.write(data);
+        zout.closeEntry();
+    }
+
+    private static void putFile(ZipOutputStream zout, String name, File file) throws IOException {
+        zout.putNextEntry(new ZipEntry(name));
+        byte[] buffer = new byte[64 * 1024];
+        try (FileInputStream in = new FileInputStream(file)) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                zout.write(buffer, 0, read);
+            }
+        }
+        zout.closeEntry();
+    }
+}
@@ -0,0 +1,243 @@
+package io.github.nelsoncrosby.mcci.loadtest;
+
+import io.github.nelsoncrosby.mcci.MCCI;
+import io.github.nelsoncrosby.mcci.Profile;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Drives real {@link MCCI} installs of a generated corpus into scratch
+ *  gameDirs, and reports throughput, latency percentiles and peak memory
+ * <p/>
+ * Everything happens under a scratch directory, including the launcher
+ *  profiles file, so the real {@code .minecraft} is never touched. Usage:
+ * <pre>
+ * LoadHarness [--kind=mod|pack|world|collection|mixed] [--installs=N]
+ *             [--concurrency=N] [--seed=N] [--regions=N] [--region-size=BYTES]
+ *             [--depth=N] [--work=DIR] [--out=FILE] [--keep]
+ * </pre>
+ * Each install goes into its own gameDir, so installs are independent and the
+ *  numbers measure MCCI rather than contention on one profile. Unless
+ *  {@code --keep} is given, the corpus and gameDirs are deleted afterwards;
+ *  anything else in a {@code --work} directory is left alone.
+ */
+public class LoadHarness {
+    private String kind = "mixed";
+    private int installs = 50;
+    private int concurrency = 4;
+    private long seed = 1;
+    private int regions = 1000;
+    private int regionSize = 16 * 1024;
+    private int depth = 3;
+    private File work;
+    private File out;
+    private boolean keep = false;
+
+    public static void main(String[] args) throws Exception {
+        LoadHarness harness = new LoadHarness();
+        for (String arg : args) {
+            harness.parse(arg);
+        }
+        harness.run();
+    }
+
+    private void parse(String arg) {
+        String value = arg.contains("=") ? arg.substring(arg.indexOf('=') + 1) : "";
+        if (arg.startsWith("--kind=")) kind = value;
+        else if (arg.startsWith("--installs=")) installs = Integer.parseInt(value);
+        else if (arg.startsWith("--concurrency=")) concurrency = Integer.parseInt(value);
+        else if (arg.startsWith("--seed=")) seed = Long.parseLong(value);
+        else if (arg.startsWith("--regions=")) regions = Integer.parseInt(value);
+        else if (arg.startsWith("--region-size=")) regionSize = Integer.parseInt(value);
+        else if (arg.startsWith("--depth=")) depth = Integer.parseInt(value);
+        else if (arg.startsWith("--work=")) work = new File(value);
+        else if (arg.startsWith("--out=")) out = new File(value);
+        else if (arg.equals("--keep")) keep = true;
+        else throw new IllegalArgumentException("Unknown option " + arg);
+    }
+
+    private void run() throws IOException, InterruptedException, ExecutionException {
+        boolean createdWork = false;
+        if (work == null) {
+            work = Files.createTempDirectory("mcci-load").toFile();
+            createdWork = true;
+        } else if (!work.isDirectory()) {
+            createdWork = work.mkdirs();
+        }
+        File corpusDir = new File(work, "corpus");
+        corpusDir.mkdirs();
+        File profilesFile = new File(work, "launcher_profiles.json");
+        Files.write(profilesFile.toPath(), "{\"profiles\":{}}".getBytes("UTF-8"));
+
+        long generateStart = System.nanoTime();
+        List<File> corpus = generate(corpusDir);
+        long corpusBytes = 0;
+        for (File file : corpus) {
+            corpusBytes += file.length();
+        }
+        System.out.printf("Generated %d archives (%d bytes) in %d ms%n", corpus.size(), corpusBytes,
+                (System.nanoTime() - generateStart) / 1000000);
+
+        final MCCI app = new MCCI(profilesFile);
+        ExecutorService pool = Executors.newFixedThreadPool(concurrency);
+        long installedBytes = 0;
+        long[] latencies = new long[installs];
+        long elapsed;
+        try {
+            List<Future<Long>> futures = new ArrayList<>(installs);
+            long start = System.nanoTime();
+            for (int i = 0; i < installs; i++) {
+                final File content = corpus.get(i % corpus.size());
+                installedBytes += content.length();
+                final Profile profile = new Profile("load-" + i, gameDir(i));
+                futures.add(pool.submit(new Callable<Long>() {
+                    @Override
+                    public Long call() throws Exception {
+                        long installStart = System.nanoTime();
+                        // The log is part of the work, but nobody reads it
+                        app.installContent(content, profile, new StringBuilder());
+                        return System.nanoTime() - installStart;
+                    }
+                }));
+            }
+            for (int i = 0; i < installs; i++) {
+                latencies[i] = futures.get(i).get();
+            }
+            elapsed = System.nanoTime() - start;
+        } finally {
+            // A failed install shouldn't leave the others running (or the JVM up)
+            pool.shutdownNow();
+        }
+        Arrays.sort(latencies);
+
+        double seconds = elapsed / 1e9;
+        long peakRss = peakRss();
+        String result = String.format(
+                "{\"kind\":\"%s\",\"installs\":%d,\"concurrency\":%d,\"seed\":%d,\"seconds\":%.3f,"
+                        + "\"installsPerSecond\":%.2f,\"megabytesPerSecond\":%.2f,"
+                        + "\"p50Ms\":%.2f,\"p90Ms\":%.2f,\"p99Ms\":%.2f,\"maxMs\":%.2f,\"peakRssBytes\":%d}",
+                kind, installs, concurrency, seed, seconds, installs / seconds,
+                installedBytes / 1e6 / seconds, percentile(latencies, 50), percentile(latencies, 90),
+                percentile(latencies, 99), latencies[installs - 1] / 1e6, peakRss);
+        System.out.printf("%d installs in %.2f s: %.2f installs/s, %.2f MB/s%n", installs, seconds,
+                installs / seconds, installedBytes / 1e6 / seconds);
+        System.out.printf("Latency p50 %.1f ms, p90 %.1f ms, p99 %.1f ms, max %.1f ms%n",
+                percentile(latencies, 50), percentile(latencies, 90), percentile(latencies, 99),
+                latencies[installs - 1] / 1e6);
+        System.out.println(peakRss < 0 ? "Peak RSS unavailable (not Linux)" : "Peak RSS " + peakRss + " bytes");
+        System.out.println(result);
+        if (out != null) {
+            try (PrintWriter writer = new PrintWriter(out, "UTF-8")) {
+                writer.println(result);
+            }
+        }
+
+        if (!keep) {
+            deleteTree(corpusDir.toPath());
+            for (int i = 0; i < installs; i++) {
+                if (gameDir(i).exists()) deleteTree(gameDir(i).toPath());
+            }
+            // MCCI saves the profiles file as the JVM exits, so it (and the
+            //  work directory, if it's ours) can only go after that
+            if (createdWork) work.deleteOnExit();
+            profilesFile.deleteOnExit();
+        }
+    }
+
+    /**
+     * @return The scratch gameDir of install {@code i}
+     */
+    private File gameDir(int i) {
+        return new File(work, "game-" + i);
+    }
+
+    /**
+     * Generate the corpus for {@link #kind}
+     */
+    private List<File> generate(File dir) throws IOException {
+        CorpusGenerator generator = new CorpusGenerator(seed);
+        List<File> corpus = new ArrayList<>();
+        boolean mixed = kind.equals("mixed");
+        if (mixed || kind.equals("mod")) {
+            for (int i = 0; i < 8; i++) {
+                corpus.add(generator.mod(new File(dir, "mod" + i + ".jar"), "mod" + i, 200,
+                        i == 0 ? Collections.<String>emptyList() : Collections.singletonList("mod0")));
+            }
+        }
+        if (mixed || kind.equals("pack")) {
+            for (int i = 0; i < 4; i++) {
+                corpus.add(generator.resourcePack(new File(dir, "pack" + i + ".zip"), 500));
+            }
+        }
+        if (mixed || kind.equals("world")) {
+            corpus.add(generator.world(new File(dir, "world.zip"), "Synthetic", regions, regionSize));
+        }
+        if (mixed || kind.equals("collection")) {
+            corpus.add(generator.collection(new File(dir, "collection.zip"), depth, 4, 100));
+        }
+        if (corpus.isEmpty()) throw new IllegalArgumentException("Unknown kind " + kind);
+        return corpus;
+    }
+
+    private static double percentile(long[] sorted, int percentile) {
+        int index = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))] / 1e6;
+    }
+
+    /**
+     * @return The peak resident set size of this process, from
+     *      {@code /proc/self/status}, or -1 where that isn't available
+     */
+    private static long peakRss() {
+        File status = new File("/proc/self/status");
+        if (!status.isFile()) return -1;
+        try (BufferedReader reader = new BufferedReader(new FileReader(status))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("VmHWM:")) {
+                    return Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+                }
+            }
+        } catch (IOException | NumberFormatException ignored) {
+            // Fall through
+        }
+        return -1;
+    }
+
+    /**
+     * Delete {@code root} and everything under it
+     */
+    private static void deleteTree(Path root) throws IOException {
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
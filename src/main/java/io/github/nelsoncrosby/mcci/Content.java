@@ -1,12 +1,19 @@
 package io.github.nelsoncrosby.mcci;
 
+import org.json.JSONObject;
+
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.zip.Inflater;
 
 /**
  * Represents custom content on the Filesystem.
@@ -15,6 +22,18 @@ import java.util.List;
  *  specific subdirectory. 
  */
 public abstract class Content {   
+    /**
+     * Work done for one of several target profiles
+     */
+    protected interface TargetTask {
+        /**
+         * @param target The profile to do the work for
+         * @param msgLog The logging buffer for this target (never {@code null})
+         * @throws IOException The work failed
+         */
+        void run(Profile target, Appendable msgLog) throws IOException;
+    }
+
     public static class UnsupportedContentTypeException extends Exception {
         public UnsupportedContentTypeException(File conflicted) {
             super("The file " + conflicted.getAbsolutePath() + " wasn't a recognized content type");
@@ -28,8 +47,83 @@ public abstract class Content {
         REGISTERED_CONTENT_TYPES.add(ResourcePack.class);
         REGISTERED_CONTENT_TYPES.add(CustomMap.class);
         REGISTERED_CONTENT_TYPES.add(ContentCollection.class);
+        REGISTERED_CONTENT_TYPES.add(ContentManifest.class);
     }
     
+    /**
+     * How {@link #install} places files into a profile (defaults to the
+     *  {@code mcci.linkStrategy} system property, or hard links)
+     */
+    private static volatile LinkStrategy linkStrategy = linkStrategyFromSystemProperty();
+
+    /**
+     * @return The strategy named by the {@code mcci.linkStrategy} system
+     *      property, or hard links if it's unset or not a strategy
+     */
+    private static LinkStrategy linkStrategyFromSystemProperty() {
+        String value = System.getProperty("mcci.linkStrategy");
+        if (value == null) return LinkStrategy.HARD_LINK;
+        try {
+            return LinkStrategy.valueOf(value.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.err.println("Unknown mcci.linkStrategy " + value + ", using "
+                    + LinkStrategy.HARD_LINK.name() + " (expected one of "
+                    + Arrays.toString(LinkStrategy.values()) + ")");
+            return LinkStrategy.HARD_LINK;
+        }
+    }
+
+    /**
+     * @return How {@link #install} places files into a profile
+     */
+    public static LinkStrategy getLinkStrategy() {
+        return linkStrategy;
+    }
+
+    /**
+     * @param strategy How {@link #install} should place files into a profile
+     */
+    public static void setLinkStrategy(LinkStrategy strategy) {
+        linkStrategy = strategy;
+    }
+
+    /** The limits each install is held to (see {@link InstallLimits}) */
+    private static volatile InstallLimits installLimits = InstallLimits.fromSystemProperties();
+
+    /**
+     * @return The limits each install is held to
+     */
+    public static InstallLimits getInstallLimits() {
+        return installLimits;
+    }
+
+    /**
+     * @param limits The limits each install should be held to, from the next
+     *      install on
+     */
+    public static void setInstallLimits(InstallLimits limits) {
+        installLimits = limits;
+    }
+
+    /**
+     * Load and initialise every registered content type, and the zip and JSON
+     *  machinery they use, so that the first detection doesn't pay for it
+     * <p/>
+     * Safe to call from any thread, any number of times.
+     */
+    public static void warmUp() {
+        for (Class<? extends Content> type : REGISTERED_CONTENT_TYPES) {
+            try {
+                type.newInstance();
+            } catch (InstantiationException | IllegalAccessException e) {
+                // This should never happen
+                throw new Error("Should never happen!", e);
+            }
+        }
+        new Inflater(true).end();
+        new JSONObject("{}");
+    }
+
     public static Content detectContentType(File src) throws UnsupportedContentTypeException {
         src = src.getAbsoluteFile();
         for (Class<? extends Content> type : REGISTERED_CONTENT_TYPES) {
@@ -49,8 +143,46 @@ public abstract class Content {
         throw new UnsupportedContentTypeException(src);
     }
 
+    /**
+     * Detect the content type from just the names of the entries in an archive
+     *  (for example, read from a remote central directory)
+     * <p/>
+     * This is weaker than {@link #detectContentType(File)}, as nested content
+     *  can't be inspected, so it should only be used to decide how to fetch
+     *  the content.
+     *
+     * @param src Where the content is (or will be)
+     * @param entryNames The names of every entry in the archive
+     * @return Content of the detected type with {@code src} as its source
+     * @throws UnsupportedContentTypeException No type matched the entry names
+     */
+    public static Content detectContentType(File src, Collection<String> entryNames)
+            throws UnsupportedContentTypeException {
+        src = src.getAbsoluteFile();
+        for (Class<? extends Content> type : REGISTERED_CONTENT_TYPES) {
+            Content testAgainst;
+            try {
+                testAgainst = type.newInstance();
+                testAgainst.source = src;
+            } catch (InstantiationException | IllegalAccessException e) {
+                // This should never happen
+                throw new Error("Should never happen!", e);
+            }
+
+            if (testAgainst.matchesEntryNames(entryNames)) {
+                return testAgainst;
+            }
+        }
+        throw new UnsupportedContentTypeException(src);
+    }
+
     /** A file representing where the content actually is */
     private File source;
+    /**
+     * The budget of the content this is nested in, or {@code null} for
+     *  top-level content (which starts a fresh budget for every install)
+     */
+    private InstallBudget budget;
 
     /**
      * Provide the no-args constructor privately
@@ -78,12 +210,38 @@ public abstract class Content {
         return source;
     }
 
+    /**
+     * Get the budget to charge one install (or preparation) of this content
+     *  to. Callers should get it once and pass it down, as content that isn't
+     *  nested gets a fresh budget every time this is called, so that separate
+     *  installs (e.g. into several targets at once) are limited separately.
+     *
+     * @return The budget set by {@link #setBudget}, or else a fresh one
+     */
+    synchronized InstallBudget getBudget() {
+        return budget != null ? budget : new InstallBudget(installLimits);
+    }
+
+    /**
+     * Charge installing this content to {@code budget}, as content nested in
+     *  other content should be
+     *
+     * @param budget The budget (usually from {@link InstallBudget#nested()})
+     */
+    synchronized void setBudget(InstallBudget budget) {
+        this.budget = budget;
+    }
+
     /**
      * Install this content into a profile.
      * 
-     * A default for this method is provided - hard-link (where supported by
-     *  the filesystem; basic copy otherwise) the source file to the destination
-     *  profile and the subdir provided by getDestSubdir.
+     * A default for this method is provided - place the source file into the
+     *  destination profile and the subdir provided by getDestSubdir, using the
+     *  configured {@link LinkStrategy} (hard-link by default; copy when the
+     *  source is on a different filesystem or links aren't supported).
+     * 
+     * An unpacked (directory) source is placed as a tree instead (see
+     *  {@link #installDirectory}).
      * 
      * If {@code msgLog} is not null, it is used as a logging buffer.
      *  
@@ -92,24 +250,193 @@ public abstract class Content {
      * @throws IOException Something went wrong either in creating the link or
      *      in copying the file. 
      */
-    public void install(Profile target, Appendable msgLog) throws IOException {
+    public void install(Profile target, final Appendable msgLog) throws IOException {
+        if (source.isDirectory()) {
+            installDirectory(target, msgLog);
+            return;
+        }
         File destDir = new File(target.getGameDir(), getDestSubdir()).getAbsoluteFile();
-        File dest = new File(destDir, source.getName()).getAbsoluteFile();
+        final File dest = new File(destDir, source.getName()).getAbsoluteFile();
+        Path sourcePath = source.toPath();
+        Path destPath = dest.toPath();
+        dest.getParentFile().mkdirs();
+        LinkStrategy strategy = linkStrategy.resolve(sourcePath, destDir.toPath());
         if (msgLog != null) {
-            msgLog.append("Linking ")
+            msgLog.append(strategy == LinkStrategy.COPY ? "Copying " : "Linking ")
                     .append(source.getAbsolutePath())
                     .append(" to ")
                     .append(dest.getAbsolutePath())
                     .append('\n');
         }
-        Path sourcePath = source.toPath();
-        Path destPath = dest.toPath();
-        dest.getParentFile().mkdirs();
+        strategy.link(sourcePath, destPath, msgLog == null ? null : new LinkStrategy.Progress() {
+            private long lastReported = 0;
+
+            @Override
+            public void update(long copied, long total) {
+                // Report every 10%, so big copies show signs of life
+                long percent = copied * 100 / Math.max(total, 1);
+                if (percent / 10 == lastReported / 10 && copied < total) return;
+                lastReported = percent;
+                try {
+                    msgLog.append("  ").append(String.valueOf(percent)).append("% of ")
+                            .append(dest.getName()).append('\n');
+                } catch (IOException ignored) {
+                    // Progress is best-effort
+                }
+            }
+        });
+    }
+
+    /**
+     * Install an unpacked (directory) source into a profile
+     * <p/>
+     * With the {@link LinkStrategy#SYMLINK symlink} strategy the directory
+     *  itself is linked. Otherwise every file is hard-linked (or copied) in
+     *  parallel into a new tree next to the destination, which then replaces
+     *  any earlier install of the same directory.
+     * <p/>
+     * If {@code msgLog} is not null, it is used as a logging buffer.
+     *
+     * @param target The destination profile
+     * @param msgLog The logging buffer to append to (or {@code null})
+     * @throws IOException Something went wrong in walking the tree or in
+     *      placing a file
+     */
+    protected void installDirectory(Profile target, Appendable msgLog) throws IOException {
+        File destDir = new File(target.getGameDir(), getDestSubdir()).getAbsoluteFile();
+        File dest = new File(destDir, source.getName());
+        destDir.mkdirs();
+        LinkStrategy strategy = linkStrategy.resolve(source.toPath(), destDir.toPath());
+        if (strategy == LinkStrategy.SYMLINK) {
+            if (msgLog != null)
+                msgLog.append("Linking ").append(source.getAbsolutePath())
+                        .append(" to ").append(dest.getAbsolutePath()).append('\n');
+            StreamingInstaller.deleteTree(dest.toPath());
+            strategy.link(source.toPath(), dest.toPath(), null);
+            return;
+        }
+
+        if (msgLog != null)
+            msgLog.append(strategy == LinkStrategy.COPY ? "Copying tree " : "Linking tree ")
+                    .append(source.getAbsolutePath()).append(" to ").append(dest.getAbsolutePath()).append('\n');
+        File temp = new File(destDir, "." + source.getName() + "." + System.nanoTime() + ".mcci-tmp");
+        boolean done = false;
         try {
-            Files.createLink(destPath, sourcePath);
-        } catch (UnsupportedOperationException e) {
-            Files.copy(sourcePath, destPath, StandardCopyOption.COPY_ATTRIBUTES);
+            TreeLinker.Result result = TreeLinker.mirror(source.toPath(), temp.toPath(),
+                    strategy == LinkStrategy.COPY ? TreeLinker.COPY_ALL : TreeLinker.LINK_ALL,
+                    Parallel.IO_THREADS);
+            StreamingInstaller.deleteTree(dest.toPath());
+            Files.move(temp.toPath(), dest.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            done = true;
+            if (msgLog != null)
+                msgLog.append(String.valueOf(result.getLinked())).append(" files linked, ")
+                        .append(String.valueOf(result.getCopied())).append(" copied\n");
+        } finally {
+            if (!done) StreamingInstaller.deleteTree(temp.toPath());
+        }
+    }
+
+    /**
+     * Install this content into several profiles at once.
+     * <p/>
+     * The default installs into each target in parallel, which suits content
+     *  that is just linked. Types that have to decode their source override
+     *  this to decode it only once.
+     * <p/>
+     * If {@code msgLog} is not null, it is used as a logging buffer. Each
+     *  target's log is kept together, in the order of {@code targets}.
+     *
+     * @param targets The destination profiles
+     * @param msgLog The logging buffer to append to (or {@code null})
+     * @throws IOException Installing into at least one target failed (the
+     *      others are still installed)
+     */
+    public void installAll(List<Profile> targets, Appendable msgLog) throws IOException {
+        if (targets.size() == 1) {
+            install(targets.get(0), msgLog);
+            return;
         }
+        forEachTarget(targets, new TargetTask() {
+            @Override
+            public void run(Profile target, Appendable log) throws IOException {
+                install(target, log);
+            }
+        }, msgLog);
+    }
+
+    /**
+     * Run {@code task} for every target in parallel, keeping each target's log
+     *  together
+     *
+     * @param targets The profiles to run the task for
+     * @param task The work to do for each profile
+     * @param msgLog The logging buffer to append to (or {@code null})
+     * @throws IOException The task failed for at least one target (the first
+     *      failure is thrown once every target has finished)
+     */
+    protected static void forEachTarget(List<Profile> targets, final TargetTask task, Appendable msgLog)
+            throws IOException {
+        final List<StringBuilder> logs = new ArrayList<>(targets.size());
+        List<Callable<IOException>> tasks = new ArrayList<>(targets.size());
+        for (final Profile target : targets) {
+            final StringBuilder log = new StringBuilder();
+            logs.add(log);
+            tasks.add(new Callable<IOException>() {
+                @Override
+                public IOException call() {
+                    try {
+                        task.run(target, log);
+                        return null;
+                    } catch (IOException e) {
+                        log.append("Error: ").append(e.getMessage()).append('\n');
+                        return e;
+                    }
+                }
+            });
+        }
+        List<IOException> failures = Parallel.invokeAll(tasks, Parallel.IO_THREADS);
+
+        IOException failure = null;
+        for (int i = 0; i < targets.size(); i++) {
+            if (msgLog != null) {
+                msgLog.append("== ").append(targets.get(i).getName()).append(" ==\n")
+                        .append(logs.get(i));
+            }
+            if (failure == null) failure = failures.get(i);
+        }
+        if (failure != null) throw failure;
+    }
+
+    /**
+     * Do the part of installing that doesn't depend on the target profile
+     *  (like extracting nested content) ahead of time, so that a later
+     *  {@link #install} only has to place files
+     * <p/>
+     * The default does nothing. Content that is prepared but then not
+     *  installed should be {@link #discard() discarded}.
+     * <p/>
+     * If {@code msgLog} is not null, it is used as a logging buffer.
+     *
+     * @param msgLog The logging buffer to append to (or {@code null})
+     * @throws IOException Something went wrong in preparing
+     */
+    public void prepare(Appendable msgLog) throws IOException {
+    }
+
+    /**
+     * Throw away anything {@link #prepare} created, as this content won't be
+     *  installed after all
+     * <p/>
+     * The default does nothing.
+     */
+    public void discard() {
+    }
+
+    /**
+     * @return A name for this type of content, for people
+     */
+    public String getTypeName() {
+        return getClass().getSimpleName();
     }
 
     /**
@@ -123,4 +450,15 @@ public abstract class Content {
      * @return {@code true} if this object represents valid content of this type
      */
     public abstract boolean isValid();
+
+    /**
+     * Test if an archive with the given entries looks like this type, without
+     *  looking at any of the entries' contents
+     *
+     * @param entryNames The names of every entry in the archive
+     * @return {@code true} if the archive looks like this type
+     */
+    protected boolean matchesEntryNames(Collection<String> entryNames) {
+        return false;
+    }
 }
@@ -6,15 +6,54 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipException;
 import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
 
 /**
  * Represents a collection of content
  */
 public class ContentCollection extends Content {
+    /**
+     * An included item, extracted and detected
+     */
+    private static class Staged {
+        final String name;
+        /** The detected content, or {@code null} if it isn't content */
+        final Content content;
+        /** What was logged while staging the item */
+        final CharSequence log;
+        /** Why the item couldn't be staged, or {@code null} */
+        final IOException failure;
+
+        Staged(String name, Content content, CharSequence log, IOException failure) {
+            this.name = name;
+            this.content = content;
+            this.log = log;
+            this.failure = failure;
+        }
+    }
+
+    /** How many included items may be staged ahead of the one being installed */
+    private static final int LOOKAHEAD = Parallel.IO_THREADS * 2;
+
+    /** Items extracted by {@link #prepare}, or {@code null} if it hasn't run */
+    private List<Staged> staged;
+    /** Where {@link #staged} were extracted to */
+    private File stagingDir;
+
     /**
      * Provide the no-args constructor privately
      * <p/>
@@ -35,6 +74,14 @@ public class ContentCollection extends Content {
         super(source);
     }
 
+    /**
+     * @return A name for this type of content, for people
+     */
+    @Override
+    public String getTypeName() {
+        return "Content collection";
+    }
+
     /**
      * @return The subdirectory of a profile that this content should go into
      */
@@ -45,29 +92,40 @@ public class ContentCollection extends Content {
 
     /**
      * Test if the content at {@link #source} is of this type
-     * 
-     * This test relies on the fact that a Minecraft Forge mod has the file
-     *  "mcmeta.info" in the top-level of the archive.
+     * <p/>
+     * A collection is an archive containing at least one nested archive that
+     *  looks like content. Nested archives are only read far enough to list
+     *  their entry names (see {@link Content#detectContentType(File, Collection)}),
+     *  so nothing is written to disk and detection doesn't recurse into
+     *  collections within collections.
      *
      * @return {@code true} if this object represents valid content of this type
      */
     @Override
     public boolean isValid() {
+        // Unpacked collections aren't supported; their items would be unpacked too
+        if (getSource().isDirectory()) return false;
         try (ZipFile zf = new ZipFile(getSource())) {
+            // Held to the same limits as installing, without using up the install's
+            InstallBudget budget = new InstallBudget(getInstallLimits());
             ZipEntry entry;
-            File tempdir = Files.createTempDirectory("MCCI").toFile();
             for (Enumeration<? extends ZipEntry> entries = zf.entries();
                     entries.hasMoreElements();) {
                 entry = entries.nextElement();
                 if (entry.getName().endsWith(".zip") || entry.getName().endsWith(".jar")) {
-                    File dest = new File(tempdir, entry.getName());
-                    dest.getParentFile().mkdirs();
-                    StreamUtils.copyStreams(
-                            zf.getInputStream(entry),
-                            new FileOutputStream(dest)
-                    );
+                    List<String> names = new ArrayList<>();
+                    try (ZipInputStream nested = new ZipInputStream(
+                            budget.meter(zf.getInputStream(entry), entry))) {
+                        ZipEntry nestedEntry;
+                        while ((nestedEntry = nested.getNextEntry()) != null) {
+                            names.add(nestedEntry.getName());
+                        }
+                    } catch (ZipException e) {
+                        // Not a Zip-formatted file, so can't be content
+                        continue;
+                    }
                     try {
-                        Content.detectContentType(dest);
+                        Content.detectContentType(new File(entry.getName()), names);
                         // Haven't thrown, must be a supported content type
                         return true;
                     } catch (UnsupportedContentTypeException ignored) {
@@ -86,6 +144,23 @@ public class ContentCollection extends Content {
         }
     }
 
+    /**
+     * Test if an archive with the given entries looks like this type
+     * <p/>
+     * Without the nested archives' contents this is only a guess: any archive
+     *  containing {@code .zip} or {@code .jar} entries matches.
+     *
+     * @param entryNames The names of every entry in the archive
+     * @return {@code true} if any entry is a nested archive
+     */
+    @Override
+    protected boolean matchesEntryNames(Collection<String> entryNames) {
+        for (String name : entryNames) {
+            if (name.endsWith(".zip") || name.endsWith(".jar")) return true;
+        }
+        return false;
+    }
+
     /**
      * Install this content into a profile.
      * <p/>
@@ -100,33 +175,252 @@ public class ContentCollection extends Content {
      */
     @Override
     public void install(Profile target, Appendable msgLog) throws IOException {
-        try (ZipFile zf = new ZipFile(getSource())) {
-            ZipEntry entry;
-            File tempdir = Files.createTempDirectory("MCCI").toFile();
-            for (Enumeration<? extends ZipEntry> entries = zf.entries();
-                 entries.hasMoreElements();) {
-                entry = entries.nextElement();
-                if (entry.getName().endsWith(".zip") || entry.getName().endsWith(".jar")) {
-                    File entryDest = new File(tempdir, entry.getName());
-                    entryDest.getParentFile().mkdirs();
-                    if (msgLog != null)
-                        msgLog.append("Extracting ").append(entry.getName())
-                                .append(" to ").append(entryDest.getAbsolutePath()).append('\n');
-                    StreamUtils.copyStreams(
-                            zf.getInputStream(entry),
-                            new FileOutputStream(entryDest)
-                    );
-                    try {
-                        Content content = Content.detectContentType(entryDest);
-                        // Haven't thrown, must be a supported content type
-                        content.install(target, msgLog);
-                    } catch (UnsupportedContentTypeException ignored) {
-                        // Not content, ignore this one
-                        if (msgLog != null)
-                            msgLog.append(entry.getName()).append(" wasn't content, ignoring").append('\n');
+        installAll(Collections.singletonList(target), msgLog);
+    }
+
+    /**
+     * Extract, detect and prepare every included item ahead of time (see
+     *  {@link Content#prepare})
+     * <p/>
+     * Items are staged in parallel, as for {@link #installAll}. An item that
+     *  fails to stage is remembered and reported when installing, rather than
+     *  failing the whole collection.
+     * <p/>
+     * If {@code msgLog} is not null, it is used as a logging buffer.
+     *
+     * @param msgLog The logging buffer to append to (or {@code null})
+     * @throws IOException The archive couldn't be read, or it broke the
+     *      install limits
+     */
+    @Override
+    public synchronized void prepare(final Appendable msgLog) throws IOException {
+        if (staged != null) return;
+        File tempdir = Files.createTempDirectory("MCCI").toFile();
+        final List<Staged> items = new ArrayList<>();
+        boolean done = false;
+        try {
+            stageAll(tempdir, new StagedHandler() {
+                @Override
+                public void handle(Staged item) throws IOException {
+                    // Logged now, so not again when it's installed
+                    if (msgLog != null) msgLog.append(item.log);
+                    items.add(new Staged(item.name, item.content, "", item.failure));
+                }
+            });
+            done = true;
+        } finally {
+            if (!done) {
+                for (Staged item : items) {
+                    if (item.content != null) item.content.discard();
+                }
+                StreamingInstaller.deleteTree(tempdir.toPath());
+            }
+        }
+        stagingDir = tempdir;
+        staged = items;
+    }
+
+    /**
+     * Delete the items extracted by {@link #prepare}
+     */
+    @Override
+    public synchronized void discard() {
+        if (stagingDir == null) return;
+        for (Staged item : staged) {
+            if (item.content != null) item.content.discard();
+        }
+        try {
+            StreamingInstaller.deleteTree(stagingDir.toPath());
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        stagingDir = null;
+        staged = null;
+    }
+
+    /**
+     * Install this content into several profiles at once.
+     * <p/>
+     * Included items are installed one at a time, in the order they are in
+     *  the archive, while the next few are extracted, detected and prepared
+     *  in parallel (unless that was already done by {@link #prepare}). So the
+     *  log comes out the same on every run, and items that install to the
+     *  same place always end up the same way. Each item is installed into
+     *  every target (see {@link Content#installAll}).
+     * <p/>
+     * An item that fails is logged and skipped, and the rest are still
+     *  installed; the first failure is thrown at the end. Breaking the
+     *  {@link InstallLimits install limits} stops the whole install though.
+     * <p/>
+     * If {@code msgLog} is not null, it is used as a logging buffer.
+     *
+     * @param targets The destination profiles
+     * @param msgLog The logging buffer to append to (or {@code null})
+     * @throws java.io.IOException Something went wrong either in creating the link or
+     *                             in copying the file.
+     */
+    @Override
+    public synchronized void installAll(final List<Profile> targets, final Appendable msgLog) throws IOException {
+        // Symlinked content still points into the extracted files
+        final boolean keepFiles = Content.getLinkStrategy() == LinkStrategy.SYMLINK;
+        final IOException[] failure = new IOException[1];
+        StagedHandler installer = new StagedHandler() {
+            @Override
+            public void handle(Staged item) throws IOException {
+                IOException e = install(item, targets, msgLog);
+                if (failure[0] == null) failure[0] = e;
+                if (!keepFiles && item.content != null) item.content.discard();
+            }
+        };
+
+        File tempdir = stagingDir;
+        List<Staged> items = staged;
+        stagingDir = null;
+        staged = null;
+        boolean done = false;
+        try {
+            if (items != null) {
+                if (msgLog != null)
+                    msgLog.append("Using ").append(String.valueOf(items.size()))
+                            .append(" items extracted ahead of time\n");
+                for (Staged item : items) {
+                    installer.handle(item);
+                }
+            } else {
+                tempdir = Files.createTempDirectory("MCCI").toFile();
+                stageAll(tempdir, installer);
+            }
+            done = true;
+        } finally {
+            if (!done || !keepFiles) {
+                if (items != null && !done) {
+                    for (Staged item : items) {
+                        if (item.content != null) item.content.discard();
                     }
                 }
+                if (tempdir != null) StreamingInstaller.deleteTree(tempdir.toPath());
+            }
+        }
+        if (failure[0] != null) throw failure[0];
+    }
+
+    /**
+     * Install a single staged item into every target
+     *
+     * @return Why the item failed, or {@code null} if it didn't
+     * @throws InstallLimits.ExceededException The item broke the install
+     *      limits, so nothing more should be installed
+     */
+    private static IOException install(Staged item, List<Profile> targets, Appendable msgLog)
+            throws IOException {
+        if (msgLog != null) msgLog.append(item.log);
+        IOException failure = item.failure;
+        if (failure == null && item.content == null) {
+            if (msgLog != null)
+                msgLog.append(item.name).append(" wasn't content, ignoring").append('\n');
+            return null;
+        }
+        if (failure == null) {
+            try {
+                item.content.installAll(targets, msgLog);
+                return null;
+            } catch (InstallLimits.ExceededException e) {
+                throw e;
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        if (failure instanceof InstallLimits.ExceededException) throw failure;
+        if (msgLog != null)
+            msgLog.append("Error: ").append(item.name).append(": ").append(failure.getMessage()).append('\n');
+        return failure;
+    }
+
+    /**
+     * Receives each included item as it is staged, in archive order
+     */
+    private interface StagedHandler {
+        void handle(Staged item) throws IOException;
+    }
+
+    /**
+     * Extract, detect and prepare every included item into {@code tempdir},
+     *  passing each one to {@code handler} in archive order
+     * <p/>
+     * Up to {@link #LOOKAHEAD} items are staged in parallel ahead of the one
+     *  being handled. Each item's log is kept with it, so the logs come out in
+     *  archive order however the staging was interleaved.
+     */
+    private void stageAll(final File tempdir, StagedHandler handler) throws IOException {
+        final InstallBudget budget = getBudget();
+        ExecutorService pool = Parallel.newPool(Math.min(LOOKAHEAD, Parallel.IO_THREADS), "MCCI-collection");
+        Deque<Future<Staged>> window = new ArrayDeque<>();
+        try (final ZipFile zf = new ZipFile(getSource())) {
+            budget.preflight(zf);
+            List<ZipEntry> nested = new ArrayList<>();
+            for (Enumeration<? extends ZipEntry> entries = zf.entries(); entries.hasMoreElements();) {
+                ZipEntry entry = entries.nextElement();
+                if (entry.getName().endsWith(".zip") || entry.getName().endsWith(".jar")) nested.add(entry);
+            }
+
+            int next = 0;
+            for (int i = 0; i < nested.size(); i++) {
+                for (; next < nested.size() && next - i < LOOKAHEAD; next++) {
+                    final ZipEntry entry = nested.get(next);
+                    window.addLast(pool.submit(new Callable<Staged>() {
+                        @Override
+                        public Staged call() {
+                            return stage(zf, entry, tempdir, budget);
+                        }
+                    }));
+                }
+                handler.handle(Parallel.await(window.removeFirst()));
+            }
+        } finally {
+            for (Future<Staged> future : window) {
+                future.cancel(true);
             }
+            pool.shutdownNow();
+            // Let cancelled items stop writing before their files are deleted
+            try {
+                pool.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Extract, detect and prepare one included item
+     *
+     * @return The staged item, with any failure recorded in it rather than
+     *      thrown
+     */
+    private static Staged stage(ZipFile zf, ZipEntry entry, File tempdir, InstallBudget budget) {
+        StringBuilder log = new StringBuilder();
+        Content content = null;
+        try {
+            File entryDest = budget.entry(tempdir, entry);
+            entryDest.getParentFile().mkdirs();
+            log.append("Extracting ").append(entry.getName())
+                    .append(" to ").append(entryDest.getAbsolutePath()).append('\n');
+            StreamUtils.copyStreams(
+                    budget.meter(zf.getInputStream(entry), entry),
+                    new FileOutputStream(entryDest)
+            );
+            try {
+                content = Content.detectContentType(entryDest);
+                // Haven't thrown, must be a supported content type
+                content.setBudget(budget.nested());
+            } catch (UnsupportedContentTypeException ignored) {
+                // Not content, ignore this one
+                return new Staged(entry.getName(), null, log, null);
+            }
+            content.prepare(log);
+            return new Staged(entry.getName(), content, log, null);
+        } catch (IOException e) {
+            if (content != null) content.discard();
+            return new Staged(entry.getName(), null, log, e);
         }
     }
 }
@@ -0,0 +1,251 @@
+package io.github.nelsoncrosby.mcci;
+
+import io.github.nelsoncrosby.utils.StreamUtils;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Represents a collection of content described by a manifest, rather than
+ *  one that physically contains it
+ * <p/>
+ * The manifest is a JSON file listing each item by name and SHA-1:
+ * <pre>
+ * {"items": [
+ *     {"name": "SomeMod-1.0.jar", "sha1": "...", "url": "https://..."},
+ *     ...
+ * ]}
+ * </pre>
+ * Each item is looked for in the manifest's own directory and then in every
+ *  {@link #getRepositories() content repository}, and is only accepted if its
+ *  hash matches. Items that can't be found locally are downloaded from their
+ *  (optional) {@code url}. All items are resolved and verified in parallel,
+ *  and nothing is installed unless every item resolves.
+ */
+public class ContentManifest extends Content {
+    /** Where items are looked for, in order */
+    private static final List<File> REPOSITORIES = new CopyOnWriteArrayList<>();
+    static {
+        REPOSITORIES.add(new File(LauncherConfig.MCCI_DIR, "repository"));
+    }
+
+    /**
+     * @return The directories items are looked for in, in order
+     */
+    public static List<File> getRepositories() {
+        return REPOSITORIES;
+    }
+
+    /**
+     * @param repository Another directory to look for items in (searched after
+     *      those already added)
+     */
+    public static void addRepository(File repository) {
+        REPOSITORIES.add(repository.getAbsoluteFile());
+    }
+
+    /**
+     * One item of the manifest
+     */
+    private static class Item {
+        final String name;
+        final String sha1;
+        final URL url;
+
+        Item(String name, String sha1, URL url) {
+            this.name = name;
+            this.sha1 = sha1;
+            this.url = url;
+        }
+    }
+
+    /**
+     * Provide the no-args constructor privately
+     * <p/>
+     * Reflection in {@link #detectContentType} requires a default constructor
+     * of some kind, but we don't want others trying to instantiate this class
+     * without passing a {@link #source}. Must be linked to by all
+     * subclasses.
+     */
+    ContentManifest() {
+    }
+
+    /**
+     * Construct an object from a {@link #source}.
+     *
+     * @param source The {@link java.io.File} to use in {@link #source}
+     */
+    public ContentManifest(File source) {
+        super(source);
+    }
+
+    /**
+     * @return A name for this type of content, for people
+     */
+    @Override
+    public String getTypeName() {
+        return "Content manifest";
+    }
+
+    /**
+     * @return The subdirectory of a profile that this content should go into
+     */
+    @Override
+    protected String getDestSubdir() {
+        return ".";
+    }
+
+    /**
+     * Test if the content at {@link #source} is of this type
+     * <p/>
+     * This test relies on the manifest being a JSON object with an
+     *  {@code "items"} array.
+     *
+     * @return {@code true} if this object represents valid content of this type
+     */
+    @Override
+    public boolean isValid() {
+        if (!getSource().getName().endsWith(".json")) return false;
+        try {
+            readItems();
+            return true;
+        } catch (IOException | JSONException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Install this content into a profile.
+     * <p/>
+     * Resolves and verifies every item, then installs each one as the content
+     *  type it is detected as.
+     * <p/>
+     * If {@code msgLog} is not null, it is used as a logging buffer.
+     *
+     * @param target The destination profile
+     * @param msgLog The logging buffer to append to (or {@code null})
+     * @throws java.io.IOException An item couldn't be resolved, or something
+     *                             went wrong in installing it.
+     */
+    @Override
+    public void install(Profile target, Appendable msgLog) throws IOException {
+        installAll(Collections.singletonList(target), msgLog);
+    }
+
+    /**
+     * Install this content into several profiles at once.
+     * <p/>
+     * Items are resolved and verified once, and then each is installed into
+     *  every target (see {@link Content#installAll}).
+     * <p/>
+     * If {@code msgLog} is not null, it is used as a logging buffer.
+     *
+     * @param targets The destination profiles
+     * @param msgLog The logging buffer to append to (or {@code null})
+     * @throws java.io.IOException An item couldn't be resolved, or something
+     *                             went wrong in installing it.
+     */
+    @Override
+    public void installAll(List<Profile> targets, Appendable msgLog) throws IOException {
+        List<Item> items;
+        try {
+            items = readItems();
+        } catch (JSONException e) {
+            throw new IOException("Invalid manifest " + getSource().getAbsolutePath(), e);
+        }
+        if (msgLog != null)
+            msgLog.append("Resolving ").append(String.valueOf(items.size())).append(" items\n");
+
+        final Appendable log = msgLog;
+        List<Callable<File>> tasks = new ArrayList<>(items.size());
+        for (final Item item : items) {
+            tasks.add(new Callable<File>() {
+                @Override
+                public File call() throws IOException {
+                    return resolve(item, log);
+                }
+            });
+        }
+        List<File> resolved = Parallel.invokeAll(tasks, Parallel.IO_THREADS);
+
+        List<String> missing = new ArrayList<>();
+        for (int i = 0; i < items.size(); i++) {
+            if (resolved.get(i) == null) missing.add(items.get(i).name);
+        }
+        if (!missing.isEmpty())
+            throw new IOException("Couldn't find (or verify) " + missing.size() + " items: " + missing);
+
+        InstallBudget budget = getBudget();
+        for (int i = 0; i < items.size(); i++) {
+            try {
+                Content content = Content.detectContentType(resolved.get(i));
+                content.setBudget(budget.nested());
+                content.installAll(targets, msgLog);
+            } catch (UnsupportedContentTypeException e) {
+                if (msgLog != null)
+                    msgLog.append(items.get(i).name).append(" wasn't content, ignoring").append('\n');
+            }
+        }
+    }
+
+    /**
+     * Find a copy of {@code item} whose hash matches
+     *
+     * @return The verified file, or {@code null} if there isn't one
+     */
+    private File resolve(Item item, Appendable msgLog) throws IOException {
+        List<File> candidates = new ArrayList<>();
+        candidates.add(new File(getSource().getParentFile(), item.name));
+        for (File repository : REPOSITORIES) {
+            candidates.add(new File(repository, item.name));
+        }
+        for (File candidate : candidates) {
+            if (candidate.isFile() && Hashing.sha1(candidate).equalsIgnoreCase(item.sha1)) {
+                return candidate;
+            }
+        }
+
+        if (item.url == null) return null;
+        HttpSource source = new HttpSource(item.url, new File(LauncherConfig.MCCI_DIR, "downloads"));
+        File downloaded = source.fetch(null, msgLog);
+        String sha1 = source.getCachedSha1();
+        if (sha1 == null) sha1 = Hashing.sha1(downloaded);
+        if (sha1.equalsIgnoreCase(item.sha1)) return downloaded;
+        // Otherwise the next attempt would get a 304 and the same bad file
+        if (msgLog != null)
+            msgLog.append("Discarding download of ").append(item.name).append(": SHA-1 ").append(sha1)
+                    .append(" doesn't match ").append(item.sha1).append('\n');
+        source.evict();
+        return null;
+    }
+
+    /**
+     * @return The items listed by the manifest
+     * @throws IOException The manifest couldn't be read
+     * @throws JSONException The manifest isn't valid
+     */
+    private List<Item> readItems() throws IOException {
+        JSONObject manifest = new JSONObject(StreamUtils.readWholeFile(getSource()).toString());
+        JSONArray itemsJson = manifest.getJSONArray("items");
+        List<Item> items = new ArrayList<>(itemsJson.length());
+        for (int i = 0; i < itemsJson.length(); i++) {
+            JSONObject itemJson = itemsJson.getJSONObject(i);
+            String name = itemJson.getString("name");
+            if (name.contains("/") || name.contains("\\") || name.startsWith("."))
+                throw new JSONException("Invalid item name: " + name);
+            String url = itemJson.optString("url", null);
+            items.add(new Item(name, itemJson.getString("sha1"),
+                    url == null || url.isEmpty() ? null : new URL(url)));
+        }
+        return items;
+    }
+}
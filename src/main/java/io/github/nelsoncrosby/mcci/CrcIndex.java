@@ -0,0 +1,142 @@
+package io.github.nelsoncrosby.mcci;
+
+import io.github.nelsoncrosby.utils.StreamUtils;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Remembers the CRC-32 of every file in an extracted tree, so that comparing
+ *  the tree against an archive's central directory doesn't mean re-reading
+ *  every file
+ * <p/>
+ * A remembered CRC is only trusted while the file's size and modification
+ *  time are unchanged; otherwise the file is re-hashed.
+ */
+class CrcIndex {
+    /**
+     * What we know about one file
+     */
+    private static class Record {
+        final long crc;
+        final long size;
+        final long modified;
+
+        Record(long crc, long size, long modified) {
+            this.crc = crc;
+            this.size = size;
+            this.modified = modified;
+        }
+    }
+
+    /** Where the index is persisted */
+    private final File indexFile;
+    /** Records by path relative to the root of the tree ('/'-separated) */
+    private final Map<String, Record> records = new HashMap<>();
+
+    /**
+     * Load the index stored at {@code indexFile} (or start an empty one)
+     *
+     * @param indexFile Where the index is persisted
+     */
+    CrcIndex(File indexFile) {
+        this.indexFile = indexFile;
+        if (!indexFile.isFile()) return;
+        try {
+            JSONObject json = new JSONObject(StreamUtils.readWholeFile(indexFile).toString());
+            JSONObject entries = json.getJSONObject("entries");
+            for (Object keyObj : entries.keySet()) {
+                String name = (String) keyObj;
+                JSONObject entry = entries.getJSONObject(name);
+                records.put(name, new Record(entry.getLong("crc"), entry.getLong("size"),
+                        entry.getLong("modified")));
+            }
+        } catch (IOException | JSONException e) {
+            // A broken index just means re-hashing
+            records.clear();
+        }
+    }
+
+    /**
+     * Get the CRC-32 of a file in the tree
+     *
+     * @param name The path of the file relative to the root of the tree
+     * @param file The file itself
+     * @return The CRC-32 of the file's contents
+     * @throws IOException The file had to be hashed, and couldn't be read
+     */
+    synchronized long crcOf(String name, File file) throws IOException {
+        long size = file.length();
+        long modified = file.lastModified();
+        Record record = records.get(name);
+        if (record != null && record.size == size && record.modified == modified) {
+            return record.crc;
+        }
+        long crc = crc32(file);
+        records.put(name, new Record(crc, size, modified));
+        return crc;
+    }
+
+    /**
+     * Remember the CRC-32 of a file that has just been written
+     *
+     * @param name The path of the file relative to the root of the tree
+     * @param file The file itself
+     * @param crc The CRC-32 of its contents
+     */
+    synchronized void put(String name, File file, long crc) {
+        records.put(name, new Record(crc, file.length(), file.lastModified()));
+    }
+
+    /**
+     * @param name The path of a file (relative to the root of the tree) that
+     *      no longer exists
+     */
+    synchronized void remove(String name) {
+        records.remove(name);
+    }
+
+    /**
+     * Persist the index
+     *
+     * @throws IOException The index couldn't be written
+     */
+    synchronized void save() throws IOException {
+        JSONObject entries = new JSONObject();
+        for (Map.Entry<String, Record> entry : records.entrySet()) {
+            JSONObject record = new JSONObject();
+            record.put("crc", entry.getValue().crc);
+            record.put("size", entry.getValue().size);
+            record.put("modified", entry.getValue().modified);
+            entries.put(entry.getKey(), record);
+        }
+        JSONObject json = new JSONObject();
+        json.put("entries", entries);
+        indexFile.getParentFile().mkdirs();
+        StreamUtils.writeToFile(json.toString(), indexFile);
+    }
+
+    /**
+     * @param file The file to hash
+     * @return The CRC-32 of the file's contents
+     * @throws IOException The file couldn't be read
+     */
+    static long crc32(File file) throws IOException {
+        CRC32 crc = new CRC32();
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream in = new FileInputStream(file)) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                crc.update(buffer, 0, read);
+            }
+        }
+        return crc.getValue();
+    }
+}
@@ -1,20 +1,71 @@
 package io.github.nelsoncrosby.mcci;
 
-import io.github.nelsoncrosby.utils.StreamUtils;
-
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collection;
 import java.util.ArrayList;
 import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipException;
 import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
 
 /**
  * Represents a custom Minecraft save-file
  */
 public class CustomMap extends Content {
+    /** Whether re-installs only rewrite entries that changed */
+    private static volatile boolean deltaInstall = true;
+    /** Whether delta re-installs delete files that aren't in the archive */
+    private static volatile boolean deleteStale = false;
+
+    /**
+     * @return Whether re-installs only rewrite entries that changed
+     */
+    public static boolean isDeltaInstall() {
+        return deltaInstall;
+    }
+
+    /**
+     * Choose whether re-installing a world compares every entry's CRC-32 and
+     *  size (from the archive's central directory) against the files already
+     *  there, and only rewrites the ones that differ
+     *
+     * @param delta {@code true} for delta re-installs, {@code false} to always
+     *      extract every entry
+     */
+    public static void setDeltaInstall(boolean delta) {
+        deltaInstall = delta;
+    }
+
+    /**
+     * @return Whether delta re-installs delete files that aren't in the archive
+     */
+    public static boolean isDeleteStale() {
+        return deleteStale;
+    }
+
+    /**
+     * Choose whether a delta re-install also deletes files in the world that
+     *  the archive doesn't contain. This throws away anything the player has
+     *  added (including their progress), so it's off by default.
+     *
+     * @param delete {@code true} to delete stale files
+     */
+    public static void setDeleteStale(boolean delete) {
+        deleteStale = delete;
+    }
+
     /**
      * Provide the no-args constructor privately
      * <p/>
@@ -35,6 +86,14 @@ public class CustomMap extends Content {
         super(source);
     }
 
+    /**
+     * @return A name for this type of content, for people
+     */
+    @Override
+    public String getTypeName() {
+        return "World";
+    }
+
     /**
      * @return The subdirectory of a profile that this content should go into
      */
@@ -53,6 +112,7 @@ public class CustomMap extends Content {
      */
     @Override
     public boolean isValid() {
+        if (getSource().isDirectory()) return new File(getSource(), "level.dat").isFile();
         try (ZipFile zf = new ZipFile(getSource())) {
             // level.dat needs to exist in all save-files
             ZipEntry levelDat = zf.getEntry("level.dat");
@@ -67,10 +127,44 @@ public class CustomMap extends Content {
         }
     }
 
+    /**
+     * Read this world's name, version, seed and size, without extracting it
+     *
+     * @return The world's metadata
+     * @throws IOException The world couldn't be read
+     * @see WorldInfo
+     */
+    public WorldInfo getWorldInfo() throws IOException {
+        return WorldInfo.read(getSource());
+    }
+
+    /**
+     * Test if an archive with the given entries looks like this type
+     *
+     * @param entryNames The names of every entry in the archive
+     * @return {@code true} if {@code "level.dat"} is one of the entries
+     */
+    @Override
+    protected boolean matchesEntryNames(Collection<String> entryNames) {
+        return entryNames.contains("level.dat");
+    }
+
     /**
      * Install this content into a profile.
      * <p/>
      * This type requires that we extract all the files into the "saves" directory.
+     *  When the world is already there and {@link #isDeltaInstall() delta
+     *  installs} are on, only entries whose CRC-32 or size differ from the
+     *  existing file are extracted. The CRCs of existing files come from a
+     *  per-world index in the profile's state directory, so unchanged files
+     *  aren't re-read either.
+     * <p/>
+     * Changed files are written to a temporary file and renamed into place, so
+     *  an existing file is never modified in place.
+     * <p/>
+     * The archive is checked against the install's {@link InstallLimits} before
+     *  anything is extracted, and again as each entry inflates. A new world
+     *  that goes over a limit part way through is removed again.
      * <p/>
      * If {@code msgLog} is not null, it is used as a logging buffer.
      *
@@ -81,24 +175,344 @@ public class CustomMap extends Content {
      */
     @Override
     public void install(Profile target, Appendable msgLog) throws IOException {
-        File destDir = new File(target.getGameDir(), getDestSubdir()).getAbsoluteFile();
-        String name = getSource().getName();
-        File dest = new File(destDir, name.substring(0, name.lastIndexOf('.'))).getAbsoluteFile();
-        dest.mkdirs();
+        if (getSource().isDirectory()) {
+            installDirectory(target, msgLog);
+            return;
+        }
+        File dest = getWorldDir(target);
+        boolean existed = dest.isDirectory();
+        InstallBudget budget = getBudget();
         try (ZipFile zf = new ZipFile(getSource())) {
-            ZipEntry entry;
-            for (Enumeration<? extends ZipEntry> entries = zf.entries(); entries.hasMoreElements();) {
-                entry = entries.nextElement();
-                if (msgLog != null)
-                    msgLog.append("Extracting ").append(entry.getName())
-                            .append(" into ").append(dest.getAbsolutePath()).append('\n');
-                File entryDest = new File(dest, entry.getName());
-                entryDest.getParentFile().mkdirs();
-                StreamUtils.copyStreams(
-                        zf.getInputStream(entry),
-                        new FileOutputStream(entryDest)
-                );
+            budget.preflight(zf);
+            File snapshot = WorldSnapshots.beforeInstall(target, dest, msgLog);
+            dest.mkdirs();
+            try {
+                extract(zf, dest, existed, target, budget, msgLog);
+                WorldSnapshots.afterInstall(dest, snapshot, msgLog);
+            } catch (InstallLimits.ExceededException e) {
+                if (!existed) {
+                    if (msgLog != null)
+                        msgLog.append("Removing partly installed ").append(dest.getAbsolutePath()).append('\n');
+                    StreamingInstaller.deleteTree(dest.toPath());
+                }
+                throw e;
             }
         }
     }
+
+    /**
+     * Install an unpacked world
+     * <p/>
+     * World files are always copied, never linked, as the game rewrites them
+     *  in place (which would change the source world too). The copies run in
+     *  parallel, each via a temporary file and a rename. With {@link
+     *  #isDeltaInstall() delta installs}, files that are the same size and
+     *  modification time (which copies keep), or else the same size and
+     *  CRC-32, as the installed ones are skipped, and stale files are deleted
+     *  if {@link #isDeleteStale() asked for}, as for an archive. Files are
+     *  only hashed when they might be skipped.
+     * <p/>
+     * If {@code msgLog} is not null, it is used as a logging buffer.
+     *
+     * @param target The destination profile
+     * @param msgLog The logging buffer to append to (or {@code null})
+     * @throws IOException Something went wrong in walking the world or in
+     *      copying a file
+     */
+    @Override
+    protected void installDirectory(Profile target, Appendable msgLog) throws IOException {
+        final File dest = getWorldDir(target);
+        final boolean delta = deltaInstall && dest.isDirectory();
+        File snapshot = WorldSnapshots.beforeInstall(target, dest, msgLog);
+        dest.mkdirs();
+        final CrcIndex crcIndex = getCrcIndex(target);
+
+        final Path root = getSource().toPath();
+        final List<String> files = new ArrayList<>();
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                files.add(root.relativize(file).toString().replace(File.separatorChar, '/'));
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        if (msgLog != null)
+            msgLog.append("Copying ").append(String.valueOf(files.size())).append(" files from ")
+                    .append(getSource().getAbsolutePath()).append(" into ").append(dest.getAbsolutePath())
+                    .append('\n');
+
+        List<Callable<Boolean>> tasks = new ArrayList<>(files.size());
+        for (final String name : files) {
+            tasks.add(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws IOException {
+                    File src = new File(getSource(), name);
+                    File entryDest = new File(dest, name);
+                    boolean sameSize = delta && entryDest.isFile() && src.length() == entryDest.length();
+                    if (!sameSize) {
+                        // Only worth hashing when there's an installed file it might match
+                        Extraction.copyAtomically(src, entryDest);
+                        crcIndex.remove(name);
+                        return true;
+                    }
+                    // Copies keep the source's modification time, so this is the file copied last time
+                    if (src.lastModified() == entryDest.lastModified()) return false;
+                    long crc = CrcIndex.crc32(src);
+                    if (crc == crcIndex.crcOf(name, entryDest)) return false;
+                    Extraction.copyAtomically(src, entryDest);
+                    crcIndex.put(name, entryDest, crc);
+                    return true;
+                }
+            });
+        }
+        int skipped = 0;
+        for (boolean copied : Parallel.invokeAll(tasks, Parallel.IO_THREADS)) {
+            if (!copied) skipped++;
+        }
+
+        if (delta && msgLog != null)
+            msgLog.append(String.valueOf(skipped)).append(" unchanged files kept\n");
+        if (delta && deleteStale)
+            deleteStale(dest, new HashSet<>(files), crcIndex, msgLog);
+        crcIndex.save();
+        WorldSnapshots.afterInstall(dest, snapshot, msgLog);
+    }
+
+    /**
+     * Extract the entries of {@code zf} into {@code dest} (see {@link #install})
+     */
+    private void extract(ZipFile zf, File dest, boolean existed, Profile target, InstallBudget budget,
+                         Appendable msgLog) throws IOException {
+        boolean delta = deltaInstall && existed;
+        CrcIndex crcIndex = getCrcIndex(target);
+        Set<String> archived = new HashSet<>();
+        int skipped = 0;
+        ZipEntry entry;
+        for (Enumeration<? extends ZipEntry> entries = zf.entries(); entries.hasMoreElements();) {
+            entry = entries.nextElement();
+            File entryDest = budget.entry(dest, entry);
+            if (entry.isDirectory()) {
+                entryDest.mkdirs();
+                continue;
+            }
+            archived.add(entry.getName());
+            if (delta && entryDest.isFile() && entry.getSize() == entryDest.length()
+                    && entry.getCrc() == crcIndex.crcOf(entry.getName(), entryDest)) {
+                skipped++;
+                continue;
+            }
+
+            if (msgLog != null)
+                msgLog.append("Extracting ").append(entry.getName())
+                        .append(" into ").append(dest.getAbsolutePath()).append('\n');
+            try (InputStream in = budget.meter(zf.getInputStream(entry), entry)) {
+                Extraction.writeAtomically(in, entryDest);
+            }
+            crcIndex.put(entry.getName(), entryDest, entry.getCrc());
+        }
+
+        if (delta && msgLog != null)
+            msgLog.append(String.valueOf(skipped)).append(" unchanged files kept\n");
+        if (delta && deleteStale)
+            deleteStale(dest, archived, crcIndex, msgLog);
+        crcIndex.save();
+    }
+
+    /**
+     * Install this content into a profile from a stream of the archive's
+     *  bytes, rather than from {@link #getSource()}
+     * <p/>
+     * Entries are extracted as they arrive, so this can run while the archive
+     *  is still being downloaded. There's no central directory to compare
+     *  against up front, so every entry is written (still via a temporary file
+     *  and a rename).
+     * <p/>
+     * If {@code msgLog} is not null, it is used as a logging buffer.
+     *
+     * @param archive The archive's bytes, from the start (not closed)
+     * @param target The destination profile
+     * @param msgLog The logging buffer to append to (or {@code null})
+     * @throws IOException Something went wrong in reading the stream or in
+     *      writing a file.
+     */
+    public void installFromStream(InputStream archive, Profile target, Appendable msgLog) throws IOException {
+        File dest = getWorldDir(target);
+        File snapshot = WorldSnapshots.beforeInstall(target, dest, msgLog);
+        dest.mkdirs();
+
+        CrcIndex crcIndex = getCrcIndex(target);
+        InstallBudget budget = getBudget();
+        ZipInputStream zin = new ZipInputStream(archive);
+        ZipEntry entry;
+        while ((entry = zin.getNextEntry()) != null) {
+            File entryDest = budget.entry(dest, entry);
+            if (entry.isDirectory()) {
+                entryDest.mkdirs();
+                continue;
+            }
+            if (msgLog != null)
+                msgLog.append("Extracting ").append(entry.getName())
+                        .append(" into ").append(dest.getAbsolutePath()).append('\n');
+            Extraction.writeAtomically(budget.meter(zin, entry), entryDest);
+            // Only known once the entry's data (and any data descriptor) has been read
+            budget.checkRatio(entry.getName(), entry.getSize(), entry.getCompressedSize());
+            crcIndex.put(entry.getName(), entryDest, entry.getCrc());
+        }
+        crcIndex.save();
+        WorldSnapshots.afterInstall(dest, snapshot, msgLog);
+    }
+
+    /**
+     * Install this content into several profiles at once.
+     * <p/>
+     * The archive is only decompressed for the first target it can be
+     *  installed into. Every later target gets copies of the files extracted
+     *  there (copies rather than links, as the game rewrites world files in
+     *  place). The same delta rules as {@link #install} apply to each target.
+     *  A target that fails doesn't stop the others.
+     * <p/>
+     * If {@code msgLog} is not null, it is used as a logging buffer.
+     *
+     * @param targets The destination profiles
+     * @param msgLog The logging buffer to append to (or {@code null})
+     * @throws IOException Installing into at least one target failed
+     */
+    @Override
+    public void installAll(List<Profile> targets, Appendable msgLog) throws IOException {
+        // An unpacked world has nothing to decode, so copy it into each target directly
+        if (targets.size() <= 1 || getSource().isDirectory()) {
+            super.installAll(targets, msgLog);
+            return;
+        }
+
+        // Extract into targets one at a time until one succeeds, so that one
+        //  broken target doesn't stop the others from being installed
+        IOException failure = null;
+        int extracted = 0;
+        for (; extracted < targets.size(); extracted++) {
+            Profile target = targets.get(extracted);
+            if (msgLog != null) msgLog.append("== ").append(target.getName()).append(" ==\n");
+            try {
+                install(target, msgLog);
+                break;
+            } catch (IOException e) {
+                if (msgLog != null) msgLog.append("Error: ").append(e.getMessage()).append('\n');
+                if (failure == null) failure = e;
+            }
+        }
+
+        if (extracted < targets.size() - 1) {
+            final File extractedWorld = getWorldDir(targets.get(extracted));
+            final List<ZipEntry> entries = new ArrayList<>();
+            try (ZipFile zf = new ZipFile(getSource())) {
+                for (Enumeration<? extends ZipEntry> e = zf.entries(); e.hasMoreElements();) {
+                    entries.add(e.nextElement());
+                }
+            }
+            try {
+                forEachTarget(targets.subList(extracted + 1, targets.size()), new TargetTask() {
+                    @Override
+                    public void run(Profile target, Appendable log) throws IOException {
+                        replicate(extractedWorld, target, entries, log);
+                    }
+                }, msgLog);
+            } catch (IOException e) {
+                if (failure == null) failure = e;
+            }
+        }
+        if (failure != null) throw failure;
+    }
+
+    /**
+     * Install into {@code target} by copying from a world that has already
+     *  been extracted from this archive
+     *
+     * @param extracted The already-extracted world
+     * @param target The destination profile
+     * @param entries The entries of the archive
+     * @param msgLog The logging buffer to append to
+     */
+    private void replicate(File extracted, Profile target, List<ZipEntry> entries, Appendable msgLog)
+            throws IOException {
+        File dest = getWorldDir(target);
+        boolean delta = deltaInstall && dest.isDirectory();
+        File snapshot = WorldSnapshots.beforeInstall(target, dest, msgLog);
+        dest.mkdirs();
+
+        CrcIndex crcIndex = getCrcIndex(target);
+        Set<String> archived = new HashSet<>();
+        int skipped = 0;
+        for (ZipEntry entry : entries) {
+            File entryDest = new File(dest, entry.getName());
+            if (entry.isDirectory()) {
+                entryDest.mkdirs();
+                continue;
+            }
+            archived.add(entry.getName());
+            if (delta && entryDest.isFile() && entry.getSize() == entryDest.length()
+                    && entry.getCrc() == crcIndex.crcOf(entry.getName(), entryDest)) {
+                skipped++;
+                continue;
+            }
+            msgLog.append("Copying ").append(entry.getName())
+                    .append(" into ").append(dest.getAbsolutePath()).append('\n');
+            Extraction.copyAtomically(new File(extracted, entry.getName()), entryDest);
+            crcIndex.put(entry.getName(), entryDest, entry.getCrc());
+        }
+
+        if (delta)
+            msgLog.append(String.valueOf(skipped)).append(" unchanged files kept\n");
+        if (delta && deleteStale)
+            deleteStale(dest, archived, crcIndex, msgLog);
+        crcIndex.save();
+        WorldSnapshots.afterInstall(dest, snapshot, msgLog);
+    }
+
+    /**
+     * @param target A profile
+     * @return Where this world is (or would be) installed in {@code target}
+     */
+    protected File getWorldDir(Profile target) {
+        File destDir = new File(target.getGameDir(), getDestSubdir()).getAbsoluteFile();
+        return new File(destDir, getWorldName()).getAbsoluteFile();
+    }
+
+    /**
+     * @param target A profile
+     * @return The CRC index of this world in {@code target}
+     */
+    private CrcIndex getCrcIndex(Profile target) {
+        return new CrcIndex(new File(target.getStateDir(), "worlds/" + getWorldName() + ".crc.json"));
+    }
+
+    /**
+     * @return The name of the directory in "saves" this world is installed as
+     */
+    protected String getWorldName() {
+        String name = getSource().getName();
+        if (getSource().isDirectory()) return name;
+        int dot = name.lastIndexOf('.');
+        return dot == -1 ? name : name.substring(0, dot);
+    }
+
+    /**
+     * Delete every file under {@code worldDir} that isn't in the archive
+     */
+    private static void deleteStale(final File worldDir, final Set<String> archived,
+                                    final CrcIndex crcIndex, final Appendable msgLog) throws IOException {
+        final Path root = worldDir.toPath();
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                String name = root.relativize(file).toString().replace(File.separatorChar, '/');
+                if (!archived.contains(name)) {
+                    if (msgLog != null)
+                        msgLog.append("Deleting stale ").append(name).append('\n');
+                    Files.delete(file);
+                    crcIndex.remove(name);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
 }
@@ -0,0 +1,112 @@
+package io.github.nelsoncrosby.mcci;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Helpers for writing extracted archive entries to disk
+ */
+final class Extraction {
+    /** Size of the buffer used when copying entry data */
+    static final int BUFFER_SIZE = 64 * 1024;
+
+    private Extraction() {}
+
+    /**
+     * Copy {@code src} to {@code dest} without ever modifying an existing
+     *  {@code dest} in place (see {@link #writeAtomically})
+     *
+     * @param src The file to copy
+     * @param dest The file to create or replace
+     * @throws IOException Something went wrong in copying the file
+     */
+    static void copyAtomically(File src, File dest) throws IOException {
+        File temp = tempFileFor(dest);
+        boolean done = false;
+        try {
+            Files.delete(temp.toPath());
+            LinkStrategy.copy(src.toPath(), temp.toPath(), null);
+            moveIntoPlace(temp, dest);
+            done = true;
+        } finally {
+            if (!done) Files.deleteIfExists(temp.toPath());
+        }
+    }
+
+    /**
+     * Write {@code in} to {@code dest} without ever modifying an existing
+     *  {@code dest} in place
+     * <p/>
+     * The data goes to a temporary file next to {@code dest}, which is then
+     *  renamed over it. Readers (or other hard links to the old file) see
+     *  either the old file or the new one, never a mix.
+     *
+     * @param in The data to write (not closed)
+     * @param dest The file to create or replace
+     * @throws IOException Something went wrong in writing the file
+     */
+    static void writeAtomically(InputStream in, File dest) throws IOException {
+        File temp = tempFileFor(dest);
+        boolean done = false;
+        try {
+            try (OutputStream out = new FileOutputStream(temp)) {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                }
+            }
+            moveIntoPlace(temp, dest);
+            done = true;
+        } finally {
+            if (!done) Files.deleteIfExists(temp.toPath());
+        }
+    }
+
+    /**
+     * Create an empty temporary file next to {@code dest} (and its directory,
+     *  if need be)
+     * <p/>
+     * Named {@code .<name>.<n>.mcci-tmp} rather than with
+     *  {@link File#createTempFile}, which refuses prefixes shorter than three
+     *  characters (like the {@code ".a"} of a file called {@code a}).
+     *
+     * @param dest The file the temporary file will replace
+     * @return The new, empty file
+     * @throws IOException The file couldn't be created
+     */
+    static File tempFileFor(File dest) throws IOException {
+        File dir = dest.getParentFile();
+        dir.mkdirs();
+        long n = System.nanoTime();
+        while (true) {
+            File temp = new File(dir, "." + dest.getName() + "." + n + ".mcci-tmp");
+            try {
+                Files.createFile(temp.toPath());
+                return temp;
+            } catch (FileAlreadyExistsException e) {
+                n++;
+            }
+        }
+    }
+
+    /**
+     * Rename {@code temp} over {@code dest}, atomically where the filesystem
+     *  allows it
+     */
+    static void moveIntoPlace(File temp, File dest) throws IOException {
+        try {
+            Files.move(temp.toPath(), dest.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp.toPath(), dest.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+}
@@ -1,7 +1,19 @@
 package io.github.nelsoncrosby.mcci;
 
+import io.github.nelsoncrosby.utils.StreamUtils;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipException;
 import java.util.zip.ZipFile;
@@ -10,6 +22,94 @@ import java.util.zip.ZipFile;
  * Represents a Minecraft Forge mod
  */
 public class ForgeMod extends Content {
+    /** Real mcmod.info files are a few kilobytes; anything this big isn't one */
+    private static final int MAX_MOD_INFO_BYTES = 1024 * 1024;
+
+    /**
+     * The metadata for a single mod, as declared in {@code mcmod.info}
+     * <p/>
+     * One jar may declare several mods.
+     */
+    public static class ModInfo {
+        private final String modId;
+        private final String name;
+        private final String version;
+        private final List<String> dependencies;
+
+        public ModInfo(String modId, String name, String version, List<String> dependencies) {
+            this.modId = modId;
+            this.name = name;
+            this.version = version;
+            this.dependencies = Collections.unmodifiableList(new ArrayList<>(dependencies));
+        }
+
+        /**
+         * Read a single entry of {@code mcmod.info}
+         *
+         * @param json The JSON object describing one mod
+         * @return The parsed metadata
+         */
+        public static ModInfo fromJson(JSONObject json) {
+            List<String> dependencies = new ArrayList<>();
+            // Both keys are used in the wild, with the same meaning for our purposes
+            for (String key : new String[] {"requiredMods", "dependencies"}) {
+                JSONArray deps = json.optJSONArray(key);
+                if (deps == null) continue;
+                for (int i = 0; i < deps.length(); i++) {
+                    String dep = stripVersionSpec(deps.optString(i, ""));
+                    if (!dep.isEmpty() && !dependencies.contains(dep)) dependencies.add(dep);
+                }
+            }
+            return new ModInfo(json.optString("modid", ""), json.optString("name", ""),
+                    json.optString("version", ""), dependencies);
+        }
+
+        /**
+         * @return A JSON object that {@link #fromJson} can read back
+         */
+        public JSONObject toJson() {
+            JSONObject json = new JSONObject();
+            json.put("modid", modId);
+            json.put("name", name);
+            json.put("version", version);
+            json.put("requiredMods", new JSONArray(dependencies));
+            return json;
+        }
+
+        /**
+         * Dependencies may carry a version range ({@code "Forge@[10.13,)"});
+         *  we only care about the mod id.
+         */
+        private static String stripVersionSpec(String dep) {
+            int at = dep.indexOf('@');
+            return (at == -1 ? dep : dep.substring(0, at)).trim();
+        }
+
+        public String getModId() {
+            return modId;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getVersion() {
+            return version;
+        }
+
+        /**
+         * @return The mod ids this mod requires in order to load
+         */
+        public List<String> getDependencies() {
+            return dependencies;
+        }
+
+        @Override
+        public String toString() {
+            return modId + (version.isEmpty() ? "" : " " + version);
+        }
+    }
+
     /**
      * Provide the no-args constructor privately
      * <p/>
@@ -30,6 +130,14 @@ public class ForgeMod extends Content {
         super(source);
     }
 
+    /**
+     * @return A name for this type of content, for people
+     */
+    @Override
+    public String getTypeName() {
+        return "Forge mod";
+    }
+
     /**
      * @return The subdirectory of a profile that this content should go into
      */
@@ -42,12 +150,14 @@ public class ForgeMod extends Content {
      * Test if the content at {@link #source} is of this type
      * 
      * This test relies on the fact that a Minecraft Forge mod has the file
-     *  "mcmeta.info" in the top-level of the archive.
+     *  "mcmeta.info" in the top-level of the archive (or of the directory, for
+     *  an unpacked mod).
      *
      * @return {@code true} if this object represents valid content of this type
      */
     @Override
     public boolean isValid() {
+        if (getSource().isDirectory()) return new File(getSource(), "mcmod.info").isFile();
         try (ZipFile zf = new ZipFile(getSource())) {
             // mcmod.info needs to exist in all mods
             ZipEntry modInfoEntry = zf.getEntry("mcmod.info");
@@ -61,4 +171,87 @@ public class ForgeMod extends Content {
             return false;
         }
     }
+
+    /**
+     * Test if an archive with the given entries looks like this type
+     *
+     * @param entryNames The names of every entry in the archive
+     * @return {@code true} if {@code "mcmod.info"} is one of the entries
+     */
+    @Override
+    protected boolean matchesEntryNames(Collection<String> entryNames) {
+        return entryNames.contains("mcmod.info");
+    }
+
+    /**
+     * Parse the mod metadata out of {@code mcmod.info}
+     * <p/>
+     * Both the original (a bare array of mods) and the version 2 format
+     *  (an object with a {@code modList} array) are understood.
+     *
+     * @return The mods declared by this jar (empty if there is no usable
+     *      {@code mcmod.info})
+     * @throws IOException The archive couldn't be read
+     */
+    public List<ModInfo> readModInfo() throws IOException {
+        String data = readModInfoData();
+        if (data == null) return new ArrayList<>();
+
+        List<ModInfo> mods = new ArrayList<>();
+        try {
+            Object root = new JSONTokener(data).nextValue();
+            JSONArray modList = null;
+            if (root instanceof JSONArray) {
+                modList = (JSONArray) root;
+            } else if (root instanceof JSONObject) {
+                modList = ((JSONObject) root).optJSONArray("modList");
+            }
+            if (modList != null) {
+                for (int i = 0; i < modList.length(); i++) {
+                    JSONObject modJson = modList.optJSONObject(i);
+                    if (modJson != null) mods.add(ModInfo.fromJson(modJson));
+                }
+            }
+        } catch (JSONException e) {
+            // Plenty of mods ship a broken mcmod.info; treat it as anonymous
+        }
+        return mods;
+    }
+
+    /**
+     * @return The contents of {@code mcmod.info}, or {@code null} if there
+     *      isn't one
+     * @throws InstallLimits.ExceededException {@code mcmod.info} is bigger
+     *      than {@link #MAX_MOD_INFO_BYTES}, or reading it went over the
+     *      install's budget
+     */
+    private String readModInfoData() throws IOException {
+        if (getSource().isDirectory()) {
+            File modInfo = new File(getSource(), "mcmod.info");
+            if (!modInfo.isFile()) return null;
+            if (modInfo.length() > MAX_MOD_INFO_BYTES) throw modInfoTooBig();
+            return StreamUtils.readWholeFile(modInfo).toString();
+        }
+        try (ZipFile zf = new ZipFile(getSource())) {
+            ZipEntry modInfoEntry = zf.getEntry("mcmod.info");
+            if (modInfoEntry == null) return null;
+            // Checked before inflating anything, but the header's size can lie
+            if (modInfoEntry.getSize() > MAX_MOD_INFO_BYTES) throw modInfoTooBig();
+            ByteArrayOutputStream data = new ByteArrayOutputStream();
+            try (InputStream in = getBudget().meter(zf.getInputStream(modInfoEntry), modInfoEntry)) {
+                byte[] buffer = new byte[8192];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    data.write(buffer, 0, read);
+                    if (data.size() > MAX_MOD_INFO_BYTES) throw modInfoTooBig();
+                }
+            }
+            return data.toString("UTF-8");
+        }
+    }
+
+    private InstallLimits.ExceededException modInfoTooBig() {
+        return new InstallLimits.ExceededException("mcmod.info in " + getSource().getName()
+                + " is bigger than " + MAX_MOD_INFO_BYTES + " bytes");
+    }
 }
@@ -0,0 +1,62 @@
+package io.github.nelsoncrosby.mcci;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Helpers for content-hashing files
+ */
+public final class Hashing {
+    /** Size of the buffer used when reading files to hash */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private Hashing() {}
+
+    /**
+     * @return A fresh SHA-1 {@link MessageDigest}
+     */
+    public static MessageDigest newSha1() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            // Every JRE is required to provide SHA-1
+            throw new Error("Should never happen!", e);
+        }
+    }
+
+    /**
+     * Hash the contents of a file
+     *
+     * @param file The file to hash
+     * @return The lower-case hex SHA-1 of the file's contents
+     * @throws IOException The file couldn't be read
+     */
+    public static String sha1(File file) throws IOException {
+        MessageDigest digest = newSha1();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try (InputStream in = new FileInputStream(file)) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        return toHex(digest.digest());
+    }
+
+    /**
+     * @param bytes The bytes to format
+     * @return The lower-case hex representation of {@code bytes}
+     */
+    public static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16))
+                    .append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,468 @@
+package io.github.nelsoncrosby.mcci;
+
+import io.github.nelsoncrosby.utils.StreamUtils;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Content served over HTTP(S)
+ * <p/>
+ * Downloads go into a local cache (one directory per URL, keeping the file's
+ *  own name so that it installs under that name). Interrupted downloads are
+ *  resumed with a range request, and a complete cached copy is revalidated
+ *  with a conditional request instead of being downloaded again.
+ * <p/>
+ * Where the server supports range requests, {@link #listEntries} reads just
+ *  the zip central directory from the end of the file, which is enough to
+ *  tell what kind of content it is before downloading the rest.
+ */
+public class HttpSource {
+    /**
+     * Reads the complete file while it is being downloaded
+     */
+    public interface Consumer {
+        /**
+         * @param data The whole file, from the first byte; the download
+         *      continues as this is read. Need not be read to the end.
+         * @throws IOException The consumer failed (the download is abandoned)
+         */
+        void consume(InputStream data) throws IOException;
+    }
+
+    /** Signature of the zip end of central directory record */
+    private static final int EOCD_SIGNATURE = 0x06054b50;
+    /** Signature of the ZIP64 end of central directory locator */
+    private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+    /** Signature of a central directory file header */
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    /** The EOCD is at most this far from the end (fixed part plus the longest comment) */
+    private static final int MAX_EOCD_DISTANCE = 22 + 0xffff;
+    private static final int CONNECT_TIMEOUT = 15 * 1000;
+    private static final int READ_TIMEOUT = 60 * 1000;
+    /**
+     * One lock per cache directory, shared by every instance for the same
+     *  URL (callers create a new instance per request)
+     */
+    private static final ConcurrentMap<File, Object> CACHE_LOCKS = new ConcurrentHashMap<>();
+
+    private final URL url;
+    /** The cache directory for this URL */
+    private final File cacheDir;
+    /** The name the file will be installed as */
+    private final String name;
+    /** Guards the files in {@link #cacheDir} */
+    private final Object cacheLock;
+
+    /**
+     * @param url The URL of the content
+     * @param cacheRoot The directory that holds the download cache
+     */
+    public HttpSource(URL url, File cacheRoot) {
+        this.url = url;
+        this.cacheDir = new File(cacheRoot, Hashing.toHex(
+                Hashing.newSha1().digest(url.toString().getBytes(Charset.forName("UTF-8")))).substring(0, 16));
+        String path = url.getPath();
+        String last = path.substring(path.lastIndexOf('/') + 1);
+        this.name = last.isEmpty() ? "download.zip" : last.replaceAll("[^A-Za-z0-9._ -]", "_");
+        File lockKey = cacheDir.getAbsoluteFile();
+        CACHE_LOCKS.putIfAbsent(lockKey, new Object());
+        this.cacheLock = CACHE_LOCKS.get(lockKey);
+    }
+
+    public URL getUrl() {
+        return url;
+    }
+
+    /**
+     * @return Where the complete download lives (whether or not it exists yet)
+     */
+    public File getCachedFile() {
+        return new File(cacheDir, name);
+    }
+
+    /**
+     * Read the names of the entries in the remote zip, using range requests
+     *  to fetch only the end of central directory and the central directory
+     *
+     * @return The entry names, or {@code null} if the server doesn't support
+     *      range requests
+     * @throws IOException The request failed, or the file isn't a zip
+     */
+    public List<String> listEntries() throws IOException {
+        File cached = getCachedFile();
+        if (cached.isFile()) {
+            // No point asking the server
+            return null;
+        }
+
+        byte[] tail = fetchRange("-" + MAX_EOCD_DISTANCE);
+        if (tail == null) return null;
+        ByteBuffer buf = ByteBuffer.wrap(tail).order(ByteOrder.LITTLE_ENDIAN);
+        int eocd = -1;
+        for (int i = tail.length - 22; i >= 0; i--) {
+            if (buf.getInt(i) == EOCD_SIGNATURE) {
+                eocd = i;
+                break;
+            }
+        }
+        if (eocd == -1) throw new IOException(url + " isn't a zip file");
+
+        long cdSize = buf.getInt(eocd + 12) & 0xffffffffL;
+        long cdOffset = buf.getInt(eocd + 16) & 0xffffffffL;
+        if (cdOffset == 0xffffffffL || cdSize == 0xffffffffL) {
+            // ZIP64: the real values are in the ZIP64 end record, found via the locator
+            int locator = eocd - 20;
+            if (locator < 0 || buf.getInt(locator) != ZIP64_LOCATOR_SIGNATURE)
+                throw new IOException(url + " has a broken ZIP64 end of central directory");
+            long zip64Eocd = buf.getLong(locator + 8);
+            byte[] record = fetchRange(zip64Eocd + "-" + (zip64Eocd + 55));
+            if (record == null) return null;
+            ByteBuffer recordBuf = ByteBuffer.wrap(record).order(ByteOrder.LITTLE_ENDIAN);
+            cdSize = recordBuf.getLong(40);
+            cdOffset = recordBuf.getLong(48);
+        }
+        if (cdSize > Integer.MAX_VALUE)
+            throw new IOException(url + " has an implausibly large central directory");
+
+        byte[] cd = fetchRange(cdOffset + "-" + (cdOffset + cdSize - 1));
+        if (cd == null) return null;
+        return parseCentralDirectory(cd);
+    }
+
+    /**
+     * Detect the content type from the remote central directory, without
+     *  downloading the file
+     *
+     * @return Content of the detected type whose source is
+     *      {@link #getCachedFile()}, or {@code null} if the type can't be told
+     *      without downloading
+     * @throws IOException The request failed
+     */
+    public Content detect() throws IOException {
+        List<String> entries = listEntries();
+        if (entries == null) return null;
+        try {
+            return Content.detectContentType(getCachedFile(), entries);
+        } catch (Content.UnsupportedContentTypeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Make sure the file is in the cache, downloading (or resuming) it if
+     *  necessary
+     * <p/>
+     * If {@code consumer} is not null, it reads the file while it is being
+     *  downloaded (or from the cache, if it's already there). The SHA-1 is
+     *  computed in the same pass and stored alongside the cached file.
+     * <p/>
+     * If {@code msgLog} is not null, it is used as a logging buffer.
+     * <p/>
+     * Concurrent fetches of the same URL (from any instance) wait for each
+     *  other, so the later ones find the file already cached.
+     *
+     * @param consumer Reads the file as it downloads (or {@code null})
+     * @param msgLog The logging buffer to append to (or {@code null})
+     * @return The cached file
+     * @throws IOException The download (or the consumer) failed
+     */
+    public File fetch(Consumer consumer, Appendable msgLog) throws IOException {
+        synchronized (cacheLock) {
+            return fetchLocked(consumer, msgLog);
+        }
+    }
+
+    /**
+     * {@link #fetch}, with {@link #cacheLock} held
+     */
+    private File fetchLocked(Consumer consumer, Appendable msgLog) throws IOException {
+        cacheDir.mkdirs();
+        File cached = getCachedFile();
+        File part = new File(cacheDir, name + ".part");
+        File metaFile = new File(cacheDir, name + ".json");
+        JSONObject meta = readMeta(metaFile);
+
+        long resumeFrom = part.isFile() ? part.length() : 0;
+        if (resumeFrom > 0 && !meta.has("etag") && !meta.has("lastModified")) {
+            // Nothing to tell whether the file changed since, so the part can't be trusted
+            Files.delete(part.toPath());
+            resumeFrom = 0;
+        }
+        HttpURLConnection conn = open();
+        if (cached.isFile()) {
+            if (meta.has("etag")) conn.setRequestProperty("If-None-Match", meta.getString("etag"));
+            if (meta.has("lastModified")) conn.setRequestProperty("If-Modified-Since", meta.getString("lastModified"));
+        } else if (resumeFrom > 0) {
+            conn.setRequestProperty("Range", "bytes=" + resumeFrom + "-");
+            // Without a match, the server sends the whole (changed) file instead of a range
+            conn.setRequestProperty("If-Range",
+                    meta.has("etag") ? meta.getString("etag") : meta.getString("lastModified"));
+        }
+
+        int status = conn.getResponseCode();
+        if (status == HttpURLConnection.HTTP_NOT_MODIFIED && cached.isFile()) {
+            conn.disconnect();
+            if (msgLog != null) msgLog.append("Using cached ").append(cached.getAbsolutePath()).append('\n');
+            if (consumer != null) {
+                try (InputStream in = new FileInputStream(cached)) {
+                    consumer.consume(in);
+                }
+            }
+            return cached;
+        }
+        if (status != HttpURLConnection.HTTP_OK && status != HttpURLConnection.HTTP_PARTIAL)
+            throw new IOException("Couldn't download " + url + ": HTTP " + status);
+        if (status == HttpURLConnection.HTTP_OK) {
+            // Fresh download (server ignored or didn't get a range)
+            resumeFrom = 0;
+        } else if (msgLog != null) {
+            msgLog.append("Resuming ").append(url.toString()).append(" from byte ")
+                    .append(String.valueOf(resumeFrom)).append('\n');
+        }
+        if (msgLog != null && resumeFrom == 0)
+            msgLog.append("Downloading ").append(url.toString()).append('\n');
+
+        meta = new JSONObject();
+        if (conn.getHeaderField("ETag") != null) meta.put("etag", conn.getHeaderField("ETag"));
+        if (conn.getHeaderField("Last-Modified") != null)
+            meta.put("lastModified", conn.getHeaderField("Last-Modified"));
+        StreamUtils.writeToFile(meta.toString(), metaFile);
+
+        long expected = conn.getContentLengthLong();
+        MessageDigest digest = Hashing.newSha1();
+        try (InputStream body = conn.getInputStream();
+             OutputStream partOut = new FileOutputStream(part, resumeFrom > 0)) {
+            TeeInputStream remote = new TeeInputStream(body, partOut);
+            // The part file grows as we read, so only replay what was there before
+            InputStream whole = resumeFrom > 0
+                    ? new SequenceInputStream(new BoundedInputStream(new FileInputStream(part), resumeFrom), remote)
+                    : remote;
+            try (InputStream data = new DigestInputStream(whole, digest)) {
+                if (consumer != null) consumer.consume(data);
+                // Whatever the consumer didn't need still has to be downloaded
+                byte[] buffer = new byte[Extraction.BUFFER_SIZE];
+                while (data.read(buffer) != -1) {
+                    // Draining
+                }
+            }
+            if (expected != -1 && remote.getCount() != expected) {
+                // Keep the part file, so the next attempt can resume
+                throw new IOException("Download of " + url + " was cut short ("
+                        + remote.getCount() + " of " + expected + " bytes)");
+            }
+        } finally {
+            conn.disconnect();
+        }
+
+        Files.move(part.toPath(), cached.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        meta.put("sha1", Hashing.toHex(digest.digest()));
+        meta.put("size", cached.length());
+        StreamUtils.writeToFile(meta.toString(), metaFile);
+        return cached;
+    }
+
+    /**
+     * Forget the cached file (and any partial download of it), so the next
+     *  {@link #fetch} downloads it again unconditionally
+     *
+     * @throws IOException The cached files couldn't be deleted
+     */
+    public void evict() throws IOException {
+        synchronized (cacheLock) {
+            Files.deleteIfExists(getCachedFile().toPath());
+            Files.deleteIfExists(new File(cacheDir, name + ".part").toPath());
+            Files.deleteIfExists(new File(cacheDir, name + ".json").toPath());
+        }
+    }
+
+    /**
+     * @return The SHA-1 of the cached file, if it has been completely downloaded
+     */
+    public String getCachedSha1() {
+        synchronized (cacheLock) {
+            JSONObject meta = readMeta(new File(cacheDir, name + ".json"));
+            return getCachedFile().isFile() ? meta.optString("sha1", null) : null;
+        }
+    }
+
+    /**
+     * @return A connection to {@link #url} with our timeouts set
+     */
+    private HttpURLConnection open() throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+        conn.setConnectTimeout(CONNECT_TIMEOUT);
+        conn.setReadTimeout(READ_TIMEOUT);
+        return conn;
+    }
+
+    /**
+     * @param range A byte range in HTTP syntax, without the {@code bytes=}
+     * @return The bytes of the range, or {@code null} if the server doesn't
+     *      support range requests
+     */
+    private byte[] fetchRange(String range) throws IOException {
+        HttpURLConnection conn = open();
+        conn.setRequestProperty("Range", "bytes=" + range);
+        try {
+            int status = conn.getResponseCode();
+            if (status != HttpURLConnection.HTTP_PARTIAL) return null;
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            try (InputStream in = conn.getInputStream()) {
+                byte[] buffer = new byte[8192];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                }
+            }
+            return out.toByteArray();
+        } finally {
+            conn.disconnect();
+        }
+    }
+
+    /**
+     * @param cd The raw central directory
+     * @return The names of the entries it describes
+     */
+    private List<String> parseCentralDirectory(byte[] cd) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(cd).order(ByteOrder.LITTLE_ENDIAN);
+        Charset utf8 = Charset.forName("UTF-8");
+        List<String> names = new ArrayList<>();
+        int pos = 0;
+        while (pos + 46 <= cd.length && buf.getInt(pos) == CENTRAL_HEADER_SIGNATURE) {
+            int nameLength = buf.getShort(pos + 28) & 0xffff;
+            int extraLength = buf.getShort(pos + 30) & 0xffff;
+            int commentLength = buf.getShort(pos + 32) & 0xffff;
+            if (pos + 46 + nameLength > cd.length) break;
+            names.add(new String(cd, pos + 46, nameLength, utf8));
+            pos += 46 + nameLength + extraLength + commentLength;
+        }
+        if (names.isEmpty()) throw new IOException(url + " has an unreadable central directory");
+        return names;
+    }
+
+    private static JSONObject readMeta(File metaFile) {
+        if (!metaFile.isFile()) return new JSONObject();
+        try {
+            return new JSONObject(StreamUtils.readWholeFile(metaFile).toString());
+        } catch (IOException | JSONException e) {
+            return new JSONObject();
+        }
+    }
+
+    /**
+     * Copies everything read through it to another stream
+     */
+    private static class TeeInputStream extends FilterInputStream {
+        private final OutputStream copy;
+        private long count = 0;
+
+        TeeInputStream(InputStream in, OutputStream copy) {
+            super(in);
+            this.copy = copy;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                copy.write(b);
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            if (read > 0) {
+                copy.write(b, off, read);
+                count += read;
+            }
+            return read;
+        }
+
+        /**
+         * @return The number of bytes read (and copied) so far
+         */
+        long getCount() {
+            return count;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            // Skipped bytes still have to reach the copy
+            byte[] buffer = new byte[(int) Math.min(n, 8192)];
+            int read = read(buffer, 0, buffer.length);
+            return Math.max(read, 0);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+
+    /**
+     * Reads at most a fixed number of bytes from another stream
+     */
+    private static class BoundedInputStream extends FilterInputStream {
+        private long remaining;
+
+        BoundedInputStream(InputStream in, long limit) {
+            super(in);
+            this.remaining = limit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) return -1;
+            int b = super.read();
+            if (b != -1) remaining--;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) return -1;
+            int read = super.read(b, off, (int) Math.min(len, remaining));
+            if (read > 0) remaining -= read;
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(Math.min(n, remaining));
+            remaining -= skipped;
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+}
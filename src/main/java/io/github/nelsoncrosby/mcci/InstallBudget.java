@@ -0,0 +1,193 @@
+package io.github.nelsoncrosby.mcci;
+
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Enumeration;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * What one install (and all the content nested in it) has used of its
+ *  {@link InstallLimits}
+ * <p/>
+ * Budgets for nested content share their counters with the budget of the
+ *  content they came from, so the limits apply to the install as a whole.
+ *  Safe to use from several threads at once.
+ */
+final class InstallBudget {
+    private final InstallLimits limits;
+    private final int depth;
+    private final long started;
+    private final AtomicLong bytes;
+    private final AtomicLong entries;
+
+    /**
+     * Start a new budget, for top-level content
+     *
+     * @param limits The limits to enforce
+     */
+    InstallBudget(InstallLimits limits) {
+        this(limits, 0, System.currentTimeMillis(), new AtomicLong(), new AtomicLong());
+    }
+
+    private InstallBudget(InstallLimits limits, int depth, long started, AtomicLong bytes, AtomicLong entries) {
+        this.limits = limits;
+        this.depth = depth;
+        this.started = started;
+        this.bytes = bytes;
+        this.entries = entries;
+    }
+
+    /**
+     * @return The budget for content nested one level inside this content
+     * @throws InstallLimits.ExceededException Content may not be nested that
+     *      deeply
+     */
+    InstallBudget nested() throws InstallLimits.ExceededException {
+        if (depth + 1 > limits.getMaxDepth())
+            throw exceeded("Content is nested more than " + limits.getMaxDepth() + " levels deep");
+        return new InstallBudget(limits, depth + 1, started, bytes, entries);
+    }
+
+    /**
+     * Check the sizes {@code zf} declares in its central directory against
+     *  what's left of the budget, so that an archive that is obviously too big
+     *  is rejected before anything is extracted
+     * <p/>
+     * Nothing is charged here; the real sizes are checked as entries are
+     *  extracted, as the declared ones can lie.
+     *
+     * @param zf The archive about to be extracted
+     * @throws InstallLimits.ExceededException The archive is over the budget,
+     *      or has an unsafe entry name
+     */
+    void preflight(ZipFile zf) throws InstallLimits.ExceededException {
+        long declaredBytes = 0;
+        long declaredEntries = 0;
+        for (Enumeration<? extends ZipEntry> e = zf.entries(); e.hasMoreElements();) {
+            ZipEntry entry = e.nextElement();
+            checkName(entry.getName());
+            declaredEntries++;
+            if (entry.getSize() > 0) {
+                declaredBytes += entry.getSize();
+                checkRatio(entry.getName(), entry.getSize(), entry.getCompressedSize());
+            }
+        }
+        if (entries.get() + declaredEntries > limits.getMaxEntries())
+            throw exceeded(zf.getName() + " has " + declaredEntries + " entries, over the limit of "
+                    + limits.getMaxEntries());
+        if (bytes.get() + declaredBytes > limits.getMaxBytes())
+            throw exceeded(zf.getName() + " would inflate to " + declaredBytes + " bytes, over the limit of "
+                    + limits.getMaxBytes());
+        checkTime();
+    }
+
+    /**
+     * Charge one entry, and work out where it should be extracted to
+     *
+     * @param root The directory the archive is being extracted into
+     * @param entry The entry about to be extracted
+     * @return Where to extract {@code entry} to (always inside {@code root})
+     * @throws InstallLimits.ExceededException The install is over its entry
+     *      or time limit, or the entry's name is unsafe
+     */
+    File entry(File root, ZipEntry entry) throws InstallLimits.ExceededException {
+        checkName(entry.getName());
+        if (entries.incrementAndGet() > limits.getMaxEntries())
+            throw exceeded("More than " + limits.getMaxEntries() + " entries at " + entry.getName());
+        checkTime();
+        return new File(root, entry.getName());
+    }
+
+    /**
+     * Charge everything read from {@code in} to this budget
+     *
+     * @param in The inflated data of {@code entry} (closing the result closes
+     *      this)
+     * @param entry The entry being read
+     * @return A stream that throws {@link InstallLimits.ExceededException}
+     *      once a limit is passed
+     */
+    InputStream meter(InputStream in, final ZipEntry entry) {
+        return new FilterInputStream(in) {
+            private long read = 0;
+
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b != -1) charge(1);
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int n = super.read(b, off, len);
+                if (n > 0) charge(n);
+                return n;
+            }
+
+            private void charge(int n) throws InstallLimits.ExceededException {
+                read += n;
+                if (bytes.addAndGet(n) > limits.getMaxBytes())
+                    throw exceeded("More than " + limits.getMaxBytes() + " bytes inflated at " + entry.getName());
+                // Streamed entries with data descriptors don't know their compressed size yet
+                checkRatio(entry.getName(), read, entry.getCompressedSize());
+                checkTime();
+            }
+        };
+    }
+
+    /**
+     * Check an entry's compression ratio, once it's known and the entry is
+     *  big enough to matter
+     * <p/>
+     * Streamed entries whose compressed size only arrives after their data
+     *  should be checked again once they've been read.
+     *
+     * @param name The entry's name
+     * @param size How big the entry is (or how much has been inflated so far)
+     * @param compressedSize The entry's compressed size, or -1 if unknown
+     * @throws InstallLimits.ExceededException The ratio is over the limit
+     */
+    void checkRatio(String name, long size, long compressedSize) throws InstallLimits.ExceededException {
+        if (size <= InstallLimits.RATIO_GRACE_BYTES || compressedSize < 0) return;
+        if (size > limits.getMaxRatio() * Math.max(compressedSize, 1))
+            throw exceeded(name + " inflates more than " + limits.getMaxRatio() + " times");
+    }
+
+    /**
+     * @throws InstallLimits.ExceededException The install has run for longer
+     *      than it's allowed
+     */
+    void checkTime() throws InstallLimits.ExceededException {
+        if (System.currentTimeMillis() - started > limits.getMaxMillis())
+            throw exceeded("Took longer than " + limits.getMaxMillis() + "ms");
+    }
+
+    /**
+     * @return How much of the budget has been used, for reports
+     */
+    String report() {
+        return entries.get() + " entries, " + bytes.get() + " bytes, nested " + depth + " deep, "
+                + (System.currentTimeMillis() - started) + "ms";
+    }
+
+    /**
+     * Reject entry names that would be extracted outside their directory
+     */
+    private void checkName(String name) throws InstallLimits.ExceededException {
+        String normalised = name.replace('\\', '/');
+        boolean unsafe = normalised.startsWith("/") || normalised.matches("[A-Za-z]:.*");
+        for (String segment : normalised.split("/")) {
+            if (segment.equals("..")) unsafe = true;
+        }
+        if (unsafe) throw exceeded("Unsafe entry name " + name);
+    }
+
+    private InstallLimits.ExceededException exceeded(String reason) {
+        return new InstallLimits.ExceededException("Install aborted: " + reason + " (used " + report() + ")");
+    }
+}
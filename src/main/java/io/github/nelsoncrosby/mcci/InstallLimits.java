@@ -0,0 +1,150 @@
+package io.github.nelsoncrosby.mcci;
+
+import java.io.IOException;
+
+/**
+ * Limits on how much work installing a single piece of content may do
+ * <p/>
+ * Every archive inflated while installing (including archives nested in
+ *  collections, and items of manifests) is charged to one budget, so a zip
+ *  bomb or a collection that contains itself can't fill the disk or run
+ *  forever. The limits are:
+ * <ul>
+ *     <li>the total number of uncompressed bytes written</li>
+ *     <li>the total number of entries extracted</li>
+ *     <li>the compression ratio of any one entry (only checked once an entry
+ *      has inflated past {@link #RATIO_GRACE_BYTES}, so small, very
+ *      compressible files are fine)</li>
+ *     <li>how deeply content may be nested in other content</li>
+ *     <li>the wall-clock time of the install, counted from when the
+ *      top-level content starts installing (detecting it beforehand isn't
+ *      counted; nested content shares its parent's clock)</li>
+ * </ul>
+ * Entries whose names would place them outside the directory they're being
+ *  extracted into (absolute names, or names with {@code ..}) are always
+ *  rejected, whatever the limits.
+ * <p/>
+ * Everything but the nesting depth is unlimited by default. The defaults can
+ *  be set with the system properties {@code mcci.maxBytes},
+ *  {@code mcci.maxEntries}, {@code mcci.maxRatio}, {@code mcci.maxDepth}
+ *  and {@code mcci.maxSeconds}.
+ */
+public class InstallLimits {
+    /** Entries are allowed any compression ratio until they inflate past this */
+    public static final long RATIO_GRACE_BYTES = 1024 * 1024;
+    /** Enough for a manifest of collections of collections, not for recursion */
+    private static final int DEFAULT_MAX_DEPTH = 8;
+
+    /**
+     * Thrown when an install goes over one of its limits (or an archive has
+     *  an unsafe entry name)
+     * <p/>
+     * The message says which limit was hit and how much had been used.
+     */
+    public static class ExceededException extends IOException {
+        public ExceededException(String message) {
+            super(message);
+        }
+    }
+
+    private long maxBytes = Long.MAX_VALUE;
+    private long maxEntries = Long.MAX_VALUE;
+    private double maxRatio = Double.POSITIVE_INFINITY;
+    private int maxDepth = DEFAULT_MAX_DEPTH;
+    private long maxMillis = Long.MAX_VALUE;
+
+    /**
+     * @return Limits read from the {@code mcci.max*} system properties
+     *      (the defaults where they aren't set, or aren't numbers)
+     */
+    public static InstallLimits fromSystemProperties() {
+        InstallLimits limits = new InstallLimits();
+        Number value;
+        if ((value = numberProperty("mcci.maxBytes", true)) != null)
+            limits.setMaxBytes(value.longValue());
+        if ((value = numberProperty("mcci.maxEntries", true)) != null)
+            limits.setMaxEntries(value.longValue());
+        if ((value = numberProperty("mcci.maxRatio", false)) != null)
+            limits.setMaxRatio(value.doubleValue());
+        if ((value = numberProperty("mcci.maxDepth", true)) != null)
+            limits.setMaxDepth((int) Math.min(value.longValue(), Integer.MAX_VALUE));
+        if ((value = numberProperty("mcci.maxSeconds", true)) != null)
+            limits.setMaxMillis(value.longValue() * 1000);
+        return limits;
+    }
+
+    /**
+     * @param name A system property
+     * @param whole Whether the property must be a whole number
+     * @return The property's value, or {@code null} if it's unset or not a
+     *      number (which is reported, rather than stopping MCCI from starting)
+     */
+    private static Number numberProperty(String name, boolean whole) {
+        String value = System.getProperty(name);
+        if (value == null) return null;
+        try {
+            return whole ? (Number) Long.valueOf(value.trim()) : (Number) Double.valueOf(value.trim());
+        } catch (NumberFormatException e) {
+            System.err.println("Ignoring " + name + "=" + value + ", as it isn't "
+                    + (whole ? "a whole number" : "a number"));
+            return null;
+        }
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * @param maxBytes The most uncompressed bytes an install may write
+     */
+    public void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    public long getMaxEntries() {
+        return maxEntries;
+    }
+
+    /**
+     * @param maxEntries The most archive entries an install may extract
+     */
+    public void setMaxEntries(long maxEntries) {
+        this.maxEntries = maxEntries;
+    }
+
+    public double getMaxRatio() {
+        return maxRatio;
+    }
+
+    /**
+     * @param maxRatio The highest uncompressed to compressed size ratio any
+     *      one entry may have
+     */
+    public void setMaxRatio(double maxRatio) {
+        this.maxRatio = maxRatio;
+    }
+
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    /**
+     * @param maxDepth How many levels of content may be nested inside the
+     *      content being installed (0 allows no nesting)
+     */
+    public void setMaxDepth(int maxDepth) {
+        this.maxDepth = maxDepth;
+    }
+
+    public long getMaxMillis() {
+        return maxMillis;
+    }
+
+    /**
+     * @param maxMillis How long an install may take, in milliseconds
+     */
+    public void setMaxMillis(long maxMillis) {
+        this.maxMillis = maxMillis;
+    }
+}
@@ -0,0 +1,253 @@
+package io.github.nelsoncrosby.mcci;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A prioritised queue of jobs, where jobs sharing a key (e.g. for the same
+ *  profile) run one at a time and in submission order, while jobs with
+ *  different keys run in parallel
+ * <p/>
+ * A job may hold several keys (e.g. installing into several profiles), in
+ *  which case it waits until all of them are free.
+ */
+class JobQueue {
+    /** Finished jobs are remembered (for status queries) up to this many */
+    private static final int MAX_FINISHED_JOBS = 1000;
+
+    /**
+     * Something to be run by the queue
+     */
+    abstract static class Job {
+        enum State { QUEUED, RUNNING, DONE, FAILED }
+
+        private final List<String> keys;
+        private final int priority;
+        private long id;
+        private volatile State state = State.QUEUED;
+        private volatile String error;
+        /** Log output of the job (thread-safe, as status queries read it while it runs) */
+        protected final StringBuffer log = new StringBuffer();
+
+        /**
+         * @param key Jobs with the same key never run at the same time
+         * @param priority Higher priorities run first
+         */
+        Job(String key, int priority) {
+            this(Collections.singletonList(key), priority);
+        }
+
+        /**
+         * @param keys Jobs sharing any key never run at the same time
+         * @param priority Higher priorities run first
+         */
+        Job(List<String> keys, int priority) {
+            this.keys = new ArrayList<>(keys);
+            this.priority = priority;
+        }
+
+        /**
+         * Do the work of this job
+         *
+         * @throws Exception The job failed
+         */
+        protected abstract void run() throws Exception;
+
+        long getId() {
+            return id;
+        }
+
+        List<String> getKeys() {
+            return keys;
+        }
+
+        State getState() {
+            return state;
+        }
+
+        String getError() {
+            return error;
+        }
+
+        String getLog() {
+            return log.toString();
+        }
+    }
+
+    /** Highest priority first, then first-come first-served */
+    private static final Comparator<Job> ORDER = new Comparator<Job>() {
+        @Override
+        public int compare(Job o1, Job o2) {
+            if (o1.priority != o2.priority) return o1.priority > o2.priority ? -1 : 1;
+            return o1.id < o2.id ? -1 : (o1.id == o2.id ? 0 : 1);
+        }
+    };
+
+    private final AtomicLong nextId = new AtomicLong(1);
+    /** Jobs waiting to run */
+    private final TreeSet<Job> waiting = new TreeSet<>(ORDER);
+    /** Keys that have a job running */
+    private final Set<String> busyKeys = new HashSet<>();
+    /** Every job we still know about, in submission order */
+    private final Map<Long, Job> jobs = new LinkedHashMap<>();
+    private int finishedCount = 0;
+    /** Set by {@link #close}: no more jobs are accepted or started */
+    private boolean closed = false;
+
+    /**
+     * Start {@code threads} workers on {@code pool}, which take jobs from this
+     *  queue until the pool is shut down
+     *
+     * @param pool The pool to run workers on
+     * @param threads The number of jobs that may run at once
+     */
+    void startWorkers(ExecutorService pool, int threads) {
+        for (int i = 0; i < threads; i++) {
+            pool.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        Job job;
+                        while (!Thread.currentThread().isInterrupted() && (job = take()) != null) {
+                            try {
+                                runJob(job);
+                            } catch (Error e) {
+                                // Already recorded against the job; keep this worker going
+                                e.printStackTrace();
+                            }
+                        }
+                    } catch (InterruptedException e) {
+                        // Shutting down
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * @param job The job to queue
+     * @return The job's id
+     */
+    synchronized long submit(Job job) {
+        if (closed) throw new IllegalStateException("Not accepting jobs, as the queue is closed");
+        job.id = nextId.getAndIncrement();
+        jobs.put(job.id, job);
+        waiting.add(job);
+        notifyAll();
+        return job.id;
+    }
+
+    /**
+     * @param id A job id
+     * @return The job, or {@code null} if it's unknown (or long finished)
+     */
+    synchronized Job get(long id) {
+        return jobs.get(id);
+    }
+
+    /**
+     * Wait for a job to finish
+     *
+     * @param job The job to wait for
+     * @throws InterruptedException Interrupted while waiting
+     */
+    synchronized void await(Job job) throws InterruptedException {
+        while (job.state == Job.State.QUEUED || job.state == Job.State.RUNNING) {
+            wait();
+        }
+    }
+
+    /**
+     * Stop accepting and starting jobs
+     * <p/>
+     * Jobs that are running carry on, and workers stop as they finish. Jobs
+     *  that haven't started are failed.
+     */
+    synchronized void close() {
+        closed = true;
+        for (Job job : waiting) {
+            job.error = "Cancelled, as the queue was closed";
+            job.state = Job.State.FAILED;
+            finishedCount++;
+        }
+        waiting.clear();
+        notifyAll();
+    }
+
+    /**
+     * @return The number of jobs waiting to run
+     */
+    synchronized int waitingCount() {
+        return waiting.size();
+    }
+
+    /**
+     * Take the next job whose key isn't busy, waiting if there isn't one
+     *
+     * @return The job, or {@code null} once the queue is {@link #close closed}
+     */
+    private synchronized Job take() throws InterruptedException {
+        while (true) {
+            if (closed) return null;
+            // A job that has to wait reserves its keys, so that a later job
+            //  sharing any of them can't overtake it (and a multi-key job
+            //  isn't starved by a stream of single-key ones)
+            Set<String> blocked = new HashSet<>(busyKeys);
+            for (Iterator<Job> it = waiting.iterator(); it.hasNext();) {
+                Job job = it.next();
+                if (Collections.disjoint(blocked, job.keys)) {
+                    it.remove();
+                    busyKeys.addAll(job.keys);
+                    job.state = Job.State.RUNNING;
+                    return job;
+                }
+                blocked.addAll(job.keys);
+            }
+            wait();
+        }
+    }
+
+    /**
+     * Run a job, always freeing its keys afterwards (even if it threw an
+     *  {@link Error}, which is rethrown)
+     */
+    private void runJob(Job job) {
+        try {
+            job.run();
+            job.state = Job.State.DONE;
+        } catch (Exception | Error e) {
+            job.error = e.getMessage() + " (" + e.getClass().getName() + ")";
+            job.state = Job.State.FAILED;
+            if (e instanceof Error) throw (Error) e;
+        } finally {
+            finished(job);
+        }
+    }
+
+    private synchronized void finished(Job job) {
+        busyKeys.removeAll(job.keys);
+        finishedCount++;
+        if (finishedCount > MAX_FINISHED_JOBS) {
+            // Forget the oldest finished job
+            for (Iterator<Job> it = jobs.values().iterator(); it.hasNext();) {
+                Job old = it.next();
+                if (old.state == Job.State.DONE || old.state == Job.State.FAILED) {
+                    it.remove();
+                    finishedCount--;
+                    break;
+                }
+            }
+        }
+        notifyAll();
+    }
+}
@@ -39,6 +39,8 @@ public class LauncherConfig {
         }
     }
 
+    /** The directory MCCI keeps its own (non-profile) state and caches in */
+    public static final File MCCI_DIR = new File(DOT_MINECRAFT, "mcci");
     /** A {@link File} shortcut to the {@code .minecraft/launcher_profiles.json} file */
     public static final File LAUNCHER_PROFILES_FILE = new File(DOT_MINECRAFT, "launcher_profiles.json");
     /** The comparator used for sorting profiles */
@@ -50,6 +52,8 @@ public class LauncherConfig {
         }
     };
 
+    /** Where this config is loaded from and saved to */
+    private final File profilesFile;
     /** The JSON representation of this config */
     private JSONObject configInfo;
     /** The sorted collection of profiles in {@link Profile} form */
@@ -60,10 +64,21 @@ public class LauncherConfig {
      *  config object 
      */
     public LauncherConfig() {
+        this(LAUNCHER_PROFILES_FILE);
+    }
+
+    /**
+     * Load data from a launcher profiles file other than the real one (for
+     *  example, a scratch one for load testing) and create a config object
+     *
+     * @param profilesFile The file to load from and save to
+     */
+    public LauncherConfig(File profilesFile) {
+        this.profilesFile = profilesFile;
         String launcherConfigData;
         try {
             launcherConfigData = StreamUtils
-                    .readWholeFile(LAUNCHER_PROFILES_FILE)
+                    .readWholeFile(profilesFile)
                     .toString();
         } catch (IOException e) {
             e.printStackTrace();
@@ -84,12 +99,15 @@ public class LauncherConfig {
      * Get an iterator over {@link #profiles}
      * 
      * This iterator is guaranteed to be sorted by {@code profile.getName()}
-     *  (as that is how we have implemented it). 
+     *  (as that is how we have implemented it). It is a snapshot, so it is
+     *  safe to iterate while other threads add profiles.
      *  
      * @return The sorted iterable of profiles
      */
-    public SortedSet<Profile> getProfiles() {
-        return profiles;
+    public synchronized SortedSet<Profile> getProfiles() {
+        SortedSet<Profile> snapshot = new TreeSet<>(PROFILES_SORTER);
+        snapshot.addAll(profiles);
+        return snapshot;
     }
 
     /**
@@ -97,14 +115,47 @@ public class LauncherConfig {
      *  
      * @param profile The profile to add
      */
-    public void addProfile(Profile profile) {
+    public synchronized void addProfile(Profile profile) {
         profiles.add(profile);
     }
 
+    /**
+     * Find a profile by name
+     *
+     * @param name The name of the profile
+     * @return The matching profile, or {@code null} if there isn't one
+     */
+    public synchronized Profile getProfile(String name) {
+        for (Profile profile : profiles) {
+            if (Objects.equals(profile.getName(), name))
+                return profile;
+        }
+        return null;
+    }
+
+    /**
+     * Register a copy of {@code source} under a new name and gameDir
+     * <p/>
+     * All other launcher settings (version, Java arguments, ...) are copied.
+     *  This doesn't touch the filesystem; see {@link ProfileCloner} for that.
+     *
+     * @param source The profile to copy
+     * @param name The name of the new profile
+     * @param gameDir The gameDir of the new profile
+     * @return The new profile
+     */
+    public synchronized Profile cloneProfile(Profile source, String name, File gameDir) {
+        Profile clone = new Profile(new JSONObject(source.getProfileInfo().toString()));
+        clone.setName(name);
+        clone.setGameDir(gameDir);
+        addProfile(clone);
+        return clone;
+    }
+
     /** 
      * @return The name of the currently selected profile
      */
-    public String getSelectedProfile() {
+    public synchronized String getSelectedProfile() {
         return configInfo.getString("selectedProfile");
     }
 
@@ -113,14 +164,14 @@ public class LauncherConfig {
      *  
      * @param profileName A profile to select
      */
-    public void setSelectedProfile(String profileName) {
+    public synchronized void setSelectedProfile(String profileName) {
         configInfo.put("selectedProfile", profileName);
     }
 
     /** 
      * @return The selected {@link Profile} object
      */
-    public Profile selectedProfile() {
+    public synchronized Profile selectedProfile() {
         for (Profile profile : profiles) {
             if (Objects.equals(profile.getName(), getSelectedProfile()))
                 return profile;
@@ -137,7 +188,7 @@ public class LauncherConfig {
      *  
      * @param toSelect The {@link Profile} to select
      */
-    public void selectProfile(Profile toSelect) {
+    public synchronized void selectProfile(Profile toSelect) {
         if (!profiles.contains(toSelect)) profiles.add(toSelect);
         setSelectedProfile(toSelect.getName());
     }
@@ -146,7 +197,7 @@ public class LauncherConfig {
      * Export the config data back into JSON format and save it to
      *  {@code .minecraft/launcher_profiles.json}
      */
-    public void saveInfo() {
+    public synchronized void saveInfo() {
         JSONObject profilesJson = new JSONObject();
         for (Profile profile : profiles) {
             profilesJson.put(profile.getName(), profile.getProfileInfo());
@@ -155,7 +206,7 @@ public class LauncherConfig {
         
         String launcherConfigData = configInfo.toString();
         try {
-            StreamUtils.writeToFile(launcherConfigData, LAUNCHER_PROFILES_FILE);
+            StreamUtils.writeToFile(launcherConfigData, profilesFile);
         } catch (IOException e) {
             e.printStackTrace();
         }
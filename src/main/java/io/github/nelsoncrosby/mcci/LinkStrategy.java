@@ -0,0 +1,155 @@
+package io.github.nelsoncrosby.mcci;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileStore;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * How content files are placed into a profile
+ * <p/>
+ * Hard links are free and keep working if the original is moved, but only
+ *  work within one filesystem. Symbolic links work anywhere, but break if the
+ *  original moves. Copies always work, and cost the full size of the file.
+ */
+public enum LinkStrategy {
+    /** Hard-link, or copy if the source and destination are on different filesystems */
+    HARD_LINK,
+    /** Symbolic link to the (absolute) source */
+    SYMLINK,
+    /** Always copy */
+    COPY;
+
+    /**
+     * Receives progress updates while a file is being copied
+     */
+    public interface Progress {
+        /**
+         * @param copied The number of bytes copied so far
+         * @param total The total number of bytes being copied
+         */
+        void update(long copied, long total);
+    }
+
+    /** Copies are transferred in chunks of this size, with progress after each */
+    private static final long COPY_CHUNK_SIZE = 8 * 1024 * 1024;
+    /** Which filesystem each directory lives on (looking one up is not cheap) */
+    private static final Map<Path, FileStore> FILE_STORES = new ConcurrentHashMap<>();
+
+    /**
+     * Work out the strategy that will actually be used to place {@code src}
+     *  into {@code destDir}
+     * <p/>
+     * Hard links can't cross filesystems, so {@link #HARD_LINK} becomes
+     *  {@link #COPY} when the two are on different {@link FileStore}s. Checking
+     *  this up front is much cheaper than letting the link fail.
+     *
+     * @param src The file (or directory) to be placed
+     * @param destDir The existing directory it will be placed in
+     * @return The effective strategy
+     * @throws IOException The filesystems couldn't be determined
+     */
+    public LinkStrategy resolve(Path src, Path destDir) throws IOException {
+        if (this != HARD_LINK) return this;
+        Path srcDir = Files.isDirectory(src) ? src : src.toAbsolutePath().getParent();
+        return fileStore(srcDir).equals(fileStore(destDir)) ? HARD_LINK : COPY;
+    }
+
+    /**
+     * Place {@code src} at {@code dest} using the {@link #resolve effective}
+     *  strategy
+     *
+     * @param src The file to place
+     * @param dest Where to place it (its parent must exist)
+     * @param progress Told about copy progress (or {@code null})
+     * @return The strategy that was actually used
+     * @throws IOException Something went wrong either in creating the link or
+     *      in copying the file.
+     */
+    public LinkStrategy place(Path src, Path dest, Progress progress) throws IOException {
+        return resolve(src, dest.toAbsolutePath().getParent()).link(src, dest, progress);
+    }
+
+    /**
+     * Place {@code src} at {@code dest} using exactly this strategy (a hard
+     *  link that fails still falls back to a copy)
+     *
+     * @param src The file to place
+     * @param dest Where to place it (its parent must exist)
+     * @param progress Told about copy progress (or {@code null})
+     * @return The strategy that was actually used
+     * @throws IOException Something went wrong either in creating the link or
+     *      in copying the file.
+     */
+    public LinkStrategy link(Path src, Path dest, Progress progress) throws IOException {
+        switch (this) {
+            case HARD_LINK:
+                try {
+                    Files.createLink(dest, src);
+                    return HARD_LINK;
+                } catch (UnsupportedOperationException | FileSystemException e) {
+                    // Filesystem can't link this (or not across devices); copy instead
+                    if (Files.exists(dest)) throw e;
+                }
+                copy(src, dest, progress);
+                return COPY;
+            case SYMLINK:
+                Files.createSymbolicLink(dest, src.toAbsolutePath());
+                return SYMLINK;
+            default:
+                copy(src, dest, progress);
+                return COPY;
+        }
+    }
+
+    /**
+     * Copy a file using chunked channel transfers, which lets the OS move the
+     *  data without it passing through the Java heap
+     *
+     * @param src The file to copy
+     * @param dest The new file (must not exist)
+     * @param progress Told about progress after every chunk (or {@code null})
+     * @throws IOException The copy failed (any partial copy is removed)
+     */
+    public static void copy(Path src, Path dest, Progress progress) throws IOException {
+        boolean done = false;
+        try (FileChannel in = FileChannel.open(src, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(dest, StandardOpenOption.CREATE_NEW,
+                     StandardOpenOption.WRITE)) {
+            long size = in.size();
+            long position = 0;
+            while (position < size) {
+                long transferred = in.transferTo(position, Math.min(COPY_CHUNK_SIZE, size - position), out);
+                if (transferred <= 0) {
+                    // Source shrank underneath us
+                    break;
+                }
+                position += transferred;
+                if (progress != null) progress.update(position, size);
+            }
+            done = true;
+        } finally {
+            if (!done) Files.deleteIfExists(dest);
+        }
+        Files.setLastModifiedTime(dest, Files.getLastModifiedTime(src));
+    }
+
+    /**
+     * @param dir An existing directory
+     * @return The filesystem {@code dir} is on
+     */
+    private static FileStore fileStore(Path dir) throws IOException {
+        dir = dir.toAbsolutePath();
+        FileStore store = FILE_STORES.get(dir);
+        if (store == null) {
+            store = Files.getFileStore(dir);
+            FILE_STORES.put(dir, store);
+        }
+        return store;
+    }
+}
@@ -1,35 +1,128 @@
 package io.github.nelsoncrosby.mcci;
 
 import javax.swing.*;
+import java.io.BufferedInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.SortedSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 /**
  * 
  */
 public class MCCI {
-    private LauncherConfig launcherConfig;
+    /** The launcher config, which is loaded in the background (see {@link #config}) */
+    private final FutureTask<LauncherConfig> launcherConfig;
+    /**
+     * Whether the profiles have been changed since they were loaded (or last
+     *  saved), so that a config we only read is never written back over the
+     *  launcher's own changes
+     */
+    private volatile boolean configChanged = false;
+    /** Mod indexes, kept around by profile name so that rescans are incremental */
+    private final Map<String, ModIndex> modIndexes = new HashMap<>();
+    /** Loaded when first needed */
+    private WorldCatalogue worldCatalogue;
     
     public MCCI() {
-        launcherConfig = new LauncherConfig();
+        this(LauncherConfig.LAUNCHER_PROFILES_FILE);
+    }
+
+    /**
+     * @param launcherProfiles The launcher profiles file to use instead of
+     *      {@code .minecraft/launcher_profiles.json}
+     */
+    public MCCI(final File launcherProfiles) {
+        // Parsing launcher_profiles.json can be slow (e.g. on a network home
+        //  directory), so it happens off the calling thread
+        launcherConfig = new FutureTask<>(new Callable<LauncherConfig>() {
+            @Override
+            public LauncherConfig call() {
+                return new LauncherConfig(launcherProfiles);
+            }
+        });
+        Thread loader = new Thread(launcherConfig, "MCCI-config-loader");
+        loader.setDaemon(true);
+        loader.start();
         
         Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
             @Override
             public void run() {
-                launcherConfig.saveInfo();
+                if (launcherConfig.isDone()) saveConfig();
             }
         }));
     }
+
+    /**
+     * @return Whether the launcher config has finished loading (methods that
+     *      need it block until it has)
+     */
+    public boolean isConfigLoaded() {
+        return launcherConfig.isDone();
+    }
+
+    /**
+     * @return The launcher config, waiting for it to load if necessary
+     */
+    private LauncherConfig config() {
+        try {
+            return launcherConfig.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while loading the launcher config", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw new IllegalStateException(cause);
+        }
+    }
     
     public void newProfile(String name, File gameDir) {
-        launcherConfig.selectProfile(new Profile(name, gameDir));
+        config().selectProfile(new Profile(name, gameDir));
+        configChanged = true;
     }
     
+    /**
+     * Create a new profile as a clone of an existing one, and select it
+     * <p/>
+     * See {@link ProfileCloner} for what is linked and what is copied.
+     *
+     * @param sourceName The name of the profile to clone
+     * @param name The name of the new profile
+     * @param gameDir The gameDir of the new profile
+     * @param includeSaves Whether to copy the source profile's worlds
+     * @param msgLog The logging buffer to append to (or {@code null})
+     * @throws IOException Something went wrong in cloning the gameDir
+     * @throws IllegalArgumentException There is no profile called
+     *      {@code sourceName}, or there already is one called {@code name}
+     */
+    public void cloneProfile(String sourceName, String name, File gameDir, boolean includeSaves,
+                             Appendable msgLog) throws IOException {
+        Profile source = config().getProfile(sourceName);
+        if (source == null)
+            throw new IllegalArgumentException("No such profile: " + sourceName);
+        // Checked before copying anything, so a name clash doesn't leave a cloned gameDir behind
+        if (config().getProfile(name) != null)
+            throw new IllegalArgumentException("Profile already exists: " + name);
+        new ProfileCloner(includeSaves).cloneGameDir(source, gameDir, msgLog);
+        config().selectProfile(config().cloneProfile(source, name, gameDir));
+        configChanged = true;
+    }
+
     public List<String> getProfileNames() {
-        SortedSet<Profile> profiles = launcherConfig.getProfiles();
+        SortedSet<Profile> profiles = config().getProfiles();
         List<String> ret = new ArrayList<>(profiles.size());
         for (Profile profile : profiles) {
             ret.add(profile.getName());
@@ -38,22 +131,517 @@ public class MCCI {
     }
     
     public String selectedProfile() {
-        return launcherConfig.getSelectedProfile();
+        return config().getSelectedProfile();
     }
     
     public void selectProfile(String profileName) {
-        launcherConfig.setSelectedProfile(profileName);
+        config().setSelectedProfile(profileName);
+        configChanged = true;
     }
     
+    /**
+     * @param strategy How installed content should be placed into profiles
+     */
+    public void setLinkStrategy(LinkStrategy strategy) {
+        Content.setLinkStrategy(strategy);
+    }
+
+    /**
+     * @param limits The limits each install should be held to
+     */
+    public void setInstallLimits(InstallLimits limits) {
+        Content.setInstallLimits(limits);
+    }
+
+    /**
+     * @param repository Another directory for {@link ContentManifest} items to
+     *      be looked for in
+     */
+    public void addContentRepository(File repository) {
+        ContentManifest.addRepository(repository);
+    }
+
     public void installContentToSelectedProfile(File content, Appendable msgLog)
             throws IOException, Content.UnsupportedContentTypeException
     {
+        installContent(content, config().selectedProfile(), msgLog);
+    }
+
+    /**
+     * Install content into a profile
+     *
+     * @param content The content file
+     * @param profile The profile to install into
+     * @param msgLog The logging buffer to append to
+     * @throws IOException Something went wrong in installing
+     * @throws Content.UnsupportedContentTypeException The file isn't content
+     */
+    public void installContent(File content, Profile profile, Appendable msgLog)
+            throws IOException, Content.UnsupportedContentTypeException
+    {
+        installContent(content, Collections.singletonList(profile), msgLog);
+    }
+
+    /**
+     * Install content into several profiles at once
+     * <p/>
+     * The content is detected (and, where it has to be, decompressed) once,
+     *  and the result is placed into every profile in parallel.
+     *
+     * @param content The content file
+     * @param profiles The profiles to install into
+     * @param msgLog The logging buffer to append to
+     * @throws IOException Something went wrong in installing into at least
+     *      one profile
+     * @throws Content.UnsupportedContentTypeException The file isn't content
+     */
+    public void installContent(File content, List<Profile> profiles, Appendable msgLog)
+            throws IOException, Content.UnsupportedContentTypeException
+    {
+        msgLog.append("Detecting content type\n");
+        installDetected(Content.detectContentType(content), profiles, msgLog);
+    }
+
+    /**
+     * Detect and prepare content ahead of installing it (see
+     *  {@link PreparedContent})
+     *
+     * @param content The content file
+     * @return The prepared content
+     * @throws IOException Something went wrong in preparing
+     * @throws Content.UnsupportedContentTypeException The file isn't content
+     */
+    public PreparedContent prepareContent(File content)
+            throws IOException, Content.UnsupportedContentTypeException
+    {
+        return PreparedContent.prepare(content);
+    }
+
+    /**
+     * Install content that was prepared ahead of time into the selected profile
+     *
+     * @param prepared The content, from {@link #prepareContent}
+     * @param msgLog The logging buffer to append to
+     * @throws IOException Something went wrong in installing
+     */
+    public void installPrepared(PreparedContent prepared, Appendable msgLog) throws IOException {
+        msgLog.append("Detected ").append(prepared.describe()).append('\n');
+        installDetected(prepared.getContent(), Collections.singletonList(config().selectedProfile()), msgLog);
+    }
+
+    /**
+     * Install content whose type is already known into several profiles
+     */
+    private void installDetected(Content detected, List<Profile> profiles, Appendable msgLog) throws IOException {
+        if (detected instanceof ForgeMod) {
+            for (Profile profile : profiles) {
+                ModIndex modIndex = getModIndex(profile);
+                modIndex.scan(null);
+                for (String problem : modIndex.check((ForgeMod) detected)) {
+                    msgLog.append("Warning: ");
+                    if (profiles.size() > 1) msgLog.append(profile.getName()).append(": ");
+                    msgLog.append(problem).append('\n');
+                }
+            }
+        }
+        detected.installAll(profiles, msgLog);
+        if (detected instanceof ForgeMod || detected instanceof ContentCollection
+                || detected instanceof ContentManifest) {
+            for (Profile profile : profiles) {
+                ModIndex modIndex = getModIndex(profile);
+                modIndex.scan(msgLog);
+                modIndex.report(msgLog);
+            }
+        }
+        msgLog.append("Done!");
+    }
+
+    public void installContentFromUrl(URL url, Appendable msgLog)
+            throws IOException, Content.UnsupportedContentTypeException
+    {
+        installContentFromUrl(url, config().selectedProfile(), msgLog);
+    }
+
+    /**
+     * Install content from an HTTP(S) URL into a profile
+     * <p/>
+     * The type is detected from the remote central directory where the server
+     *  allows it. Worlds are then extracted while they download; everything
+     *  else is installed from the download cache once it's complete (which is
+     *  where it's linked from).
+     *
+     * @param url The URL of the content
+     * @param profile The profile to install into
+     * @param msgLog The logging buffer to append to
+     * @throws IOException Something went wrong in downloading or installing
+     * @throws Content.UnsupportedContentTypeException The download isn't content
+     */
+    public void installContentFromUrl(URL url, final Profile profile, final Appendable msgLog)
+            throws IOException, Content.UnsupportedContentTypeException
+    {
+        HttpSource source = new HttpSource(url, new File(LauncherConfig.MCCI_DIR, "downloads"));
         msgLog.append("Detecting content type\n");
-        Content.detectContentType(content).install(launcherConfig.selectedProfile(), msgLog);
+        Content listed = source.detect();
+        if (listed instanceof CustomMap) {
+            final CustomMap map = (CustomMap) listed;
+            source.fetch(new HttpSource.Consumer() {
+                @Override
+                public void consume(InputStream data) throws IOException {
+                    map.installFromStream(data, profile, msgLog);
+                }
+            }, msgLog);
+            msgLog.append("Done!");
+            return;
+        }
+        installContent(source.fetch(null, msgLog), profile, msgLog);
+    }
+
+    /**
+     * Install a world or content collection from a stream of zip data, using
+     *  bounded memory and without needing to seek (see
+     *  {@link StreamingInstaller})
+     *
+     * @param archive The zip data (not closed)
+     * @param name The name to install under (the world name)
+     * @param profile The profile to install into
+     * @param msgLog The logging buffer to append to
+     * @throws IOException Something went wrong in reading or installing
+     */
+    public void installStream(InputStream archive, String name, Profile profile, Appendable msgLog)
+            throws IOException
+    {
+        new StreamingInstaller(profile).install(archive, name, msgLog);
         msgLog.append("Done!");
     }
+
+    /**
+     * Install a (possibly very large) world or content collection archive by
+     *  streaming it, rather than indexing it up front
+     *
+     * @param content The archive
+     * @param profile The profile to install into
+     * @param msgLog The logging buffer to append to
+     * @throws IOException Something went wrong in reading or installing
+     */
+    public void installContentStreaming(File content, Profile profile, Appendable msgLog) throws IOException {
+        String name = content.getName();
+        int dot = name.lastIndexOf('.');
+        try (InputStream in = new BufferedInputStream(new FileInputStream(content))) {
+            installStream(in, dot == -1 ? name : name.substring(0, dot), profile, msgLog);
+        }
+    }
+
+    /**
+     * Scan the selected profile's mods and report duplicate mods and missing
+     *  dependencies
+     *
+     * @param msgLog The logging buffer to append to
+     * @return {@code true} if any problems were found
+     * @throws IOException A mod couldn't be read
+     */
+    public boolean checkSelectedProfileMods(Appendable msgLog) throws IOException {
+        return checkMods(config().selectedProfile(), msgLog);
+    }
+
+    /**
+     * Scan a profile's mods and report duplicate mods and missing dependencies
+     *
+     * @param profile The profile to check
+     * @param msgLog The logging buffer to append to
+     * @return {@code true} if any problems were found
+     * @throws IOException A mod couldn't be read
+     */
+    public boolean checkMods(Profile profile, Appendable msgLog) throws IOException {
+        ModIndex modIndex = getModIndex(profile);
+        modIndex.scan(msgLog);
+        return modIndex.report(msgLog);
+    }
+
+    /**
+     * Merge several resource packs into one pack in {@code profile}
+     *
+     * @param packs The packs to merge, lowest priority first (names are looked
+     *      up in the profile's resourcepacks directory)
+     * @param name The name of the merged pack (without {@code .zip})
+     * @param level The compression level for the merged pack
+     * @param profile The profile to write the merged pack into
+     * @param msgLog The logging buffer to append to (or {@code null})
+     * @return The merged pack
+     * @throws IOException Something went wrong in merging
+     * @throws Content.UnsupportedContentTypeException One of the files isn't a
+     *      resource pack
+     * @see ResourcePackMerger
+     */
+    public File mergeResourcePacks(List<String> packs, String name, int level, Profile profile,
+                                   Appendable msgLog)
+            throws IOException, Content.UnsupportedContentTypeException
+    {
+        File packsDir = new File(profile.getGameDir(), "resourcepacks");
+        List<ResourcePack> resourcePacks = new ArrayList<>(packs.size());
+        for (String pack : packs) {
+            File file = new File(pack);
+            if (!file.isAbsolute()) file = new File(packsDir, pack);
+            ResourcePack resourcePack = new ResourcePack(file);
+            if (!resourcePack.isValid()) throw new Content.UnsupportedContentTypeException(file);
+            resourcePacks.add(resourcePack);
+        }
+        ResourcePackMerger merger = new ResourcePackMerger(resourcePacks);
+        merger.setLevel(level);
+        return merger.merge(profile, name, msgLog);
+    }
+
+    /**
+     * Export the content installed in a profile as a collection archive
+     *
+     * @param profile The profile to export
+     * @param dest Where to write the archive
+     * @param level The compression level for files that are compressed
+     * @param msgLog The logging buffer to append to (or {@code null})
+     * @throws IOException Something went wrong in exporting
+     * @see ProfileExporter
+     */
+    public void exportProfile(Profile profile, File dest, int level, Appendable msgLog) throws IOException {
+        ProfileExporter exporter = new ProfileExporter(profile);
+        exporter.setModIndex(getModIndex(profile));
+        exporter.setLevel(level);
+        exporter.export(dest, msgLog);
+    }
+
+    /**
+     * Replace identical files across every profile with hard links to one copy
+     *
+     * @param dryRun Only report what would be reclaimed
+     * @param includeSaves Also link identical world files
+     * @param msgLog The logging buffer to append to (or {@code null})
+     * @return What was (or would be) reclaimed
+     * @throws IOException Something went wrong in scanning or linking
+     * @see Reclaimer
+     */
+    public Reclaimer.Report reclaimDiskSpace(boolean dryRun, boolean includeSaves, Appendable msgLog)
+            throws IOException {
+        return new Reclaimer(dryRun, includeSaves).reclaim(config().getProfiles(), msgLog);
+    }
+
+    /**
+     * @param world The name of a world in the selected profile
+     * @return The world's snapshots, newest first
+     * @see WorldSnapshots
+     */
+    public List<String> listWorldSnapshots(String world) {
+        return WorldSnapshots.list(config().selectedProfile(), world);
+    }
+
+    /**
+     * Put a world in the selected profile back the way it was when a snapshot
+     *  was taken (the world as it is now is snapshotted first)
+     *
+     * @param world The name of the world
+     * @param snapshot The snapshot, from {@link #listWorldSnapshots}
+     * @param msgLog The logging buffer to append to (or {@code null})
+     * @throws IOException Something went wrong in restoring
+     * @see WorldSnapshots
+     */
+    public void restoreWorldSnapshot(String world, String snapshot, Appendable msgLog) throws IOException {
+        WorldSnapshots.restore(config().selectedProfile(), world, snapshot, msgLog);
+    }
+
+    /**
+     * Read a world's metadata without installing it (remembered for archives,
+     *  so asking again is free)
+     *
+     * @param source A world archive, or an unpacked world
+     * @return The world's metadata, or {@code null} if {@code source} isn't a
+     *      world
+     * @throws IOException The world couldn't be read
+     * @see WorldCatalogue
+     */
+    public WorldInfo getWorldInfo(File source) throws IOException {
+        WorldCatalogue catalogue = getWorldCatalogue();
+        WorldInfo info = catalogue.get(source);
+        catalogue.save();
+        return info;
+    }
+
+    /**
+     * List every world in a directory of maps, with its metadata
+     *
+     * @param dir The directory to list
+     * @param msgLog The logging buffer to append to (or {@code null})
+     * @return The worlds' sources and metadata, in file name order
+     * @throws IOException The directory couldn't be listed
+     * @see WorldCatalogue
+     */
+    public Map<File, WorldInfo> listWorlds(File dir, Appendable msgLog) throws IOException {
+        return getWorldCatalogue().list(dir, msgLog);
+    }
+
+    /**
+     * @param name The name of a profile
+     * @return The profile, or {@code null} if there is no such profile
+     */
+    public Profile getProfile(String name) {
+        return config().getProfile(name);
+    }
+
+    /**
+     * Write the launcher config back out now, rather than waiting for exit
+     * <p/>
+     * Does nothing if the profiles haven't been changed since they were
+     *  loaded (or last saved).
+     */
+    public void saveConfig() {
+        if (!configChanged) return;
+        configChanged = false;
+        config().saveInfo();
+    }
+
+    private synchronized WorldCatalogue getWorldCatalogue() {
+        if (worldCatalogue == null) {
+            worldCatalogue = new WorldCatalogue(new File(LauncherConfig.MCCI_DIR, "world-catalogue.json"));
+        }
+        return worldCatalogue;
+    }
+
+    /**
+     * @param profile The profile to get the index for
+     * @return The (possibly not yet scanned) mod index for {@code profile}
+     */
+    private synchronized ModIndex getModIndex(Profile profile) {
+        ModIndex modIndex = modIndexes.get(profile.getName());
+        if (modIndex == null || !modIndex.getModsDir().equals(new File(profile.getGameDir(), "mods"))) {
+            modIndex = new ModIndex(profile);
+            modIndexes.put(profile.getName(), modIndex);
+        }
+        return modIndex;
+    }
     
     public static void main(String[] args) {
+        if (args.length > 1 && args[0].equals("--install-stream")) {
+            // Install zip data piped in on stdin: --install-stream NAME [PROFILE]
+            MCCI app = new MCCI();
+            Profile profile = args.length > 2 ? app.getProfile(args[2]) : app.config().selectedProfile();
+            if (profile == null) {
+                System.err.println("No such profile: " + args[2]);
+                System.exit(1);
+            }
+            try {
+                app.installStream(new BufferedInputStream(System.in), args[1], profile, System.out);
+                System.out.println();
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.exit(1);
+            }
+            return;
+        }
+        if (args.length > 2 && args[0].equals("--merge-packs")) {
+            // Merge resource packs in the selected profile: --merge-packs NAME [--level=N] PACK...
+            MCCI app = new MCCI();
+            int level = ResourcePackMerger.DEFAULT_LEVEL;
+            List<String> packs = new ArrayList<>();
+            for (String arg : Arrays.asList(args).subList(2, args.length)) {
+                if (arg.startsWith("--level=")) level = Integer.parseInt(arg.substring("--level=".length()));
+                else packs.add(arg);
+            }
+            try {
+                app.mergeResourcePacks(packs, args[1], level, app.config().selectedProfile(), System.out);
+            } catch (IOException | Content.UnsupportedContentTypeException e) {
+                e.printStackTrace();
+                System.exit(1);
+            }
+            return;
+        }
+        if (args.length > 1 && args[0].equals("--export")) {
+            // Export a profile as a collection: --export FILE [--level=N] [PROFILE]
+            MCCI app = new MCCI();
+            int level = ProfileExporter.DEFAULT_LEVEL;
+            String profileName = null;
+            for (String arg : Arrays.asList(args).subList(2, args.length)) {
+                if (arg.startsWith("--level=")) level = Integer.parseInt(arg.substring("--level=".length()));
+                else profileName = arg;
+            }
+            Profile profile = profileName != null ? app.getProfile(profileName) : app.config().selectedProfile();
+            if (profile == null) {
+                System.err.println("No such profile: " + profileName);
+                System.exit(1);
+            }
+            try {
+                app.exportProfile(profile, new File(args[1]), level, System.out);
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.exit(1);
+            }
+            return;
+        }
+        if (args.length > 0 && args[0].equals("--reclaim")) {
+            // Deduplicate files across profiles: --reclaim [--dry-run] [--include-saves]
+            List<String> options = Arrays.asList(args);
+            try {
+                new MCCI().reclaimDiskSpace(options.contains("--dry-run"), options.contains("--include-saves"),
+                        System.out);
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.exit(1);
+            }
+            return;
+        }
+        if (args.length > 1 && args[0].equals("--world-info")) {
+            // Describe world archives (or directories of them): --world-info PATH...
+            MCCI app = new MCCI();
+            try {
+                for (String path : Arrays.asList(args).subList(1, args.length)) {
+                    File file = new File(path);
+                    if (file.isDirectory() && !new File(file, "level.dat").isFile()) {
+                        for (Map.Entry<File, WorldInfo> world : app.listWorlds(file, System.out).entrySet()) {
+                            System.out.println(world.getKey().getName() + ": " + world.getValue());
+                        }
+                    } else {
+                        WorldInfo info = app.getWorldInfo(file);
+                        System.out.println(file.getName() + ": " + (info != null ? info : "not a world"));
+                    }
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.exit(1);
+            }
+            return;
+        }
+        if (args.length > 1 && args[0].equals("--snapshots")) {
+            // List a world's snapshots in the selected profile: --snapshots WORLD
+            for (String snapshot : new MCCI().listWorldSnapshots(args[1])) {
+                System.out.println(snapshot);
+            }
+            return;
+        }
+        if (args.length > 2 && args[0].equals("--restore-snapshot")) {
+            // Restore a world in the selected profile: --restore-snapshot WORLD SNAPSHOT
+            try {
+                new MCCI().restoreWorldSnapshot(args[1], args[2], System.out);
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.exit(1);
+            }
+            return;
+        }
+        if (args.length > 0 && args[0].equals("--daemon")) {
+            int port = args.length > 1 ? Integer.parseInt(args[1]) : MCCIDaemon.DEFAULT_PORT;
+            try {
+                new MCCIDaemon(new MCCI(), port).run();
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.exit(1);
+            }
+            return;
+        }
+
+        Thread warmUp = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Content.warmUp();
+            }
+        }, "MCCI-warm-up");
+        warmUp.setDaemon(true);
+        warmUp.start();
+
         SwingUtilities.invokeLater(new Runnable() {
             @Override
             public void run() {
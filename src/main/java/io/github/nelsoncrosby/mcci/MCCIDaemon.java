@@ -0,0 +1,375 @@
+package io.github.nelsoncrosby.mcci;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps an {@link MCCI} warm and accepts commands over a local socket
+ * <p/>
+ * The protocol is one JSON object per line in each direction. Every request
+ *  has a {@code "cmd"}; every response has {@code "ok"} and, on failure,
+ *  {@code "error"}. Commands:
+ * <ul>
+ *     <li>{@code install} - queue an install of {@code "path"} or {@code "url"}
+ *      into {@code "profile"} (default: the selected profile), or into every
+ *      profile in a {@code "profiles"} array, with an optional
+ *      {@code "priority"}; responds with the {@code "job"} id</li>
+ *     <li>{@code job} / {@code wait} - the status of job {@code "id"}
+ *      ({@code wait} blocks until it has finished)</li>
+ *     <li>{@code profiles} - the profile names and the selected profile</li>
+ *     <li>{@code select} - select {@code "profile"}</li>
+ *     <li>{@code newProfile} - create (and select) a profile {@code "name"}
+ *      in {@code "gameDir"}</li>
+ *     <li>{@code checkMods} - report mod problems in {@code "profile"}</li>
+ *     <li>{@code shutdown} - stop the daemon</li>
+ * </ul>
+ * Installs into the same profile run one at a time, in order; installs into
+ *  different profiles run in parallel.
+ * <p/>
+ * The socket only listens on the loopback interface, but that still lets any
+ *  local process (or a web page, by posting JSON lines to it) connect. So
+ *  every request must also carry a {@code "token"}: a random secret written
+ *  at startup to {@link #TOKEN_FILE}, which only the user running the daemon
+ *  can read. A request without the right token gets an error and the
+ *  connection is closed.
+ */
+public class MCCIDaemon {
+    /** The port used when none is given */
+    public static final int DEFAULT_PORT = 25590;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    /** Where the token clients must send is written (readable by this user only) */
+    public static final File TOKEN_FILE = new File(LauncherConfig.MCCI_DIR, "daemon.token");
+    /** How long running jobs get to finish once the daemon is shutting down */
+    private static final long SHUTDOWN_GRACE_MINUTES = 10;
+
+    private final MCCI app;
+    private final int port;
+    private final JobQueue queue = new JobQueue();
+    private volatile ServerSocket serverSocket;
+    /** Set by the {@code shutdown} command, once its response has been sent */
+    private volatile boolean shutdownRequested = false;
+    /** Connected clients, closed on shutdown (a blocked read can't be interrupted) */
+    private final Set<Socket> clients = Collections.synchronizedSet(new HashSet<Socket>());
+    private final File tokenFile;
+    private byte[] token;
+
+    /**
+     * @param app The application to run commands against
+     * @param port The loopback port to listen on (0 for any free port)
+     */
+    public MCCIDaemon(MCCI app, int port) {
+        this(app, port, TOKEN_FILE);
+    }
+
+    /**
+     * @param app The application to run commands against
+     * @param port The loopback port to listen on (0 for any free port)
+     * @param tokenFile Where to write the token clients must send
+     */
+    public MCCIDaemon(MCCI app, int port, File tokenFile) {
+        this.app = app;
+        this.port = port;
+        this.tokenFile = tokenFile;
+    }
+
+    /**
+     * Accept connections until a {@code shutdown} command is received
+     *
+     * @throws IOException The socket couldn't be opened
+     */
+    public void run() throws IOException {
+        token = writeToken(tokenFile);
+        ExecutorService workers = Parallel.newPool(Parallel.CPU_THREADS, "MCCI-job");
+        ExecutorService connections = Parallel.newCachedPool("MCCI-conn");
+        queue.startWorkers(workers, Parallel.CPU_THREADS);
+        try (ServerSocket server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress())) {
+            serverSocket = server;
+            System.out.println("MCCI daemon listening on " + server.getLocalSocketAddress());
+            while (!server.isClosed()) {
+                final Socket socket;
+                try {
+                    socket = server.accept();
+                } catch (IOException e) {
+                    if (server.isClosed()) break;
+                    throw e;
+                }
+                connections.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        serve(socket);
+                    }
+                });
+            }
+        } finally {
+            connections.shutdownNow();
+            synchronized (clients) {
+                for (Socket client : clients) {
+                    try {
+                        client.close();
+                    } catch (IOException ignored) {
+                        // Closing anyway
+                    }
+                }
+            }
+            // Let running installs finish rather than interrupting them mid-write
+            queue.close();
+            workers.shutdown();
+            try {
+                if (!workers.awaitTermination(SHUTDOWN_GRACE_MINUTES, TimeUnit.MINUTES)) {
+                    System.err.println("Jobs still running after " + SHUTDOWN_GRACE_MINUTES
+                            + " minutes, interrupting them");
+                    workers.shutdownNow();
+                }
+            } catch (InterruptedException e) {
+                workers.shutdownNow();
+                Thread.currentThread().interrupt();
+            }
+            Files.deleteIfExists(tokenFile.toPath());
+            app.saveConfig();
+        }
+    }
+
+    /**
+     * Write a new random token to {@code file}, readable (where the
+     *  filesystem allows) by this user only
+     *
+     * @return The token's bytes, as clients will send them
+     */
+    private static byte[] writeToken(File file) throws IOException {
+        byte[] secret = new byte[32];
+        new SecureRandom().nextBytes(secret);
+        String token = Hashing.toHex(secret);
+
+        file.getParentFile().mkdirs();
+        Path temp = new File(file.getParentFile(), "." + file.getName() + "." + System.nanoTime() + ".mcci-tmp")
+                .toPath();
+        try {
+            // Created private, so the token is never readable by others even briefly
+            Files.createFile(temp, PosixFilePermissions.asFileAttribute(
+                    PosixFilePermissions.fromString("rw-------")));
+        } catch (UnsupportedOperationException e) {
+            // Not POSIX (Windows): the user's profile directory is already private
+            Files.createFile(temp);
+        }
+        try {
+            Files.write(temp, token.getBytes(UTF8));
+            Extraction.moveIntoPlace(temp.toFile(), file);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        return token.getBytes(UTF8);
+    }
+
+    /**
+     * @return Whether {@code request} carries the token, compared in constant
+     *      time
+     */
+    private boolean isAuthorised(JSONObject request) {
+        String sent = request.optString("token", null);
+        return sent != null && MessageDigest.isEqual(token, sent.getBytes(UTF8));
+    }
+
+    /**
+     * @return The port actually being listened on (or -1 if not yet listening)
+     */
+    public int getLocalPort() {
+        ServerSocket server = serverSocket;
+        return server == null ? -1 : server.getLocalPort();
+    }
+
+    /**
+     * Handle requests on one connection until the client closes it
+     */
+    private void serve(Socket socket) {
+        clients.add(socket);
+        try (Socket s = socket;
+             BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), UTF8));
+             Writer out = new OutputStreamWriter(s.getOutputStream(), UTF8)) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.trim().isEmpty()) continue;
+                JSONObject response;
+                boolean authorised = false;
+                try {
+                    JSONObject request = new JSONObject(line);
+                    authorised = isAuthorised(request);
+                    response = authorised ? handle(request) : error("Missing or wrong token (see "
+                            + tokenFile.getAbsolutePath() + ")");
+                } catch (JSONException | IllegalArgumentException | IllegalStateException e) {
+                    response = error(e.getMessage());
+                } catch (InterruptedException e) {
+                    return;
+                }
+                out.write(response.toString());
+                out.write('\n');
+                out.flush();
+                // Don't give an unauthorised client (or an HTTP request) any more to work with
+                if (!authorised) return;
+                // Only stop listening once the client has been told it worked
+                if (shutdownRequested) serverSocket.close();
+            }
+        } catch (IOException e) {
+            // Client went away (or was disconnected by shutdown)
+        } finally {
+            clients.remove(socket);
+        }
+    }
+
+    /**
+     * @param request A parsed request
+     * @return The response
+     * @throws InterruptedException Interrupted while waiting for a job
+     */
+    private JSONObject handle(JSONObject request) throws InterruptedException {
+        String cmd = request.getString("cmd");
+        switch (cmd) {
+            case "install":
+                return install(request);
+            case "job":
+            case "wait": {
+                JobQueue.Job job = queue.get(request.getLong("id"));
+                if (job == null) return error("No such job: " + request.getLong("id"));
+                if (cmd.equals("wait")) queue.await(job);
+                return status(job);
+            }
+            case "profiles": {
+                JSONObject response = ok();
+                response.put("profiles", new JSONArray(app.getProfileNames()));
+                response.put("selected", app.selectedProfile());
+                return response;
+            }
+            case "select": {
+                String name = request.getString("profile");
+                if (app.getProfile(name) == null) return error("No such profile: " + name);
+                app.selectProfile(name);
+                app.saveConfig();
+                return ok();
+            }
+            case "newProfile": {
+                String name = request.getString("name");
+                if (app.getProfile(name) != null) return error("Profile already exists: " + name);
+                File gameDir = new File(request.getString("gameDir"));
+                gameDir.mkdirs();
+                app.newProfile(name, gameDir);
+                app.saveConfig();
+                return ok();
+            }
+            case "checkMods": {
+                Profile profile = profileFor(request);
+                StringBuilder log = new StringBuilder();
+                try {
+                    JSONObject response = ok();
+                    response.put("problems", app.checkMods(profile, log));
+                    response.put("log", log.toString());
+                    return response;
+                } catch (IOException e) {
+                    return error(e.getMessage());
+                }
+            }
+            case "shutdown":
+                shutdownRequested = true;
+                return ok();
+            default:
+                return error("Unknown command: " + cmd);
+        }
+    }
+
+    /**
+     * Queue an install job
+     */
+    private JSONObject install(JSONObject request) {
+        final List<Profile> profiles = new ArrayList<>();
+        List<String> names = new ArrayList<>();
+        JSONArray profileNames = request.optJSONArray("profiles");
+        if (profileNames != null) {
+            for (int i = 0; i < profileNames.length(); i++) {
+                String name = profileNames.getString(i);
+                Profile profile = app.getProfile(name);
+                if (profile == null) return error("No such profile: " + name);
+                profiles.add(profile);
+                names.add(name);
+            }
+        } else {
+            Profile profile = profileFor(request);
+            profiles.add(profile);
+            names.add(profile.getName());
+        }
+        final String path = request.optString("path", null);
+        final String url = request.optString("url", null);
+        if (path == null && url == null) return error("install needs a path or a url");
+        if (url != null && profiles.size() > 1) return error("url installs take a single profile");
+
+        JobQueue.Job job = new JobQueue.Job(names, request.optInt("priority", 0)) {
+            @Override
+            protected void run() throws Exception {
+                if (url != null) {
+                    app.installContentFromUrl(new URL(url), profiles.get(0), log);
+                } else {
+                    app.installContent(new File(path), profiles, log);
+                }
+            }
+        };
+        JSONObject response = ok();
+        response.put("job", queue.submit(job));
+        return response;
+    }
+
+    /**
+     * @return The profile named by the request, or the selected profile
+     */
+    private Profile profileFor(JSONObject request) {
+        String name = request.optString("profile", null);
+        if (name == null) name = app.selectedProfile();
+        Profile profile = app.getProfile(name);
+        if (profile == null) throw new IllegalArgumentException("No such profile: " + name);
+        return profile;
+    }
+
+    private static JSONObject status(JobQueue.Job job) {
+        JSONObject response = ok();
+        response.put("id", job.getId());
+        response.put("profiles", new JSONArray(job.getKeys()));
+        response.put("state", job.getState().name().toLowerCase());
+        response.put("log", job.getLog());
+        if (job.getError() != null) response.put("error", job.getError());
+        return response;
+    }
+
+    private static JSONObject ok() {
+        JSONObject response = new JSONObject();
+        response.put("ok", true);
+        return response;
+    }
+
+    private static JSONObject error(String message) {
+        JSONObject response = new JSONObject();
+        response.put("ok", false);
+        response.put("error", message);
+        return response;
+    }
+}
@@ -0,0 +1,357 @@
+package io.github.nelsoncrosby.mcci;
+
+import io.github.nelsoncrosby.utils.StreamUtils;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+
+/**
+ * An index of the Forge mods installed into a profile
+ * <p/>
+ * Scanning reads every jar's {@code mcmod.info} in parallel. Results are
+ *  cached by the SHA-1 of each jar and persisted in the profile's
+ *  {@link Profile#getStateDir() state directory}, and files whose size and
+ *  modification time haven't changed aren't re-hashed, so rescans only cost
+ *  a directory listing plus whatever actually changed.
+ */
+public class ModIndex {
+    /** Mod ids that are provided by the loader itself rather than by a jar */
+    private static final Set<String> PROVIDED_MOD_IDS = new HashSet<>(Arrays.asList(
+            "forge", "fml", "mcp", "minecraft"
+    ));
+
+    /**
+     * What we know about one file in the {@code mods} directory
+     */
+    public static class Entry {
+        private final File file;
+        private final long size;
+        private final long modified;
+        private final String sha1;
+        private final List<ForgeMod.ModInfo> mods;
+
+        Entry(File file, long size, long modified, String sha1, List<ForgeMod.ModInfo> mods) {
+            this.file = file;
+            this.size = size;
+            this.modified = modified;
+            this.sha1 = sha1;
+            this.mods = Collections.unmodifiableList(mods);
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        public String getSha1() {
+            return sha1;
+        }
+
+        /**
+         * @return The mods declared by this file (empty if it has no usable
+         *      {@code mcmod.info})
+         */
+        public List<ForgeMod.ModInfo> getMods() {
+            return mods;
+        }
+    }
+
+    /** The profile being indexed */
+    private final Profile profile;
+    /** Where the index is persisted */
+    private final File indexFile;
+    /** The result of the last scan, by file name */
+    private SortedMap<String, Entry> entries = new TreeMap<>();
+    /** Parsed metadata, by the SHA-1 of the jar it came from */
+    private final Map<String, List<ForgeMod.ModInfo>> modsByHash = new HashMap<>();
+
+    /**
+     * Create an index for a profile, loading any previously persisted state
+     *
+     * @param profile The profile whose {@code mods} directory to index
+     */
+    public ModIndex(Profile profile) {
+        this.profile = profile;
+        this.indexFile = new File(profile.getStateDir(), "modindex.json");
+        load();
+    }
+
+    /**
+     * @return The directory being indexed
+     */
+    public File getModsDir() {
+        return new File(profile.getGameDir(), "mods");
+    }
+
+    /**
+     * Bring the index up to date with the {@code mods} directory
+     * <p/>
+     * If {@code msgLog} is not null, it is used as a logging buffer.
+     *
+     * @param msgLog The logging buffer to append to (or {@code null})
+     * @throws IOException A jar couldn't be read
+     */
+    public synchronized void scan(Appendable msgLog) throws IOException {
+        File[] files = getModsDir().listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File f) {
+                String name = f.getName();
+                return f.isFile() && (name.endsWith(".jar") || name.endsWith(".zip"));
+            }
+        });
+        if (files == null) files = new File[0];
+
+        final Map<String, Entry> previous = entries;
+        List<Callable<Entry>> tasks = new ArrayList<>(files.length);
+        for (final File file : files) {
+            tasks.add(new Callable<Entry>() {
+                @Override
+                public Entry call() throws IOException {
+                    return indexFile(file, previous.get(file.getName()));
+                }
+            });
+        }
+        List<Entry> scanned = Parallel.invokeAll(tasks, Parallel.IO_THREADS);
+
+        SortedMap<String, Entry> updated = new TreeMap<>();
+        int changed = 0;
+        for (Entry entry : scanned) {
+            updated.put(entry.getFile().getName(), entry);
+            if (previous.get(entry.getFile().getName()) != entry) changed++;
+        }
+        entries = updated;
+        if (msgLog != null)
+            msgLog.append("Indexed ").append(String.valueOf(updated.size())).append(" mod files (")
+                    .append(String.valueOf(changed)).append(" changed)\n");
+        save();
+    }
+
+    /**
+     * Index a single file, reusing whatever we already know about it
+     *
+     * @param file The file to index
+     * @param known The entry from the last scan (or {@code null})
+     * @return The up-to-date entry
+     * @throws IOException The file couldn't be read
+     */
+    private Entry indexFile(File file, Entry known) throws IOException {
+        long size = file.length();
+        long modified = file.lastModified();
+        if (known != null && known.size == size && known.modified == modified) {
+            return known;
+        }
+
+        String sha1 = Hashing.sha1(file);
+        List<ForgeMod.ModInfo> mods;
+        synchronized (modsByHash) {
+            mods = modsByHash.get(sha1);
+        }
+        if (mods == null) {
+            mods = new ForgeMod(file).readModInfo();
+            synchronized (modsByHash) {
+                modsByHash.put(sha1, mods);
+            }
+        }
+        return new Entry(file, size, modified, sha1, mods);
+    }
+
+    /**
+     * @return The result of the last scan, sorted by file name
+     */
+    public synchronized List<Entry> getEntries() {
+        return new ArrayList<>(entries.values());
+    }
+
+    /**
+     * @return Every mod id that is declared by more than one file, with the
+     *      files declaring it
+     */
+    public synchronized SortedMap<String, List<File>> getDuplicates() {
+        SortedMap<String, List<File>> providers = getProviders();
+        SortedMap<String, List<File>> duplicates = new TreeMap<>();
+        for (Map.Entry<String, List<File>> provider : providers.entrySet()) {
+            if (provider.getValue().size() > 1) duplicates.put(provider.getKey(), provider.getValue());
+        }
+        return duplicates;
+    }
+
+    /**
+     * @return Every mod id that has dependencies no installed file provides,
+     *      with the missing mod ids
+     */
+    public synchronized SortedMap<String, Set<String>> getMissingDependencies() {
+        Set<String> provided = getProviders().keySet();
+        SortedMap<String, Set<String>> missing = new TreeMap<>();
+        for (Entry entry : entries.values()) {
+            for (ForgeMod.ModInfo mod : entry.getMods()) {
+                for (String dep : mod.getDependencies()) {
+                    if (!provided.contains(dep) && !PROVIDED_MOD_IDS.contains(dep.toLowerCase())) {
+                        if (!missing.containsKey(mod.getModId()))
+                            missing.put(mod.getModId(), new TreeSet<String>());
+                        missing.get(mod.getModId()).add(dep);
+                    }
+                }
+            }
+        }
+        return missing;
+    }
+
+    /**
+     * Check what problems installing {@code candidate} would introduce
+     *
+     * @param candidate A mod that is about to be installed
+     * @return Human-readable descriptions of the problems (empty if none)
+     * @throws IOException The candidate couldn't be read
+     */
+    public synchronized List<String> check(ForgeMod candidate) throws IOException {
+        List<String> problems = new ArrayList<>();
+        String candidateName = candidate.getSource().getName();
+        Set<String> provided = new HashSet<>();
+        for (Entry entry : entries.values()) {
+            // Installing over the same file name replaces it, so it can't conflict
+            if (entry.getFile().getName().equals(candidateName)) continue;
+            for (ForgeMod.ModInfo mod : entry.getMods()) provided.add(mod.getModId());
+        }
+
+        List<ForgeMod.ModInfo> candidateMods = candidate.readModInfo();
+        for (ForgeMod.ModInfo mod : candidateMods) provided.add(mod.getModId());
+        for (ForgeMod.ModInfo mod : candidateMods) {
+            for (Entry entry : entries.values()) {
+                if (entry.getFile().getName().equals(candidateName)) continue;
+                for (ForgeMod.ModInfo existing : entry.getMods()) {
+                    if (existing.getModId().equals(mod.getModId())) {
+                        problems.add(mod.getModId() + " " + mod.getVersion() + " is already installed as "
+                                + entry.getFile().getName() + " (" + existing.getVersion() + ")");
+                    }
+                }
+            }
+            for (String dep : mod.getDependencies()) {
+                if (!provided.contains(dep) && !PROVIDED_MOD_IDS.contains(dep.toLowerCase()))
+                    problems.add(mod.getModId() + " requires " + dep + ", which isn't installed");
+            }
+        }
+        return problems;
+    }
+
+    /**
+     * Write any duplicates or missing dependencies found by the last scan
+     *
+     * @param msgLog The logging buffer to append to
+     * @return {@code true} if any problems were reported
+     * @throws IOException {@code msgLog} failed
+     */
+    public synchronized boolean report(Appendable msgLog) throws IOException {
+        boolean problems = false;
+        for (Map.Entry<String, List<File>> duplicate : getDuplicates().entrySet()) {
+            problems = true;
+            msgLog.append("Warning: ").append(duplicate.getKey()).append(" is installed more than once:");
+            for (File file : duplicate.getValue()) {
+                msgLog.append(' ').append(file.getName());
+            }
+            msgLog.append('\n');
+        }
+        for (Map.Entry<String, Set<String>> missing : getMissingDependencies().entrySet()) {
+            problems = true;
+            msgLog.append("Warning: ").append(missing.getKey()).append(" is missing dependencies:");
+            for (String dep : missing.getValue()) {
+                msgLog.append(' ').append(dep);
+            }
+            msgLog.append('\n');
+        }
+        return problems;
+    }
+
+    /**
+     * @return The files providing each mod id
+     */
+    private SortedMap<String, List<File>> getProviders() {
+        SortedMap<String, List<File>> providers = new TreeMap<>();
+        for (Entry entry : entries.values()) {
+            for (ForgeMod.ModInfo mod : entry.getMods()) {
+                if (!providers.containsKey(mod.getModId()))
+                    providers.put(mod.getModId(), new ArrayList<File>());
+                List<File> files = providers.get(mod.getModId());
+                if (!files.contains(entry.getFile())) files.add(entry.getFile());
+            }
+        }
+        return providers;
+    }
+
+    /**
+     * Load the persisted index, if there is a usable one
+     */
+    private void load() {
+        if (!indexFile.isFile()) return;
+        try {
+            JSONObject json = new JSONObject(StreamUtils.readWholeFile(indexFile).toString());
+            JSONObject modsJson = json.getJSONObject("mods");
+            for (Object keyObj : modsJson.keySet()) {
+                String sha1 = (String) keyObj;
+                JSONArray modList = modsJson.getJSONArray(sha1);
+                List<ForgeMod.ModInfo> mods = new ArrayList<>(modList.length());
+                for (int i = 0; i < modList.length(); i++) {
+                    mods.add(ForgeMod.ModInfo.fromJson(modList.getJSONObject(i)));
+                }
+                modsByHash.put(sha1, mods);
+            }
+            JSONObject filesJson = json.getJSONObject("files");
+            for (Object keyObj : filesJson.keySet()) {
+                String name = (String) keyObj;
+                JSONObject fileJson = filesJson.getJSONObject(name);
+                String sha1 = fileJson.getString("sha1");
+                if (!modsByHash.containsKey(sha1)) continue;
+                entries.put(name, new Entry(new File(getModsDir(), name), fileJson.getLong("size"),
+                        fileJson.getLong("modified"), sha1, modsByHash.get(sha1)));
+            }
+        } catch (IOException | JSONException e) {
+            // A broken index just means a full rescan
+            entries.clear();
+            modsByHash.clear();
+        }
+    }
+
+    /**
+     * Persist the index (only keeping metadata for files that still exist)
+     */
+    private void save() {
+        JSONObject filesJson = new JSONObject();
+        JSONObject modsJson = new JSONObject();
+        for (Entry entry : entries.values()) {
+            JSONObject fileJson = new JSONObject();
+            fileJson.put("size", entry.size);
+            fileJson.put("modified", entry.modified);
+            fileJson.put("sha1", entry.sha1);
+            filesJson.put(entry.getFile().getName(), fileJson);
+
+            JSONArray modList = new JSONArray();
+            for (ForgeMod.ModInfo mod : entry.getMods()) modList.put(mod.toJson());
+            modsJson.put(entry.sha1, modList);
+        }
+        JSONObject json = new JSONObject();
+        json.put("files", filesJson);
+        json.put("mods", modsJson);
+
+        indexFile.getParentFile().mkdirs();
+        try {
+            StreamUtils.writeToFile(json.toString(), indexFile);
+        } catch (IOException e) {
+            // Only a cache; the next scan will just be slower
+            e.printStackTrace();
+        }
+    }
+}
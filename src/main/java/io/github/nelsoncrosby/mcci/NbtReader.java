@@ -0,0 +1,231 @@
+package io.github.nelsoncrosby.mcci;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Pulls a few values out of an NBT file (like {@code level.dat}) as it
+ *  streams past, without building the whole tag tree
+ * <p/>
+ * Only the compounds on the way to a wanted value are descended into;
+ *  everything else is skipped. Reading stops as soon as every wanted value
+ *  has been found, or the compound holding all those still missing has ended
+ *  (so values that are only sometimes there, like either of two places a
+ *  value may be, don't make it read on). A large file (like a
+ *  {@code level.dat} with a player's inventory in it) usually isn't read to
+ *  the end.
+ */
+final class NbtReader {
+    private static final int TAG_END = 0;
+    private static final int TAG_BYTE = 1;
+    private static final int TAG_SHORT = 2;
+    private static final int TAG_INT = 3;
+    private static final int TAG_LONG = 4;
+    private static final int TAG_FLOAT = 5;
+    private static final int TAG_DOUBLE = 6;
+    private static final int TAG_BYTE_ARRAY = 7;
+    private static final int TAG_STRING = 8;
+    private static final int TAG_LIST = 9;
+    private static final int TAG_COMPOUND = 10;
+    private static final int TAG_INT_ARRAY = 11;
+    private static final int TAG_LONG_ARRAY = 12;
+
+    /** The deepest nesting the game itself accepts */
+    private static final int MAX_DEPTH = 512;
+    /** How much (uncompressed) data will be read before giving up */
+    private static final long MAX_BYTES = 64L * 1024 * 1024;
+
+    private final DataInputStream in;
+    private final Set<String> wanted;
+    private final Map<String, Object> found = new HashMap<>();
+
+    private NbtReader(InputStream in, Set<String> wanted) {
+        this.in = new DataInputStream(limit(in));
+        this.wanted = wanted;
+    }
+
+    /**
+     * Read values out of an NBT file
+     * <p/>
+     * Values are named by their path from the root compound, joined with
+     *  {@code '.'} (like {@code "Data.LevelName"}). Numbers come back as
+     *  {@link Number}s of the tag's own type, and strings as {@link String}s.
+     *  Lists and arrays can't be read.
+     *
+     * @param nbt The file's bytes, gzipped (as {@code level.dat} is) or not
+     * @param paths The values to read
+     * @return The values that were found, by path
+     * @throws IOException The data couldn't be read, or isn't NBT
+     */
+    static Map<String, Object> read(InputStream nbt, Set<String> paths) throws IOException {
+        BufferedInputStream buffered = new BufferedInputStream(nbt);
+        buffered.mark(2);
+        boolean gzipped = buffered.read() == 0x1f && buffered.read() == 0x8b;
+        buffered.reset();
+        NbtReader reader = new NbtReader(gzipped ? new GZIPInputStream(buffered) : buffered, paths);
+
+        if (reader.in.readUnsignedByte() != TAG_COMPOUND) throw new IOException("Not an NBT compound");
+        reader.in.skipBytes(reader.in.readUnsignedShort());
+        reader.readCompound("", 1);
+        return reader.found;
+    }
+
+    /**
+     * Read (or skip) the tags of a compound, up to its end tag
+     *
+     * @param prefix The compound's path followed by {@code '.'}, or {@code ""}
+     *      for the root
+     * @return {@code false} if there's nothing left to find, and reading
+     *      stopped partway through
+     */
+    private boolean readCompound(String prefix, int depth) throws IOException {
+        if (depth > MAX_DEPTH) throw new IOException("NBT nested too deeply");
+        int type;
+        while ((type = in.readUnsignedByte()) != TAG_END) {
+            String path = prefix + in.readUTF();
+            if (type == TAG_COMPOUND && isOnTheWay(path)) {
+                if (!readCompound(path + ".", depth + 1) || allMissingInside(path + ".")) return false;
+            } else if (wanted.contains(path) && type != TAG_COMPOUND) {
+                found.put(path, readValue(type));
+                if (found.size() == wanted.size()) return false;
+            } else {
+                skip(type, depth);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return Whether any wanted value is inside the compound at {@code path}
+     */
+    private boolean isOnTheWay(String path) {
+        String prefix = path + ".";
+        for (String want : wanted) {
+            if (want.startsWith(prefix)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * @param prefix The path of a compound that has been read, followed by
+     *      {@code '.'}
+     * @return Whether every wanted value that wasn't found would have been in
+     *      that compound, so can't be anywhere else
+     */
+    private boolean allMissingInside(String prefix) {
+        for (String want : wanted) {
+            if (!found.containsKey(want) && !want.startsWith(prefix)) return false;
+        }
+        return true;
+    }
+
+    private Object readValue(int type) throws IOException {
+        switch (type) {
+            case TAG_BYTE: return in.readByte();
+            case TAG_SHORT: return in.readShort();
+            case TAG_INT: return in.readInt();
+            case TAG_LONG: return in.readLong();
+            case TAG_FLOAT: return in.readFloat();
+            case TAG_DOUBLE: return in.readDouble();
+            case TAG_STRING: return in.readUTF();
+            default: throw new IOException("Can't read an NBT tag of type " + type + " as a value");
+        }
+    }
+
+    /**
+     * Skip over a tag's payload
+     */
+    private void skip(int type, int depth) throws IOException {
+        switch (type) {
+            case TAG_BYTE: skipFully(1); break;
+            case TAG_SHORT: skipFully(2); break;
+            case TAG_INT: case TAG_FLOAT: skipFully(4); break;
+            case TAG_LONG: case TAG_DOUBLE: skipFully(8); break;
+            case TAG_BYTE_ARRAY: skipFully(length()); break;
+            case TAG_STRING: skipFully(in.readUnsignedShort()); break;
+            case TAG_INT_ARRAY: skipFully(4L * length()); break;
+            case TAG_LONG_ARRAY: skipFully(8L * length()); break;
+            case TAG_LIST: {
+                if (depth > MAX_DEPTH) throw new IOException("NBT nested too deeply");
+                int elementType = in.readUnsignedByte();
+                int length = length();
+                for (int i = 0; i < length; i++) {
+                    skip(elementType, depth + 1);
+                }
+                break;
+            }
+            case TAG_COMPOUND: {
+                if (depth > MAX_DEPTH) throw new IOException("NBT nested too deeply");
+                int childType;
+                while ((childType = in.readUnsignedByte()) != TAG_END) {
+                    skipFully(in.readUnsignedShort());
+                    skip(childType, depth + 1);
+                }
+                break;
+            }
+            default:
+                throw new IOException("Unknown NBT tag type " + type);
+        }
+    }
+
+    private int length() throws IOException {
+        int length = in.readInt();
+        if (length < 0) throw new IOException("Negative NBT length " + length);
+        return length;
+    }
+
+    private void skipFully(long count) throws IOException {
+        while (count > 0) {
+            int skipped = in.skipBytes((int) Math.min(count, Integer.MAX_VALUE));
+            if (skipped <= 0) {
+                // skipBytes gives up early on some streams; read to be sure it's the end
+                if (in.read() < 0) throw new IOException("Unexpected end of NBT data");
+                skipped = 1;
+            }
+            count -= skipped;
+        }
+    }
+
+    /**
+     * @return {@code in}, failing once more than {@link #MAX_BYTES} have been
+     *      read from it
+     */
+    private static InputStream limit(InputStream in) {
+        return new FilterInputStream(in) {
+            private long read = 0;
+
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b >= 0) count(1);
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int n = super.read(b, off, len);
+                if (n > 0) count(n);
+                return n;
+            }
+
+            @Override
+            public long skip(long n) throws IOException {
+                long skipped = super.skip(n);
+                count(skipped);
+                return skipped;
+            }
+
+            private void count(long n) throws IOException {
+                read += n;
+                if (read > MAX_BYTES) throw new IOException("NBT data is over " + MAX_BYTES + " bytes");
+            }
+        };
+    }
+}
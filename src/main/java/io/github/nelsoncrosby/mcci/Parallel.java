@@ -0,0 +1,128 @@
+package io.github.nelsoncrosby.mcci;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Small helpers for running filesystem work across a pool of threads
+ */
+final class Parallel {
+    /** Default number of threads for I/O-heavy work (hashing, linking) */
+    static final int IO_THREADS = Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+    /** Default number of threads for CPU-heavy work (compression) */
+    static final int CPU_THREADS = Runtime.getRuntime().availableProcessors();
+
+    private Parallel() {}
+
+    /**
+     * Create a pool of daemon threads, so that a stuck task never keeps the
+     *  application alive
+     *
+     * @param threads The number of threads in the pool
+     * @param name Prefix for the thread names
+     * @return The new pool
+     */
+    static ExecutorService newPool(int threads, String name) {
+        return Executors.newFixedThreadPool(threads, daemonThreads(name));
+    }
+
+    /**
+     * Create a pool of daemon threads that grows as needed (e.g. one thread
+     *  per connection)
+     *
+     * @param name Prefix for the thread names
+     * @return The new pool
+     */
+    static ExecutorService newCachedPool(String name) {
+        return Executors.newCachedThreadPool(daemonThreads(name));
+    }
+
+    private static ThreadFactory daemonThreads(final String name) {
+        return new ThreadFactory() {
+            private int count = 0;
+
+            @Override
+            public synchronized Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, name + "-" + (++count));
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    /**
+     * Run all {@code tasks} on a temporary pool and wait for them to finish
+     *
+     * @param tasks The tasks to run
+     * @param threads The maximum number of tasks to run at once
+     * @return The results, in the same order as {@code tasks}
+     * @throws IOException The first failure of any task (once all tasks have
+     *      finished)
+     */
+    static <T> List<T> invokeAll(List<? extends Callable<T>> tasks, int threads) throws IOException {
+        if (tasks.isEmpty()) return new ArrayList<>();
+        ExecutorService pool = newPool(Math.min(threads, tasks.size()), "MCCI-worker");
+        try {
+            return invokeAll(pool, tasks);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Run all {@code tasks} on {@code pool} and wait for them to finish
+     *
+     * @param pool The pool to run on
+     * @param tasks The tasks to run
+     * @return The results, in the same order as {@code tasks}
+     * @throws IOException The first failure of any task (once all tasks have
+     *      finished)
+     */
+    static <T> List<T> invokeAll(ExecutorService pool, List<? extends Callable<T>> tasks) throws IOException {
+        List<Future<T>> futures = new ArrayList<>(tasks.size());
+        for (Callable<T> task : tasks) {
+            futures.add(pool.submit(task));
+        }
+        List<T> results = new ArrayList<>(futures.size());
+        IOException failure = null;
+        for (Future<T> future : futures) {
+            try {
+                results.add(await(future));
+            } catch (IOException e) {
+                if (failure == null) failure = e;
+                results.add(null);
+            }
+        }
+        if (failure != null) throw failure;
+        return results;
+    }
+
+    /**
+     * Wait for a future, unwrapping its failure
+     *
+     * @param future The future to wait for
+     * @return The future's result
+     * @throws IOException The task failed (non-I/O failures are wrapped)
+     */
+    static <T> T await(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for a task", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw new IOException(cause);
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package io.github.nelsoncrosby.mcci;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Enumeration;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+
+/**
+ * Content that has been detected (and {@link Content#prepare prepared}) ahead
+ *  of installing it, for example while the user is still choosing a profile
+ * <p/>
+ * It should either be installed (see {@link MCCI#installPrepared}) or
+ *  {@link #discard() discarded}. If the file changes in the meantime, it is
+ *  no longer {@link #isCurrent() current} and should be prepared again.
+ */
+public class PreparedContent {
+    private final File file;
+    private final long length;
+    private final long modified;
+    private final long size;
+    private final long unpackedSize;
+    private final Content content;
+
+    private PreparedContent(File file, long length, long modified, long size, long unpackedSize,
+                            Content content) {
+        this.file = file;
+        this.length = length;
+        this.modified = modified;
+        this.size = size;
+        this.unpackedSize = unpackedSize;
+        this.content = content;
+    }
+
+    /**
+     * Detect and prepare the content in {@code file}
+     *
+     * @param file The content file
+     * @return The prepared content
+     * @throws IOException Something went wrong in preparing
+     * @throws Content.UnsupportedContentTypeException The file isn't content
+     */
+    public static PreparedContent prepare(File file) throws IOException, Content.UnsupportedContentTypeException {
+        file = file.getAbsoluteFile();
+        long length = file.length();
+        long modified = file.lastModified();
+        Content content = Content.detectContentType(file);
+        content.prepare(null);
+        long size = file.isDirectory() ? treeSize(file) : length;
+        return new PreparedContent(file, length, modified, size, unpackedSize(file), content);
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public Content getContent() {
+        return content;
+    }
+
+    /**
+     * @return The size of the content file (or of every file in it, if it's
+     *      a directory)
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * @return The total size of the archive's entries, or -1 if the content
+     *      isn't an archive
+     */
+    public long getUnpackedSize() {
+        return unpackedSize;
+    }
+
+    /**
+     * @return Whether the file is unchanged since it was prepared
+     */
+    public boolean isCurrent() {
+        return file.length() == length && file.lastModified() == modified;
+    }
+
+    /**
+     * Throw away the preparation, as the content won't be installed
+     */
+    public void discard() {
+        content.discard();
+    }
+
+    /**
+     * @return The type and size of the content, for people (e.g.
+     *      {@code "Forge mod, 1.2 MB (3.4 MB unpacked)"})
+     */
+    public String describe() {
+        StringBuilder description = new StringBuilder(content.getTypeName())
+                .append(", ").append(formatSize(size));
+        if (unpackedSize > size) description.append(" (").append(formatSize(unpackedSize)).append(" unpacked)");
+        return description.toString();
+    }
+
+    /**
+     * @return {@code bytes} in the largest unit that keeps it above 1
+     */
+    static String formatSize(long bytes) {
+        if (bytes < 1024) return bytes + " B";
+        String[] units = {"KB", "MB", "GB", "TB"};
+        double value = bytes;
+        int unit = -1;
+        while (value >= 1024 && unit < units.length - 1) {
+            value /= 1024;
+            unit++;
+        }
+        return String.format("%.1f %s", value, units[unit]);
+    }
+
+    /**
+     * @return The total size of every file under {@code dir}
+     */
+    private static long treeSize(File dir) throws IOException {
+        final long[] total = {0};
+        Files.walkFileTree(dir.toPath(), new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                total[0] += attrs.size();
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return total[0];
+    }
+
+    /**
+     * @return The total size of the entries in {@code file}, from its central
+     *      directory, or -1 if it isn't an archive (including if it's unpacked)
+     */
+    private static long unpackedSize(File file) {
+        if (file.isDirectory()) return -1;
+        try (ZipFile zf = new ZipFile(file)) {
+            long total = 0;
+            for (Enumeration<? extends ZipEntry> e = zf.entries(); e.hasMoreElements();) {
+                total += Math.max(0, e.nextElement().getSize());
+            }
+            return total;
+        } catch (ZipException e) {
+            return -1;
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+}
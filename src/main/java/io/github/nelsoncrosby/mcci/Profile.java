@@ -49,9 +49,19 @@ public class Profile {
      * @return The gameDir for this profile
      */
     public File getGameDir() {
+        // The launcher uses .minecraft itself for profiles without one
+        if (!profileInfo.has("gameDir")) return LauncherConfig.DOT_MINECRAFT;
         return new File(profileInfo.getString("gameDir"));
     }
 
+    /**
+     * @return The directory MCCI keeps its own per-profile state in (indexes,
+     *      caches); lives inside the gameDir so it moves with the profile
+     */
+    public File getStateDir() {
+        return new File(getGameDir(), ".mcci");
+    }
+
     /**
      * @param gameDir The new gameDir for this profile
      */
@@ -0,0 +1,97 @@
+package io.github.nelsoncrosby.mcci;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Clones a profile's gameDir as a hard-link tree
+ * <p/>
+ * Jars, resource packs, libraries and the like are never modified in place by
+ *  the game, so the clone shares them with the original. Files the game
+ *  rewrites (options, configs, saves) are copied so that the two profiles
+ *  don't step on each other.
+ */
+public class ProfileCloner {
+    /** Top-level files the game writes to */
+    static final Set<String> MUTABLE_FILES = new HashSet<>(Arrays.asList(
+            "options.txt", "optionsof.txt", "optionsshaders.txt", "servers.dat", "usercache.json"
+    ));
+    /** Top-level directories whose contents the game writes to */
+    static final Set<String> MUTABLE_DIRS = new HashSet<>(Arrays.asList(
+            "config", ".mcci"
+    ));
+    /** Top-level directories that are only ever output, and not worth cloning */
+    private static final Set<String> TRANSIENT_DIRS = new HashSet<>(Arrays.asList(
+            "logs", "crash-reports", "screenshots"
+    ));
+    /**
+     * Directories in the {@link Profile#getStateDir() state directory} that
+     *  only make sense for the profile they're in (world snapshots, and
+     *  half-finished streaming installs)
+     */
+    private static final Set<String> PRIVATE_STATE_DIRS = new HashSet<>(Arrays.asList(
+            "snapshots", "staging"
+    ));
+
+    private final boolean includeSaves;
+
+    /**
+     * @param includeSaves Whether to copy the source profile's worlds (they
+     *      are left out of the clone otherwise)
+     */
+    public ProfileCloner(boolean includeSaves) {
+        this.includeSaves = includeSaves;
+    }
+
+    /**
+     * Clone {@code source}'s gameDir into {@code destDir}
+     * <p/>
+     * If {@code msgLog} is not null, it is used as a logging buffer.
+     *
+     * @param source The profile to clone
+     * @param destDir The gameDir for the clone (must be empty or not exist)
+     * @param msgLog The logging buffer to append to (or {@code null})
+     * @throws IOException Something went wrong either in creating a link or in
+     *      copying a file.
+     */
+    public void cloneGameDir(Profile source, File destDir, Appendable msgLog) throws IOException {
+        File srcDir = source.getGameDir().getAbsoluteFile();
+        destDir = destDir.getAbsoluteFile();
+        String[] existing = destDir.list();
+        if (existing != null && existing.length > 0)
+            throw new IOException(destDir.getAbsolutePath() + " already exists and isn't empty");
+
+        if (msgLog != null)
+            msgLog.append("Cloning ").append(srcDir.getAbsolutePath())
+                    .append(" to ").append(destDir.getAbsolutePath()).append('\n');
+        TreeLinker.Result result = TreeLinker.mirror(srcDir.toPath(), destDir.toPath(),
+                new TreeLinker.Policy() {
+                    @Override
+                    public TreeLinker.Action actionFor(Path relative, boolean directory) {
+                        String top = relative.getName(0).toString();
+                        if (relative.getNameCount() == 1) {
+                            if (TRANSIENT_DIRS.contains(top)) return TreeLinker.Action.SKIP;
+                            if (top.equals("saves") && !includeSaves) return TreeLinker.Action.SKIP;
+                        }
+                        if (top.equals(".mcci")) {
+                            // Decided per child, as nothing under a COPY directory is asked about
+                            if (relative.getNameCount() == 1) return TreeLinker.Action.LINK;
+                            return PRIVATE_STATE_DIRS.contains(relative.getName(1).toString())
+                                    ? TreeLinker.Action.SKIP : TreeLinker.Action.COPY;
+                        }
+                        if (top.equals("saves") || MUTABLE_DIRS.contains(top)) return TreeLinker.Action.COPY;
+                        if (relative.getNameCount() == 1 && MUTABLE_FILES.contains(top))
+                            return TreeLinker.Action.COPY;
+                        return TreeLinker.Action.LINK;
+                    }
+                }, Parallel.IO_THREADS);
+        if (msgLog != null)
+            msgLog.append("Linked ").append(String.valueOf(result.getLinked()))
+                    .append(" files, copied ").append(String.valueOf(result.getCopied()))
+                    .append(" (").append(String.valueOf(result.getCopiedBytes())).append(" bytes)\n");
+    }
+}
@@ -0,0 +1,294 @@
+package io.github.nelsoncrosby.mcci;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Exports the content installed in a profile as a {@link ContentCollection}
+ *  archive, which MCCI can install into another profile
+ * <p/>
+ * The archive holds one nested archive per item: each mod in {@code mods},
+ *  each pack in {@code resourcepacks} and each world in {@code saves}
+ *  (anything that isn't detected as that kind of content is left out, as it
+ *  couldn't be installed from the collection anyway). Mods and packs that are
+ *  already archives are stored as they are. Unpacked packs and worlds are
+ *  archived on the way out, written straight into the export as nested
+ *  archives, with their files deflated in parallel on every core while one
+ *  thread writes them out in order. Only a bounded number of bytes is in
+ *  flight at once, so the largest profiles export in little memory.
+ */
+public class ProfileExporter {
+    /** The compression level used unless {@link #setLevel} says otherwise */
+    public static final int DEFAULT_LEVEL = 6;
+
+    /** How many bytes of files may be read (and compressed) ahead of the writer */
+    private static final long WINDOW_BYTES = 128L * 1024 * 1024;
+    /** Files bigger than this are stored from disk rather than read into memory */
+    private static final long MAX_IN_MEMORY = 32L * 1024 * 1024;
+    /** Files that are already compressed, so aren't worth deflating again */
+    private static final List<String> COMPRESSED_SUFFIXES = Arrays.asList(".jar", ".zip", ".png", ".ogg");
+
+    /**
+     * A file to add to the archive
+     */
+    private static class Item {
+        final String name;
+        final File file;
+
+        Item(String name, File file) {
+            this.name = name;
+            this.file = file;
+        }
+    }
+
+    /**
+     * A file being compressed, or waiting to be stored from disk
+     */
+    private static class Pending {
+        final Item item;
+        final long size;
+        /** The compressed file, or {@code null} if it's to be stored */
+        final Future<ZipWriter.Compressed> future;
+
+        Pending(Item item, long size, Future<ZipWriter.Compressed> future) {
+            this.item = item;
+            this.size = size;
+            this.future = future;
+        }
+    }
+
+    private final Profile profile;
+    private ModIndex modIndex;
+    private int level = DEFAULT_LEVEL;
+
+    /**
+     * @param profile The profile to export
+     */
+    public ProfileExporter(Profile profile) {
+        this.profile = profile;
+    }
+
+    /**
+     * @param modIndex An index of the profile's mods, so mods it already knows
+     *      about don't have to be detected again (or {@code null})
+     */
+    public void setModIndex(ModIndex modIndex) {
+        this.modIndex = modIndex;
+    }
+
+    /**
+     * @param level The {@link java.util.zip.Deflater} level for files that
+     *      are compressed (0 stores everything)
+     */
+    public void setLevel(int level) {
+        this.level = level;
+    }
+
+    /**
+     * Write the export
+     * <p/>
+     * The archive is written under a temporary name next to {@code dest} and
+     *  renamed into place when it's complete.
+     * <p/>
+     * If {@code msgLog} is not null, it is used as a logging buffer.
+     *
+     * @param dest Where to write the archive
+     * @param msgLog The logging buffer to append to (or {@code null})
+     * @throws IOException Something went wrong in reading the profile or in
+     *      writing the archive
+     */
+    public void export(File dest, Appendable msgLog) throws IOException {
+        File gameDir = profile.getGameDir();
+        List<Item> archives = new ArrayList<>();
+        List<Item> unpacked = new ArrayList<>();
+        collectMods(archives, unpacked, msgLog);
+        collect(new File(gameDir, "resourcepacks"), ResourcePack.class, archives, unpacked, msgLog);
+        collect(new File(gameDir, "saves"), CustomMap.class, archives, unpacked, msgLog);
+
+        dest = dest.getAbsoluteFile();
+        dest.getParentFile().mkdirs();
+        File temp = new File(dest.getParentFile(), "." + dest.getName() + "." + System.nanoTime() + ".mcci-tmp");
+        ExecutorService pool = Parallel.newPool(Parallel.CPU_THREADS, "MCCI-export");
+        boolean done = false;
+        try {
+            try (ZipWriter writer = new ZipWriter(temp)) {
+                if (msgLog != null)
+                    msgLog.append("Storing ").append(String.valueOf(archives.size())).append(" archives\n");
+                writeAll(writer, archives, pool);
+                for (Item item : unpacked) {
+                    List<Item> files = listFiles(item.file);
+                    if (msgLog != null)
+                        msgLog.append("Archiving ").append(item.file.getPath()).append(" (")
+                                .append(String.valueOf(files.size())).append(" files)\n");
+                    try (ZipWriter nested = writer.nested(item.name)) {
+                        writeAll(nested, files, pool);
+                    }
+                }
+            }
+            Extraction.moveIntoPlace(temp, dest);
+            done = true;
+        } finally {
+            pool.shutdownNow();
+            if (!done) Files.deleteIfExists(temp.toPath());
+        }
+        if (msgLog != null)
+            msgLog.append("Exported ").append(profile.getName()).append(" to ").append(dest.getPath())
+                    .append(" (").append(PreparedContent.formatSize(dest.length())).append(")\n");
+    }
+
+    /**
+     * Find the mods to export, from the mod index where there is one
+     */
+    private void collectMods(List<Item> archives, List<Item> unpacked, Appendable msgLog) throws IOException {
+        File modsDir = new File(profile.getGameDir(), "mods");
+        if (modIndex == null) {
+            collect(modsDir, ForgeMod.class, archives, unpacked, msgLog);
+            return;
+        }
+        modIndex.scan(msgLog);
+        for (ModIndex.Entry entry : modIndex.getEntries()) {
+            File file = entry.getFile();
+            if (!entry.getMods().isEmpty() || isContent(file, ForgeMod.class, msgLog)) {
+                archives.add(new Item("mods/" + file.getName(), file));
+            }
+        }
+    }
+
+    /**
+     * Find the items of one type in a directory of the profile
+     *
+     * @param dir The directory to look in
+     * @param type The type of content that belongs there
+     * @param archives Where to add items that are archives
+     * @param unpacked Where to add items that are directories (named as the
+     *      archives they'll become)
+     */
+    private void collect(File dir, Class<? extends Content> type, List<Item> archives, List<Item> unpacked,
+                         Appendable msgLog) throws IOException {
+        File[] children = dir.listFiles();
+        if (children == null) return;
+        Arrays.sort(children);
+        String prefix = dir.getName() + "/";
+        for (File child : children) {
+            if (child.getName().startsWith(".") || !isContent(child, type, msgLog)) continue;
+            if (child.isDirectory()) {
+                unpacked.add(new Item(prefix + child.getName() + ".zip", child));
+            } else {
+                archives.add(new Item(prefix + child.getName(), child));
+            }
+        }
+    }
+
+    /**
+     * @return Whether {@code file} is detected as {@code type}
+     */
+    private static boolean isContent(File file, Class<? extends Content> type, Appendable msgLog)
+            throws IOException {
+        try {
+            if (type.isInstance(Content.detectContentType(file))) return true;
+        } catch (Content.UnsupportedContentTypeException e) {
+            // Logged below
+        }
+        if (msgLog != null)
+            msgLog.append(file.getPath()).append(" isn't content that can be installed, leaving it out\n");
+        return false;
+    }
+
+    /**
+     * @return Every file under {@code dir}, named relative to it, in a stable
+     *      order
+     */
+    private static List<Item> listFiles(File dir) throws IOException {
+        final Path root = dir.toPath();
+        final List<Item> files = new ArrayList<>();
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                // Held open (and locked) by a running game, and recreated by it anyway
+                if (attrs.isRegularFile() && !file.getFileName().toString().equals("session.lock")) {
+                    String name = root.relativize(file).toString().replace(File.separatorChar, '/');
+                    files.add(new Item(name, file.toFile()));
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        Collections.sort(files, new Comparator<Item>() {
+            @Override
+            public int compare(Item a, Item b) {
+                return a.name.compareTo(b.name);
+            }
+        });
+        return files;
+    }
+
+    /**
+     * Write {@code items} to {@code writer} in order, preparing them on
+     *  {@code pool} as far ahead as {@link #WINDOW_BYTES} allows
+     */
+    private void writeAll(ZipWriter writer, List<Item> items, ExecutorService pool) throws IOException {
+        Deque<Pending> window = new ArrayDeque<>();
+        long windowBytes = 0;
+        try {
+            for (final Item item : items) {
+                long size = item.file.length();
+                long cost = stores(item) ? 0 : size;
+                while (!window.isEmpty() && windowBytes + cost > WINDOW_BYTES) {
+                    Pending head = window.removeFirst();
+                    windowBytes -= head.size;
+                    writeOne(writer, head);
+                }
+                // Stored files are read (and checksummed) once, as they're written
+                window.addLast(new Pending(item, cost, stores(item) ? null
+                        : pool.submit(new Callable<ZipWriter.Compressed>() {
+                    @Override
+                    public ZipWriter.Compressed call() throws IOException {
+                        return ZipWriter.compress(Files.readAllBytes(item.file.toPath()), level);
+                    }
+                })));
+                windowBytes += cost;
+            }
+            while (!window.isEmpty()) {
+                writeOne(writer, window.removeFirst());
+            }
+        } finally {
+            for (Pending pending : window) {
+                if (pending.future != null) pending.future.cancel(true);
+            }
+        }
+    }
+
+    private static void writeOne(ZipWriter writer, Pending pending) throws IOException {
+        if (pending.future != null) {
+            writer.write(pending.item.name, Parallel.await(pending.future));
+        } else {
+            writer.store(pending.item.name, pending.item.file);
+        }
+    }
+
+    /**
+     * @return Whether {@code item} is stored from disk as it is
+     */
+    private static boolean stores(Item item) {
+        if (item.file.length() > MAX_IN_MEMORY) return true;
+        String name = item.name.toLowerCase();
+        for (String suffix : COMPRESSED_SUFFIXES) {
+            if (name.endsWith(suffix)) return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,347 @@
+package io.github.nelsoncrosby.mcci;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileStore;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+
+/**
+ * Finds byte-identical files across profiles and replaces the duplicates with
+ *  hard links to a single copy
+ * <p/>
+ * Files are grouped by device and size first, so only files that could
+ *  possibly be identical are hashed. Files that are already hard links of each
+ *  other are recognised and never hashed twice. Each duplicate is replaced
+ *  atomically: a link is made under a temporary name next to it and renamed
+ *  over it, so nothing ever sees the file missing.
+ * <p/>
+ * Only files the game never writes to are linked, since a write to one link
+ *  changes every profile's copy at once: the files and directories
+ *  {@link ProfileCloner} copies rather than links (options, configs, ...)
+ *  are skipped, and so are files written in place (like region files, see
+ *  {@link WorldSnapshots}). Worlds are left alone entirely unless asked for.
+ * <p/>
+ * If a group of duplicates can't be linked (e.g. the files are on
+ *  different devices after all), it is logged and skipped.
+ */
+public class Reclaimer {
+    /** Directories (at the top of a gameDir) that are never touched */
+    private static final Set<String> EXCLUDED_DIRS = new HashSet<>(Arrays.asList(
+            ".mcci", "logs", "crash-reports"
+    ));
+    /** Files smaller than this aren't worth a link */
+    private static final long DEFAULT_MIN_SIZE = 4096;
+
+    /**
+     * The outcome of a reclaim (or a dry run of one)
+     */
+    public static class Report {
+        private long scannedFiles;
+        private long hashedFiles;
+        private long duplicateGroups;
+        private long relinkedFiles;
+        private long bytesSaved;
+
+        public long getScannedFiles() {
+            return scannedFiles;
+        }
+
+        public long getHashedFiles() {
+            return hashedFiles;
+        }
+
+        /**
+         * @return The number of sets of identical files found
+         */
+        public long getDuplicateGroups() {
+            return duplicateGroups;
+        }
+
+        /**
+         * @return The number of files that were (or would be) replaced by links
+         */
+        public long getRelinkedFiles() {
+            return relinkedFiles;
+        }
+
+        /**
+         * @return The number of bytes that were (or would be) freed
+         */
+        public long getBytesSaved() {
+            return bytesSaved;
+        }
+    }
+
+    /**
+     * A group of paths that are all the same file (inode)
+     */
+    private static class Inode {
+        final List<Path> paths = new ArrayList<>();
+        final long size;
+        final long modified;
+        /** The device the file is on, once looked up (see {@link #deviceOf}) */
+        Object device;
+
+        Inode(long size, long modified) {
+            this.size = size;
+            this.modified = modified;
+        }
+    }
+
+    private final boolean dryRun;
+    private final boolean includeSaves;
+    private long minSize = DEFAULT_MIN_SIZE;
+
+    /**
+     * @param dryRun Only report what would be reclaimed
+     * @param includeSaves Also link identical world files (see the class docs)
+     */
+    public Reclaimer(boolean dryRun, boolean includeSaves) {
+        this.dryRun = dryRun;
+        this.includeSaves = includeSaves;
+    }
+
+    /**
+     * @param minSize Files smaller than this are ignored
+     */
+    public void setMinSize(long minSize) {
+        this.minSize = minSize;
+    }
+
+    /**
+     * Reclaim space across the gameDirs of {@code profiles}
+     * <p/>
+     * If {@code msgLog} is not null, it is used as a logging buffer.
+     *
+     * @param profiles The profiles to scan (gameDirs inside another profile's
+     *      gameDir are only scanned once)
+     * @param msgLog The logging buffer to append to (or {@code null})
+     * @return What was (or would be) reclaimed
+     * @throws IOException Something went wrong in scanning, hashing or linking
+     */
+    public Report reclaim(Collection<Profile> profiles, Appendable msgLog) throws IOException {
+        final Report report = new Report();
+
+        // Scan every distinct gameDir in parallel
+        List<Callable<Map<Object, Inode>>> scans = new ArrayList<>();
+        for (final Path root : distinctRoots(profiles)) {
+            scans.add(new Callable<Map<Object, Inode>>() {
+                @Override
+                public Map<Object, Inode> call() throws IOException {
+                    return scan(root);
+                }
+            });
+        }
+        Map<Object, Inode> inodes = new HashMap<>();
+        for (Map<Object, Inode> scanned : Parallel.invokeAll(scans, Parallel.IO_THREADS)) {
+            for (Map.Entry<Object, Inode> entry : scanned.entrySet()) {
+                Inode known = inodes.get(entry.getKey());
+                if (known == null) {
+                    inodes.put(entry.getKey(), entry.getValue());
+                } else {
+                    known.paths.addAll(entry.getValue().paths);
+                }
+            }
+        }
+        for (Inode inode : inodes.values()) report.scannedFiles += inode.paths.size();
+
+        // Only inodes sharing a device and size can be duplicates
+        Map<List<Object>, List<Inode>> bySize = new HashMap<>();
+        for (Inode inode : inodes.values()) {
+            inode.device = deviceOf(inode.paths.get(0));
+            List<Object> key = Arrays.<Object>asList(inode.device, inode.size);
+            if (!bySize.containsKey(key)) bySize.put(key, new ArrayList<Inode>());
+            bySize.get(key).add(inode);
+        }
+        final List<Inode> candidates = new ArrayList<>();
+        for (List<Inode> group : bySize.values()) {
+            if (group.size() > 1) candidates.addAll(group);
+        }
+
+        List<Callable<String>> hashes = new ArrayList<>(candidates.size());
+        for (final Inode inode : candidates) {
+            hashes.add(new Callable<String>() {
+                @Override
+                public String call() throws IOException {
+                    return Hashing.sha1(inode.paths.get(0).toFile());
+                }
+            });
+        }
+        List<String> hashed = Parallel.invokeAll(hashes, Parallel.IO_THREADS);
+        report.hashedFiles = hashed.size();
+
+        Map<List<Object>, List<Inode>> byHash = new LinkedHashMap<>();
+        for (int i = 0; i < candidates.size(); i++) {
+            Inode inode = candidates.get(i);
+            List<Object> key = Arrays.<Object>asList(inode.device, hashed.get(i));
+            if (!byHash.containsKey(key)) byHash.put(key, new ArrayList<Inode>());
+            byHash.get(key).add(inode);
+        }
+
+        for (List<Inode> group : byHash.values()) {
+            if (group.size() < 2) continue;
+            report.duplicateGroups++;
+            try {
+                relinkGroup(group, report, msgLog);
+            } catch (IOException e) {
+                if (msgLog != null)
+                    msgLog.append("Couldn't link ").append(group.get(0).paths.get(0).toString())
+                            .append(" and its duplicates, skipping them: ").append(e.getMessage()).append('\n');
+            }
+        }
+
+        if (msgLog != null)
+            msgLog.append(dryRun ? "Would reclaim " : "Reclaimed ").append(String.valueOf(report.bytesSaved))
+                    .append(" bytes (").append(String.valueOf(report.relinkedFiles)).append(" files in ")
+                    .append(String.valueOf(report.duplicateGroups)).append(" groups; scanned ")
+                    .append(String.valueOf(report.scannedFiles)).append(", hashed ")
+                    .append(String.valueOf(report.hashedFiles)).append(")\n");
+        return report;
+    }
+
+    /**
+     * Replace every file in {@code group} with a link to the copy that already
+     *  has the most links, counting what was (or would be) done in
+     *  {@code report}
+     *
+     * @throws IOException A file couldn't be linked (the rest of the group is
+     *      left as it is)
+     */
+    private void relinkGroup(List<Inode> group, Report report, Appendable msgLog) throws IOException {
+        Inode keep = group.get(0);
+        for (Inode inode : group) {
+            if (inode.paths.size() > keep.paths.size()) keep = inode;
+        }
+        for (Inode inode : group) {
+            if (inode == keep) continue;
+            int relinked = 0;
+            for (Path path : inode.paths) {
+                if (msgLog != null)
+                    msgLog.append(dryRun ? "Would link " : "Linking ").append(path.toString())
+                            .append(" to ").append(keep.paths.get(0).toString()).append('\n');
+                if (dryRun || relink(keep.paths.get(0), path, inode)) {
+                    relinked++;
+                    report.relinkedFiles++;
+                }
+            }
+            if (relinked == inode.paths.size()) report.bytesSaved += inode.size;
+        }
+    }
+
+    /**
+     * @return Something equal for (and only for) paths on the same device:
+     *      the device number where the platform has one, or else the
+     *      {@link FileStore}
+     */
+    private static Object deviceOf(Path path) throws IOException {
+        try {
+            return Files.getAttribute(path, "unix:dev");
+        } catch (UnsupportedOperationException | IllegalArgumentException e) {
+            return Files.getFileStore(path);
+        }
+    }
+
+    /**
+     * Replace {@code path} with a hard link to {@code keep}, unless it has
+     *  changed since it was scanned
+     *
+     * @return Whether the path was replaced
+     */
+    private static boolean relink(Path keep, Path path, Inode scanned) throws IOException {
+        BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+        if (attrs.size() != scanned.size || attrs.lastModifiedTime().toMillis() != scanned.modified)
+            return false;
+        Path temp = path.resolveSibling("." + path.getFileName() + "." + System.nanoTime() + ".mcci-tmp");
+        Files.createLink(temp, keep);
+        try {
+            Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        return true;
+    }
+
+    /**
+     * @return The gameDirs of {@code profiles}, leaving out any that are inside
+     *      another (they get scanned as part of it)
+     */
+    private static List<Path> distinctRoots(Collection<Profile> profiles) throws IOException {
+        List<Path> roots = new ArrayList<>();
+        for (Profile profile : profiles) {
+            File gameDir = profile.getGameDir();
+            if (gameDir.isDirectory()) roots.add(gameDir.getCanonicalFile().toPath());
+        }
+        List<Path> distinct = new ArrayList<>();
+        for (Path root : roots) {
+            boolean nested = false;
+            for (Path other : roots) {
+                if (!other.equals(root) && root.startsWith(other)) nested = true;
+            }
+            if (!nested && !distinct.contains(root)) distinct.add(root);
+        }
+        return distinct;
+    }
+
+    /**
+     * Find every candidate file under {@code root}, grouped by inode
+     */
+    private Map<Object, Inode> scan(final Path root) throws IOException {
+        final Map<Object, Inode> inodes = new HashMap<>();
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                String name = dir.getFileName() == null ? "" : dir.getFileName().toString();
+                if (!dir.equals(root) && (EXCLUDED_DIRS.contains(name)
+                        || ProfileCloner.MUTABLE_DIRS.contains(name)
+                        || (name.equals("saves") && !includeSaves))) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (!attrs.isRegularFile() || attrs.size() < minSize) return FileVisitResult.CONTINUE;
+                String name = file.getFileName().toString();
+                if (name.endsWith(".mcci-tmp") || ProfileCloner.MUTABLE_FILES.contains(name)
+                        || WorldSnapshots.isWrittenInPlace(file)) {
+                    return FileVisitResult.CONTINUE;
+                }
+                // Without inode numbers, treat every path as its own file
+                Object key = attrs.fileKey() != null ? attrs.fileKey() : file;
+                Inode inode = inodes.get(key);
+                if (inode == null) {
+                    inode = new Inode(attrs.size(), attrs.lastModifiedTime().toMillis());
+                    inodes.put(key, inode);
+                }
+                inode.paths.add(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException exc) {
+                // Unreadable files just aren't candidates
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return inodes;
+    }
+}
@@ -2,6 +2,7 @@ package io.github.nelsoncrosby.mcci;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Collection;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipException;
 import java.util.zip.ZipFile;
@@ -30,6 +31,14 @@ public class ResourcePack extends Content {
         super(source);
     }
 
+    /**
+     * @return A name for this type of content, for people
+     */
+    @Override
+    public String getTypeName() {
+        return "Resource pack";
+    }
+
     /**
      * @return The subdirectory of a profile that this content should go into
      */
@@ -42,12 +51,14 @@ public class ResourcePack extends Content {
      * Test if the content at {@link #source} is of this type
      * 
      * This test relies on the fact that a resource pack has the file
-     *  "pack.mcmeta" in the top-level of the archive.
+     *  "pack.mcmeta" in the top-level of the archive (or of the directory, for
+     *  an unpacked pack).
      *
      * @return {@code true} if this object represents valid content of this type
      */
     @Override
     public boolean isValid() {
+        if (getSource().isDirectory()) return new File(getSource(), "pack.mcmeta").isFile();
         try (ZipFile zf = new ZipFile(getSource())) {
             // pack.mcmeta needs to exist in all resource packs
             ZipEntry packMetaEntry = zf.getEntry("pack.mcmeta");
@@ -61,4 +72,15 @@ public class ResourcePack extends Content {
             return false;
         }
     }
+
+    /**
+     * Test if an archive with the given entries looks like this type
+     *
+     * @param entryNames The names of every entry in the archive
+     * @return {@code true} if {@code "pack.mcmeta"} is one of the entries
+     */
+    @Override
+    protected boolean matchesEntryNames(Collection<String> entryNames) {
+        return entryNames.contains("pack.mcmeta");
+    }
 }
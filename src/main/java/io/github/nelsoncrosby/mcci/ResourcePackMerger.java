@@ -0,0 +1,495 @@
+package io.github.nelsoncrosby.mcci;
+
+import io.github.nelsoncrosby.utils.StreamUtils;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Combines several resource packs into one, so the game only has to open and
+ *  resolve a single pack
+ * <p/>
+ * Packs (archives or unpacked directories) are given in the order the game
+ *  would apply them: where two packs have the same asset, the later one wins.
+ *  Every asset is hashed, and each distinct asset is only compressed once
+ *  however many paths it appears at. The merged {@code pack.mcmeta} takes its
+ *  {@code pack_format} from the last pack, and the union of every pack's
+ *  languages.
+ * <p/>
+ * Merging again is incremental. The hashes of every pack's assets are kept in
+ *  the profile's state directory, so only packs that have changed (by size
+ *  and modification time; for a directory, the total size and latest
+ *  modification time of its files) are read again, and assets that were
+ *  already in the previous merged pack are copied out of it still compressed.
+ *  Only new assets are compressed.
+ */
+public class ResourcePackMerger {
+    /** Resource packs are read far more often than they're merged */
+    public static final int DEFAULT_LEVEL = Deflater.BEST_COMPRESSION;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final String PACK_META = "pack.mcmeta";
+    /** How many assets are compressed at once (bounds the memory held) */
+    private static final int BATCH_SIZE = 256;
+
+    /**
+     * One asset of an input pack
+     */
+    private static class Asset {
+        final String sha1;
+        final long size;
+
+        Asset(String sha1, long size) {
+            this.sha1 = sha1;
+            this.size = size;
+        }
+    }
+
+    /**
+     * An input pack and the assets in it
+     */
+    private static class Input {
+        final ResourcePack pack;
+        final long size;
+        final long modified;
+        final Map<String, Asset> assets;
+
+        Input(ResourcePack pack, long size, long modified, Map<String, Asset> assets) {
+            this.pack = pack;
+            this.size = size;
+            this.modified = modified;
+            this.assets = assets;
+        }
+    }
+
+    private final List<ResourcePack> packs;
+    private int level = DEFAULT_LEVEL;
+
+    /**
+     * @param packs The packs to merge, lowest priority first
+     */
+    public ResourcePackMerger(List<ResourcePack> packs) {
+        this.packs = new ArrayList<>(packs);
+    }
+
+    /**
+     * @param level The {@link Deflater} level to compress assets with (0 stores
+     *      them uncompressed)
+     */
+    public void setLevel(int level) {
+        this.level = level;
+    }
+
+    /**
+     * Merge the packs into {@code resourcepacks/<name>.zip} in {@code target}
+     * <p/>
+     * The merged pack replaces any earlier one atomically. It has to be
+     *  selected in the game in place of the packs it combines.
+     * <p/>
+     * If {@code msgLog} is not null, it is used as a logging buffer.
+     *
+     * @param target The profile to write the merged pack into
+     * @param name The name of the merged pack (without {@code .zip})
+     * @param msgLog The logging buffer to append to (or {@code null})
+     * @return The merged pack
+     * @throws IOException A pack couldn't be read, or the merged pack couldn't
+     *      be written
+     */
+    public File merge(Profile target, String name, Appendable msgLog) throws IOException {
+        File dir = new File(target.getGameDir(), "resourcepacks").getAbsoluteFile();
+        dir.mkdirs();
+        File output = new File(dir, name + ".zip");
+        File stateFile = new File(target.getStateDir(), "packs/" + name + ".json");
+        JSONObject state = readState(stateFile);
+
+        // Blobs in the previous merged pack can only be reused if it's untouched
+        Map<String, ZipWriter.Written> previousBlobs = new HashMap<>();
+        if (state.optInt("level", -1) == level && output.isFile()
+                && state.optLong("outputSize", -1) == output.length()
+                && state.optLong("outputModified", -1) == output.lastModified()) {
+            previousBlobs = readBlobs(state.optJSONObject("blobs"));
+        }
+
+        List<Input> inputs = index(output, state.optJSONObject("inputs"), msgLog);
+
+        // Later packs override earlier ones
+        TreeMap<String, Integer> winners = new TreeMap<>();
+        int overridden = 0;
+        for (int i = 0; i < inputs.size(); i++) {
+            for (String asset : inputs.get(i).assets.keySet()) {
+                if (winners.put(asset, i) != null) overridden++;
+            }
+        }
+
+        File temp = new File(dir, "." + name + ".zip." + System.nanoTime() + ".mcci-tmp");
+        Map<String, ZipWriter.Written> blobs = new HashMap<>();
+        Map<File, ZipFile> open = new HashMap<>();
+        RandomAccessFile previous = previousBlobs.isEmpty() ? null : new RandomAccessFile(output, "r");
+        int compressed = 0;
+        int reused = 0;
+        int deduplicated = 0;
+        boolean done = false;
+        try {
+            try (ZipWriter writer = new ZipWriter(temp)) {
+                writer.write(PACK_META, ZipWriter.compress(mergeMeta(inputs, msgLog).toString().getBytes(UTF8), level));
+
+                List<String> names = new ArrayList<>(winners.keySet());
+                for (int start = 0; start < names.size(); start += BATCH_SIZE) {
+                    List<String> batch = names.subList(start, Math.min(start + BATCH_SIZE, names.size()));
+
+                    // Compress the assets that aren't in either pack yet, in parallel
+                    Map<String, Integer> toCompress = new HashMap<>();
+                    List<Callable<ZipWriter.Compressed>> tasks = new ArrayList<>();
+                    List<String> taskHashes = new ArrayList<>();
+                    for (String asset : batch) {
+                        Input input = inputs.get(winners.get(asset));
+                        String sha1 = input.assets.get(asset).sha1;
+                        if (blobs.containsKey(sha1) || previousBlobs.containsKey(sha1)
+                                || toCompress.containsKey(sha1)) continue;
+                        toCompress.put(sha1, tasks.size());
+                        taskHashes.add(sha1);
+                        File source = input.pack.getSource();
+                        tasks.add(compressTask(source, source.isDirectory() ? null : zipFile(open, source), asset));
+                    }
+                    List<ZipWriter.Compressed> results = Parallel.invokeAll(tasks, Parallel.CPU_THREADS);
+
+                    for (String asset : batch) {
+                        String sha1 = inputs.get(winners.get(asset)).assets.get(asset).sha1;
+                        if (blobs.containsKey(sha1)) {
+                            writer.copy(asset, blobs.get(sha1), writer.channel());
+                            deduplicated++;
+                        } else if (previousBlobs.containsKey(sha1)) {
+                            blobs.put(sha1, writer.copy(asset, previousBlobs.get(sha1), previous.getChannel()));
+                            reused++;
+                        } else {
+                            blobs.put(sha1, writer.write(asset, results.get(toCompress.get(sha1))));
+                            compressed++;
+                        }
+                    }
+                }
+            }
+            if (previous != null) {
+                previous.close();
+                previous = null;
+            }
+            Extraction.moveIntoPlace(temp, output);
+            done = true;
+        } finally {
+            if (previous != null) previous.close();
+            for (ZipFile zf : open.values()) {
+                zf.close();
+            }
+            if (!done) Files.deleteIfExists(temp.toPath());
+        }
+
+        writeState(stateFile, output, inputs, blobs);
+        if (msgLog != null)
+            msgLog.append("Merged ").append(String.valueOf(inputs.size())).append(" packs into ")
+                    .append(output.getAbsolutePath()).append(": ")
+                    .append(String.valueOf(winners.size())).append(" assets (")
+                    .append(String.valueOf(overridden)).append(" overridden, ")
+                    .append(String.valueOf(deduplicated)).append(" duplicates), ")
+                    .append(String.valueOf(compressed)).append(" compressed, ")
+                    .append(String.valueOf(reused)).append(" reused, ")
+                    .append(String.valueOf(output.length())).append(" bytes\n");
+        return output;
+    }
+
+    /**
+     * Hash the assets of every pack that has changed since the last merge (in
+     *  parallel), and take the rest from {@code previousInputs}
+     */
+    private List<Input> index(File output, final JSONObject previousInputs, final Appendable msgLog)
+            throws IOException {
+        // The previous merged pack may be named differently (e.g. through a link)
+        File canonicalOutput = output.getCanonicalFile();
+        List<Callable<Input>> tasks = new ArrayList<>(packs.size());
+        for (final ResourcePack pack : packs) {
+            if (pack.getSource().getCanonicalFile().equals(canonicalOutput)) continue;
+            tasks.add(new Callable<Input>() {
+                @Override
+                public Input call() throws IOException {
+                    File source = pack.getSource();
+                    long size;
+                    long modified;
+                    if (source.isDirectory()) {
+                        long[] stamp = treeStamp(source);
+                        size = stamp[0];
+                        modified = stamp[1];
+                    } else {
+                        size = source.length();
+                        modified = source.lastModified();
+                    }
+                    JSONObject known = previousInputs == null ? null
+                            : previousInputs.optJSONObject(source.getAbsolutePath());
+                    if (known != null && known.optLong("size", -1) == size
+                            && known.optLong("modified", -1) == modified) {
+                        return new Input(pack, size, modified, readAssets(known.getJSONObject("assets")));
+                    }
+                    if (msgLog != null) {
+                        synchronized (msgLog) {
+                            msgLog.append("Indexing ").append(source.getName()).append('\n');
+                        }
+                    }
+                    return new Input(pack, size, modified, hashAssets(source));
+                }
+            });
+        }
+        return Parallel.invokeAll(tasks, Parallel.IO_THREADS);
+    }
+
+    /**
+     * @return The total size and the latest modification time of the files
+     *      in {@code dir}
+     */
+    private static long[] treeStamp(File dir) throws IOException {
+        final long[] stamp = new long[2];
+        Files.walkFileTree(dir.toPath(), new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                stamp[0] += attrs.size();
+                stamp[1] = Math.max(stamp[1], attrs.lastModifiedTime().toMillis());
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return stamp;
+    }
+
+    /**
+     * @return The SHA-1 and size of every asset in {@code pack}
+     */
+    private static Map<String, Asset> hashAssets(File pack) throws IOException {
+        final Map<String, Asset> assets = new HashMap<>();
+        final byte[] buffer = new byte[Extraction.BUFFER_SIZE];
+        if (pack.isDirectory()) {
+            final Path root = pack.toPath();
+            Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                    // Entry names always use '/', whatever the platform's separator
+                    String name = root.relativize(file).toString().replace(File.separatorChar, '/');
+                    if (!attrs.isRegularFile() || name.equals(PACK_META)) return FileVisitResult.CONTINUE;
+                    try (InputStream in = Files.newInputStream(file)) {
+                        assets.put(name, hash(in, buffer));
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+            return assets;
+        }
+        try (ZipFile zf = new ZipFile(pack)) {
+            for (Enumeration<? extends ZipEntry> e = zf.entries(); e.hasMoreElements();) {
+                ZipEntry entry = e.nextElement();
+                if (entry.isDirectory() || entry.getName().equals(PACK_META)) continue;
+                try (InputStream in = zf.getInputStream(entry)) {
+                    assets.put(entry.getName(), hash(in, buffer));
+                }
+            }
+        }
+        return assets;
+    }
+
+    private static Asset hash(InputStream in, byte[] buffer) throws IOException {
+        MessageDigest sha1 = Hashing.newSha1();
+        long size = 0;
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            sha1.update(buffer, 0, read);
+            size += read;
+        }
+        return new Asset(Hashing.toHex(sha1.digest()), size);
+    }
+
+    /**
+     * @return A task that reads and compresses {@code asset} from the pack at
+     *      {@code source}
+     * @param zf The pack, opened, or {@code null} if it's a directory
+     */
+    private Callable<ZipWriter.Compressed> compressTask(final File source, final ZipFile zf, final String asset) {
+        return new Callable<ZipWriter.Compressed>() {
+            @Override
+            public ZipWriter.Compressed call() throws IOException {
+                ByteArrayOutputStream data = new ByteArrayOutputStream();
+                byte[] buffer = new byte[Extraction.BUFFER_SIZE];
+                try (InputStream in = zf != null ? zf.getInputStream(zf.getEntry(asset))
+                        : new FileInputStream(new File(source, asset))) {
+                    int read;
+                    while ((read = in.read(buffer)) != -1) {
+                        data.write(buffer, 0, read);
+                    }
+                }
+                return ZipWriter.compress(data.toByteArray(), level);
+            }
+        };
+    }
+
+    /**
+     * Build the merged {@code pack.mcmeta}
+     */
+    private static JSONObject mergeMeta(List<Input> inputs, Appendable msgLog) throws IOException {
+        JSONObject languages = new JSONObject();
+        long format = -1;
+        StringBuilder description = new StringBuilder("Merged: ");
+        for (int i = 0; i < inputs.size(); i++) {
+            File source = inputs.get(i).pack.getSource();
+            JSONObject meta;
+            try {
+                meta = new JSONObject(readMeta(source));
+            } catch (JSONException | NullPointerException e) {
+                throw new IOException("Invalid " + PACK_META + " in " + source.getAbsolutePath(), e);
+            }
+
+            JSONObject pack = meta.optJSONObject("pack");
+            long packFormat = pack == null ? -1 : pack.optLong("pack_format", -1);
+            if (format != -1 && packFormat != format && msgLog != null)
+                msgLog.append("Warning: ").append(source.getName()).append(" has pack_format ")
+                        .append(String.valueOf(packFormat)).append(", not ").append(String.valueOf(format))
+                        .append('\n');
+            if (packFormat != -1) format = packFormat;
+
+            JSONObject language = meta.optJSONObject("language");
+            if (language != null) {
+                for (Object code : language.keySet()) {
+                    languages.put((String) code, language.get((String) code));
+                }
+            }
+            if (i > 0) description.append(", ");
+            description.append(source.getName());
+        }
+
+        JSONObject pack = new JSONObject();
+        pack.put("pack_format", format == -1 ? 1 : format);
+        pack.put("description", description.toString());
+        JSONObject meta = new JSONObject();
+        meta.put("pack", pack);
+        if (languages.length() > 0) meta.put("language", languages);
+        return meta;
+    }
+
+    /**
+     * @return The {@code pack.mcmeta} of the pack at {@code source} (an
+     *      archive or a directory)
+     */
+    private static String readMeta(File source) throws IOException {
+        if (source.isDirectory()) {
+            try (InputStream in = new FileInputStream(new File(source, PACK_META))) {
+                return readFully(in);
+            }
+        }
+        try (ZipFile zf = new ZipFile(source);
+             InputStream in = zf.getInputStream(zf.getEntry(PACK_META))) {
+            return readFully(in);
+        }
+    }
+
+    private static ZipFile zipFile(Map<File, ZipFile> open, File source) throws IOException {
+        ZipFile zf = open.get(source);
+        if (zf == null) {
+            zf = new ZipFile(source);
+            open.put(source, zf);
+        }
+        return zf;
+    }
+
+    private static String readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            data.write(buffer, 0, read);
+        }
+        return new String(data.toByteArray(), UTF8);
+    }
+
+    private static JSONObject readState(File stateFile) {
+        if (!stateFile.isFile()) return new JSONObject();
+        try {
+            return new JSONObject(StreamUtils.readWholeFile(stateFile).toString());
+        } catch (IOException | JSONException e) {
+            // A broken state file just means merging from scratch
+            return new JSONObject();
+        }
+    }
+
+    private void writeState(File stateFile, File output, List<Input> inputs,
+                            Map<String, ZipWriter.Written> blobs) throws IOException {
+        JSONObject inputsJson = new JSONObject();
+        for (Input input : inputs) {
+            JSONObject assets = new JSONObject();
+            for (Map.Entry<String, Asset> asset : input.assets.entrySet()) {
+                JSONObject assetJson = new JSONObject();
+                assetJson.put("sha1", asset.getValue().sha1);
+                assetJson.put("size", asset.getValue().size);
+                assets.put(asset.getKey(), assetJson);
+            }
+            JSONObject inputJson = new JSONObject();
+            inputJson.put("size", input.size);
+            inputJson.put("modified", input.modified);
+            inputJson.put("assets", assets);
+            inputsJson.put(input.pack.getSource().getAbsolutePath(), inputJson);
+        }
+        JSONObject blobsJson = new JSONObject();
+        for (Map.Entry<String, ZipWriter.Written> blob : blobs.entrySet()) {
+            ZipWriter.Written w = blob.getValue();
+            JSONObject blobJson = new JSONObject();
+            blobJson.put("method", w.method);
+            blobJson.put("crc", w.crc);
+            blobJson.put("size", w.size);
+            blobJson.put("compressedSize", w.compressedSize);
+            blobJson.put("offset", w.dataOffset);
+            blobsJson.put(blob.getKey(), blobJson);
+        }
+
+        JSONObject state = new JSONObject();
+        state.put("level", level);
+        state.put("outputSize", output.length());
+        state.put("outputModified", output.lastModified());
+        state.put("inputs", inputsJson);
+        state.put("blobs", blobsJson);
+        stateFile.getParentFile().mkdirs();
+        StreamUtils.writeToFile(state.toString(), stateFile);
+    }
+
+    private static Map<String, Asset> readAssets(JSONObject json) {
+        Map<String, Asset> assets = new HashMap<>();
+        for (Object key : json.keySet()) {
+            JSONObject asset = json.getJSONObject((String) key);
+            assets.put((String) key, new Asset(asset.getString("sha1"), asset.getLong("size")));
+        }
+        return assets;
+    }
+
+    private static Map<String, ZipWriter.Written> readBlobs(JSONObject json) {
+        Map<String, ZipWriter.Written> blobs = new HashMap<>();
+        if (json == null) return blobs;
+        for (Object key : json.keySet()) {
+            JSONObject blob = json.getJSONObject((String) key);
+            blobs.put((String) key, new ZipWriter.Written(blob.getInt("method"), blob.getLong("crc"),
+                    blob.getLong("size"), blob.getLong("compressedSize"), blob.getLong("offset")));
+        }
+        return blobs;
+    }
+}
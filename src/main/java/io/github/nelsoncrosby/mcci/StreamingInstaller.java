@@ -0,0 +1,201 @@
+package io.github.nelsoncrosby.mcci;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Installs a world or a content collection from a stream of zip data, without
+ *  ever needing the whole archive (or its central directory)
+ * <p/>
+ * Entries are read in order using their local headers (and data descriptors),
+ *  so this works on non-seekable input like a pipe, and on archives that are
+ *  too big to index up front (ZIP64, more than 65535 entries). Memory use is a
+ *  fixed copy buffer plus one small record per entry for the world's CRC index.
+ * <p/>
+ * Since the type of an archive isn't known until its last entry has been
+ *  seen, entries are written into a staging directory inside the profile's
+ *  state directory (so on the same filesystem as the profile). Once the
+ *  stream ends:
+ * <ul>
+ *     <li>if there was a top-level {@code level.dat}, the staging directory
+ *      becomes {@code saves/<name>} (a single rename for a new world, or one
+ *      rename per file over an existing one)</li>
+ *     <li>otherwise every staged {@code .zip}/{@code .jar} is detected and
+ *      installed, as {@link ContentCollection} would</li>
+ * </ul>
+ * The whole install, including nested content, is held to the current
+ *  {@link InstallLimits}; going over one removes everything staged so far.
+ * <p/>
+ * Note that {@link ZipInputStream} can't read {@code STORED} entries that use
+ *  a data descriptor; such archives have to be installed from a file.
+ */
+public class StreamingInstaller {
+    private final Profile target;
+    private final InstallBudget budget = new InstallBudget(Content.getInstallLimits());
+
+    /**
+     * @param target The profile to install into
+     */
+    public StreamingInstaller(Profile target) {
+        this.target = target;
+    }
+
+    /**
+     * Install the archive read from {@code archive}
+     * <p/>
+     * If {@code msgLog} is not null, it is used as a logging buffer.
+     *
+     * @param archive The zip data, from its first byte (not closed)
+     * @param name The archive's name without extension (the world name)
+     * @param msgLog The logging buffer to append to (or {@code null})
+     * @throws IOException Something went wrong in reading the stream or in
+     *      installing its content.
+     */
+    public void install(InputStream archive, String name, Appendable msgLog) throws IOException {
+        File stagingRoot = new File(target.getStateDir(), "staging");
+        stagingRoot.mkdirs();
+        // Not createTempDirectory: its owner-only permissions would carry over to the world
+        File staging = new File(stagingRoot, name + "-" + System.nanoTime());
+        if (!staging.mkdirs()) throw new IOException("Couldn't create " + staging.getAbsolutePath());
+
+        boolean done = false;
+        try {
+            install(archive, name, staging, msgLog);
+            done = true;
+        } finally {
+            if (!done) deleteTree(staging.toPath());
+        }
+    }
+
+    /**
+     * Stream the archive into {@code staging}, then install from there
+     */
+    private void install(InputStream archive, String name, File staging, Appendable msgLog) throws IOException {
+        boolean isWorld = false;
+        CrcIndex crcIndex = new CrcIndex(new File(target.getStateDir(), "worlds/" + name + ".crc.json"));
+        List<String> nested = new ArrayList<>();
+        long entries = 0;
+        ZipInputStream zin = new ZipInputStream(archive);
+        ZipEntry entry;
+        while ((entry = zin.getNextEntry()) != null) {
+            File entryDest = budget.entry(staging, entry);
+            if (entry.isDirectory()) {
+                entryDest.mkdirs();
+                continue;
+            }
+            if (msgLog != null)
+                msgLog.append("Extracting ").append(entry.getName()).append('\n');
+            Extraction.writeAtomically(budget.meter(zin, entry), entryDest);
+            // Only known once the entry's data (and any data descriptor) has been read
+            budget.checkRatio(entry.getName(), entry.getSize(), entry.getCompressedSize());
+            crcIndex.put(entry.getName(), entryDest, entry.getCrc());
+            entries++;
+
+            if (entry.getName().equals("level.dat")) isWorld = true;
+            if (entry.getName().endsWith(".zip") || entry.getName().endsWith(".jar")) nested.add(entry.getName());
+        }
+        if (msgLog != null)
+            msgLog.append("Read ").append(String.valueOf(entries)).append(" entries\n");
+
+        if (isWorld) {
+            File world = new File(new File(target.getGameDir(), "saves"), name).getAbsoluteFile();
+            if (msgLog != null)
+                msgLog.append("Installing world into ").append(world.getAbsolutePath()).append('\n');
+            File snapshot = WorldSnapshots.beforeInstall(target, world, msgLog);
+            moveTree(staging, world);
+            crcIndex.save();
+            WorldSnapshots.afterInstall(world, snapshot, msgLog);
+        } else {
+            installNested(staging, nested, msgLog);
+        }
+    }
+
+    /**
+     * Detect and install every staged nested archive
+     */
+    private void installNested(File staging, List<String> nested, Appendable msgLog) throws IOException {
+        Collections.sort(nested);
+        for (String name : nested) {
+            try {
+                Content content = Content.detectContentType(new File(staging, name));
+                content.setBudget(budget.nested());
+                content.install(target, msgLog);
+            } catch (Content.UnsupportedContentTypeException e) {
+                if (msgLog != null)
+                    msgLog.append(name).append(" wasn't content, ignoring").append('\n');
+            }
+        }
+        // Hard links and copies don't need the staged files any more; symlinks do
+        if (Content.getLinkStrategy() != LinkStrategy.SYMLINK) deleteTree(staging.toPath());
+    }
+
+    /**
+     * Move every file in {@code src} to the same place under {@code dest},
+     *  replacing what's there
+     */
+    private static void moveTree(File src, File dest) throws IOException {
+        if (!dest.exists()) {
+            dest.getParentFile().mkdirs();
+            try {
+                Files.move(src.toPath(), dest.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                return;
+            } catch (AtomicMoveNotSupportedException e) {
+                // Fall through to moving file by file
+            }
+        }
+
+        final Path srcRoot = src.toPath();
+        final Path destRoot = dest.toPath();
+        Files.walkFileTree(srcRoot, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                Files.createDirectories(destRoot.resolve(srcRoot.relativize(dir).toString()));
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.move(file, destRoot.resolve(srcRoot.relativize(file).toString()),
+                        StandardCopyOption.REPLACE_EXISTING);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        deleteTree(srcRoot);
+    }
+
+    /**
+     * Delete a directory and everything in it
+     */
+    static void deleteTree(Path root) throws IOException {
+        // A symlinked tree is just the link
+        if (!Files.exists(root, LinkOption.NOFOLLOW_LINKS)) return;
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                if (exc != null) throw exc;
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
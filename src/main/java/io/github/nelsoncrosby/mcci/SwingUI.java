@@ -3,6 +3,8 @@ package io.github.nelsoncrosby.mcci;
 import io.github.nelsoncrosby.swingutils.JTextAreaAppender;
 
 import javax.swing.*;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
 import javax.swing.filechooser.FileFilter;
 import javax.swing.text.DefaultCaret;
 import java.awt.*;
@@ -10,18 +12,76 @@ import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.ItemEvent;
 import java.awt.event.ItemListener;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
 import java.io.File;
 import java.io.IOException;
+import java.net.URL;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
 
 /**
  *
  */
 public class SwingUI extends JFrame {
+    /** Placeholder in the profile box while the launcher config loads */
+    private static final String LOADING_PROFILES = "Loading profiles...";
+    /** Entry in the "Copy from" box meaning "start with an empty profile" */
+    private static final String NO_CLONE_SOURCE = "(empty profile)";
+    /** How long typing has to pause for before the content is detected */
+    private static final int DETECT_DELAY_MS = 300;
+    
+    /**
+     * Detects and prepares the selected content in the background
+     */
+    private class Preparation extends SwingWorker<PreparedContent, Void> {
+        private final File file;
+        /** Cleared when the selection changes before this is used */
+        private volatile boolean wanted = true;
+        
+        Preparation(File file) {
+            this.file = file;
+        }
+        
+        @Override
+        protected PreparedContent doInBackground() throws Exception {
+            return app.prepareContent(file);
+        }
+        
+        @Override
+        protected void done() {
+            PreparedContent prepared;
+            try {
+                prepared = get();
+            } catch (ExecutionException e) {
+                if (preparation == this) {
+                    detectedLabel.setText(e.getCause() instanceof Content.UnsupportedContentTypeException
+                            ? "Not a recognized content type" : "Couldn't read: " + e.getCause().getMessage());
+                }
+                return;
+            } catch (InterruptedException | CancellationException e) {
+                return;
+            }
+            if (!wanted) {
+                prepared.discard();
+            } else if (preparation == this) {
+                detectedLabel.setText(prepared.describe());
+            }
+        }
+    }
+    
     private MCCI app;
     
     private JTextField selectedFile;
+    private JLabel detectedLabel;
     private JComboBox<String> profileBox;
     
+    /** The preparation of the selected content (or {@code null}) */
+    private Preparation preparation;
+    /** The selection {@link #preparation} is for */
+    private String preparedPath;
+    
     public SwingUI(MCCI appParam) throws HeadlessException {
         super("MCCI");
         this.app = appParam;
@@ -30,7 +90,7 @@ public class SwingUI extends JFrame {
         setLayout(new BorderLayout());
         
         JPanel form = new JPanel();
-        form.setLayout(new GridLayout(2, 3, 5, 5));
+        form.setLayout(new GridLayout(3, 3, 5, 5));
         
         form.add(new JLabel("Content file:"));
         selectedFile = new JTextField();
@@ -39,15 +99,20 @@ public class SwingUI extends JFrame {
         setSelectFileButtonAction(selectFileButton);
         form.add(selectFileButton);
         
+        form.add(new JLabel("Detected:"));
+        detectedLabel = new JLabel(" ");
+        form.add(detectedLabel);
+        form.add(new JLabel());
+        setSelectedFileChangeAction();
+        
         form.add(new JLabel("Profile:"));
         profileBox = new JComboBox<>();
-        for (String profile : app.getProfileNames()) {
-            profileBox.addItem(profile);
-        }
-        profileBox.setSelectedItem(app.selectedProfile());
-        setProfileBoxItemChangeAction(profileBox);
+        // Filled in once the launcher config has loaded (see loadProfiles)
+        profileBox.addItem(LOADING_PROFILES);
+        profileBox.setEnabled(false);
         form.add(profileBox);
-        JButton newProfileButton = new JButton("New profile...");
+        final JButton newProfileButton = new JButton("New profile...");
+        newProfileButton.setEnabled(false);
         setNewProfileButtonAction(newProfileButton);
         form.add(newProfileButton);
         
@@ -68,6 +133,148 @@ public class SwingUI extends JFrame {
         /* === WINDOW PROPERTIES === */
         setDefaultCloseOperation(WindowConstants.EXIT_ON_CLOSE);
         setLocationRelativeTo(null);
+        addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosing(WindowEvent e) {
+                discardPreparation();
+            }
+        });
+        
+        loadProfiles(newProfileButton);
+    }
+    
+    /**
+     * Fill {@link #profileBox} in the background, so that the window can show
+     *  while the launcher config is still loading
+     *
+     * @param newProfileButton Enabled once the profiles are known
+     */
+    private void loadProfiles(final JButton newProfileButton) {
+        new SwingWorker<List<String>, Void>() {
+            private String selected;
+            
+            @Override
+            protected List<String> doInBackground() {
+                List<String> names = app.getProfileNames();
+                selected = app.selectedProfile();
+                return names;
+            }
+            
+            @Override
+            protected void done() {
+                List<String> names;
+                try {
+                    names = get();
+                } catch (InterruptedException | ExecutionException e) {
+                    profileBox.removeAllItems();
+                    profileBox.addItem("Couldn't load profiles");
+                    e.printStackTrace();
+                    return;
+                }
+                profileBox.removeAllItems();
+                for (String profile : names) {
+                    profileBox.addItem(profile);
+                }
+                profileBox.setSelectedItem(selected);
+                setProfileBoxItemChangeAction(profileBox);
+                profileBox.setEnabled(true);
+                newProfileButton.setEnabled(true);
+            }
+        }.execute();
+    }
+    
+    /**
+     * Start detecting the selected content as soon as it's chosen, or once
+     *  typing pauses, so that installing it only has to place the files
+     */
+    private void setSelectedFileChangeAction() {
+        final Timer delay = new Timer(DETECT_DELAY_MS, new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                prepare(selectedFile.getText().trim());
+            }
+        });
+        delay.setRepeats(false);
+        selectedFile.getDocument().addDocumentListener(new DocumentListener() {
+            @Override
+            public void insertUpdate(DocumentEvent e) {
+                delay.restart();
+            }
+            
+            @Override
+            public void removeUpdate(DocumentEvent e) {
+                delay.restart();
+            }
+            
+            @Override
+            public void changedUpdate(DocumentEvent e) {
+                delay.restart();
+            }
+        });
+    }
+    
+    /**
+     * Start preparing the content at {@code path}, throwing away any
+     *  preparation of a previous selection
+     *
+     * @param path The selected path or URL
+     */
+    private void prepare(String path) {
+        if (path.equals(preparedPath)) return;
+        discardPreparation();
+        preparedPath = path;
+        if (path.isEmpty()) {
+            detectedLabel.setText(" ");
+        } else if (path.startsWith("http://") || path.startsWith("https://")) {
+            detectedLabel.setText("Download (detected when installed)");
+        } else if (!new File(path).exists()) {
+            detectedLabel.setText("No such file");
+        } else {
+            detectedLabel.setText("Detecting...");
+            preparation = new Preparation(new File(path));
+            preparation.execute();
+        }
+    }
+    
+    /**
+     * Throw away the current preparation, now or once it finishes
+     */
+    private void discardPreparation() {
+        Preparation old = preparation;
+        preparation = null;
+        preparedPath = null;
+        if (old == null) return;
+        old.wanted = false;
+        if (old.isDone()) {
+            try {
+                old.get().discard();
+            } catch (InterruptedException | ExecutionException | CancellationException ignored) {
+                // Nothing was prepared
+            }
+        }
+    }
+    
+    /**
+     * Take the preparation of {@code path} for installing, waiting for it to
+     *  finish if it hasn't yet
+     *
+     * @param path The selected path
+     * @return The prepared content, or {@code null} if it wasn't prepared (or
+     *      the file has changed since)
+     */
+    private PreparedContent takePreparation(String path) {
+        Preparation taken = preparation;
+        if (taken == null || !path.equals(preparedPath)) return null;
+        preparation = null;
+        preparedPath = null;
+        try {
+            PreparedContent prepared = taken.get();
+            if (prepared.isCurrent()) return prepared;
+            prepared.discard();
+        } catch (InterruptedException | ExecutionException | CancellationException ignored) {
+            // Install the usual way, which reports the problem
+        }
+        return null;
     }
     
     private void setProfileBoxItemChangeAction(JComboBox<String> profileBox) {
@@ -87,11 +294,14 @@ public class SwingUI extends JFrame {
             public void actionPerformed(ActionEvent e) {
                 JFileChooser fileChooser = new JFileChooser();
                 fileChooser.setDialogTitle("Select content");
+                // Unpacked worlds, resource packs and mods are directories
+                fileChooser.setFileSelectionMode(JFileChooser.FILES_AND_DIRECTORIES);
                 fileChooser.addChoosableFileFilter(new FileFilter() {
                     @Override
                     public boolean accept(File f) {
-                        return f.isFile() &&
-                                (f.getName().endsWith(".zip") || f.getName().endsWith(".jar"));
+                        return f.isDirectory() ||
+                                (f.getName().endsWith(".zip") || f.getName().endsWith(".jar")
+                                        || f.getName().endsWith(".json"));
                     }
 
                     @Override
@@ -101,8 +311,10 @@ public class SwingUI extends JFrame {
                 });
                 fileChooser.showOpenDialog(self);
                 File selected = fileChooser.getSelectedFile();
-                if (selected != null)
+                if (selected != null) {
                     selectedFile.setText(selected.getAbsolutePath());
+                    prepare(selected.getAbsolutePath());
+                }
             }
         });
     }
@@ -114,7 +326,7 @@ public class SwingUI extends JFrame {
                 final JFrame dialog = new JFrame("Create new profile");
                 dialog.setLayout(new BorderLayout());
                 
-                JPanel form = new JPanel(new GridLayout(2, 2));
+                JPanel form = new JPanel(new GridLayout(4, 2));
                 
                 form.add(new JLabel("Profile name:"));
                 final JTextField nameField = new JTextField();
@@ -124,6 +336,18 @@ public class SwingUI extends JFrame {
                 final JTextField dirField = new JTextField();
                 form.add(dirField);
                 
+                form.add(new JLabel("Copy from:"));
+                final JComboBox<String> cloneBox = new JComboBox<>();
+                cloneBox.addItem(NO_CLONE_SOURCE);
+                for (String profile : app.getProfileNames()) {
+                    cloneBox.addItem(profile);
+                }
+                form.add(cloneBox);
+                
+                form.add(new JLabel());
+                final JCheckBox cloneSavesBox = new JCheckBox("Copy saves");
+                form.add(cloneSavesBox);
+                
                 dialog.add(form, BorderLayout.CENTER);
                 
                 JPanel buttonPanel = new JPanel(new FlowLayout());
@@ -161,9 +385,21 @@ public class SwingUI extends JFrame {
                             file = new File(LauncherConfig.DOT_MINECRAFT, file.getPath());
                         }
                         
-                        file.mkdirs();
-                        
-                        app.newProfile(name, file);
+                        String cloneSource = (String) cloneBox.getSelectedItem();
+                        if (cloneSource == null || cloneSource.equals(NO_CLONE_SOURCE)) {
+                            file.mkdirs();
+                            app.newProfile(name, file);
+                        } else {
+                            try {
+                                app.cloneProfile(cloneSource, name, file,
+                                        cloneSavesBox.isSelected(), null);
+                            } catch (IOException ex) {
+                                JOptionPane.showMessageDialog(dialog,
+                                        "Couldn't copy " + cloneSource + ": " + ex.getMessage(),
+                                        "Error", JOptionPane.ERROR_MESSAGE);
+                                return;
+                            }
+                        }
                         app.selectProfile(name);
 
                         profileBox.removeAllItems();
@@ -200,7 +436,9 @@ public class SwingUI extends JFrame {
         installButton.addActionListener(new ActionListener() {
             @Override
             public void actionPerformed(ActionEvent event) {
-                File contentFile = new File(selectedFile.getText());
+                String selected = selectedFile.getText().trim();
+                PreparedContent prepared = takePreparation(selected);
+                detectedLabel.setText(" ");
                 final JFrame loggingDialog = new JFrame("Installing content...");
                 loggingDialog.setLayout(new BorderLayout());
                 
@@ -221,7 +459,13 @@ public class SwingUI extends JFrame {
 
                 JTextAreaAppender msgLog = new JTextAreaAppender(loggingConsole);
                 try {
-                    app.installContentToSelectedProfile(contentFile, msgLog);
+                    if (selected.startsWith("http://") || selected.startsWith("https://")) {
+                        app.installContentFromUrl(new URL(selected), msgLog);
+                    } else if (prepared != null) {
+                        app.installPrepared(prepared, msgLog);
+                    } else {
+                        app.installContentToSelectedProfile(new File(selected), msgLog);
+                    }
                 } catch (IOException e) {
                     try {
                         msgLog.append("Error: ").append(e.getMessage())
@@ -251,6 +495,7 @@ public class SwingUI extends JFrame {
         exitButton.addActionListener(new ActionListener() {
             @Override
             public void actionPerformed(ActionEvent e) {
+                discardPreparation();
                 dispose();
             }
         });
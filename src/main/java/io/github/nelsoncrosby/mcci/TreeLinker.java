@@ -0,0 +1,202 @@
+package io.github.nelsoncrosby.mcci;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+/**
+ * Mirrors a directory tree by hard-linking (or copying) every file, with the
+ *  per-file work spread over a pool of threads
+ * <p/>
+ * Directories are created while walking, so by the time a file is linked its
+ *  parent already exists; the links and copies themselves are independent
+ *  and run in batches.
+ */
+final class TreeLinker {
+    /** What to do with a single path in the tree */
+    enum Action {
+        /** Hard-link files (falling back to a copy); descend into directories */
+        LINK,
+        /** Copy files; descend into directories and copy everything inside */
+        COPY,
+        /** Leave this path (and everything under it) out */
+        SKIP
+    }
+
+    /**
+     * Decides what happens to each path in the tree
+     */
+    interface Policy {
+        /**
+         * @param relative The path relative to the root of the tree
+         * @param directory Whether the path is a directory
+         * @return What to do with it
+         */
+        Action actionFor(Path relative, boolean directory);
+    }
+
+    /** Link everything */
+    static final Policy LINK_ALL = new Policy() {
+        @Override
+        public Action actionFor(Path relative, boolean directory) {
+            return Action.LINK;
+        }
+    };
+
+    /** Copy everything */
+    static final Policy COPY_ALL = new Policy() {
+        @Override
+        public Action actionFor(Path relative, boolean directory) {
+            return Action.COPY;
+        }
+    };
+
+    /** Number of files handed to a worker at a time */
+    private static final int BATCH_SIZE = 128;
+
+    /**
+     * The outcome of mirroring a tree
+     */
+    static class Result {
+        long linked;
+        long copied;
+        long copiedBytes;
+
+        public long getLinked() {
+            return linked;
+        }
+
+        public long getCopied() {
+            return copied;
+        }
+
+        public long getCopiedBytes() {
+            return copiedBytes;
+        }
+    }
+
+    private TreeLinker() {}
+
+    /**
+     * Mirror {@code src} into {@code dest}
+     *
+     * @param src The root of the tree to mirror
+     * @param dest Where the mirror should go (created if needed; must not
+     *      already contain any of the files being mirrored)
+     * @param policy Decides what to do with each path
+     * @param threads The number of files to link/copy at once
+     * @return What was done
+     * @throws IOException Something went wrong either in walking the tree or in
+     *      creating a link or copy
+     */
+    static Result mirror(final Path src, final Path dest, final Policy policy, int threads)
+            throws IOException {
+        final List<Callable<Result>> batches = new ArrayList<>();
+        final List<Item> batch = new ArrayList<>();
+        Files.createDirectories(dest);
+        // Decided once for the whole tree rather than per file
+        final boolean sameStore = LinkStrategy.HARD_LINK.resolve(src, dest) == LinkStrategy.HARD_LINK;
+
+        Files.walkFileTree(src, new SimpleFileVisitor<Path>() {
+            /** Depth at which a COPY directory was entered (-1 if none) */
+            private int copyDepth = -1;
+            private int depth = 0;
+
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                Path relative = src.relativize(dir);
+                if (depth > 0 && copyDepth == -1) {
+                    Action action = policy.actionFor(relative, true);
+                    if (action == Action.SKIP) return FileVisitResult.SKIP_SUBTREE;
+                    if (action == Action.COPY) copyDepth = depth;
+                }
+                Files.createDirectories(dest.resolve(relative.toString()));
+                depth++;
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                if (exc != null) throw exc;
+                depth--;
+                if (depth == copyDepth) copyDepth = -1;
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                Path relative = src.relativize(file);
+                Action action = copyDepth != -1 ? Action.COPY : policy.actionFor(relative, false);
+                if (action == Action.SKIP) return FileVisitResult.CONTINUE;
+                batch.add(new Item(file, dest.resolve(relative.toString()),
+                        action == Action.COPY || !sameStore));
+                if (batch.size() >= BATCH_SIZE) {
+                    batches.add(newBatch(batch));
+                    batch.clear();
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        if (!batch.isEmpty()) batches.add(newBatch(batch));
+
+        Result total = new Result();
+        for (Result result : Parallel.invokeAll(batches, threads)) {
+            total.linked += result.linked;
+            total.copied += result.copied;
+            total.copiedBytes += result.copiedBytes;
+        }
+        return total;
+    }
+
+    /**
+     * A single file waiting to be placed
+     */
+    private static class Item {
+        final Path src;
+        final Path dest;
+        final boolean copy;
+
+        Item(Path src, Path dest, boolean copy) {
+            this.src = src;
+            this.dest = dest;
+            this.copy = copy;
+        }
+    }
+
+    /**
+     * @param items The files to place (copied, so the caller may reuse the list)
+     * @return A task placing all of {@code items}
+     */
+    private static Callable<Result> newBatch(List<Item> items) {
+        final List<Item> work = new ArrayList<>(items);
+        return new Callable<Result>() {
+            @Override
+            public Result call() throws IOException {
+                Result result = new Result();
+                for (Item item : work) {
+                    place(item.src, item.dest, item.copy, result);
+                }
+                return result;
+            }
+        };
+    }
+
+    /**
+     * Link or copy a single file
+     */
+    private static void place(Path src, Path dest, boolean copy, Result result) throws IOException {
+        LinkStrategy used = (copy ? LinkStrategy.COPY : LinkStrategy.HARD_LINK).link(src, dest, null);
+        if (used == LinkStrategy.HARD_LINK) {
+            result.linked++;
+        } else {
+            result.copied++;
+            result.copiedBytes += Files.size(dest);
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package io.github.nelsoncrosby.mcci;
+
+import io.github.nelsoncrosby.utils.StreamUtils;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+/**
+ * Remembers the {@link WorldInfo} of world archives, so a library of
+ *  thousands of maps can be listed without reading each one every time
+ * <p/>
+ * Like {@link CrcIndex}, a remembered entry is only trusted while the
+ *  archive's size and modification time are unchanged. Archives that turned
+ *  out not to be worlds are remembered too, so they aren't opened again.
+ */
+public class WorldCatalogue {
+    /**
+     * What we know about one archive
+     */
+    private static class Record {
+        final long size;
+        final long modified;
+        /** The world's metadata, or {@code null} if it isn't a world */
+        final WorldInfo info;
+
+        Record(long size, long modified, WorldInfo info) {
+            this.size = size;
+            this.modified = modified;
+            this.info = info;
+        }
+    }
+
+    /** Where the catalogue is persisted */
+    private final File cacheFile;
+    /** Records by absolute path */
+    private final Map<String, Record> records = new HashMap<>();
+    private boolean changed = false;
+
+    /**
+     * Load the catalogue stored at {@code cacheFile} (or start an empty one)
+     *
+     * @param cacheFile Where the catalogue is persisted
+     */
+    public WorldCatalogue(File cacheFile) {
+        this.cacheFile = cacheFile;
+        if (!cacheFile.isFile()) return;
+        try {
+            JSONObject json = new JSONObject(StreamUtils.readWholeFile(cacheFile).toString());
+            JSONObject entries = json.getJSONObject("entries");
+            for (Object keyObj : entries.keySet()) {
+                String path = (String) keyObj;
+                JSONObject entry = entries.getJSONObject(path);
+                JSONObject info = entry.optJSONObject("world");
+                records.put(path, new Record(entry.getLong("size"), entry.getLong("modified"),
+                        info != null ? WorldInfo.fromJSON(info) : null));
+            }
+        } catch (IOException | JSONException e) {
+            // A broken catalogue just means reading the worlds again
+            records.clear();
+        }
+    }
+
+    /**
+     * Get a world's metadata, reading it only if it isn't already known
+     * <p/>
+     * Unpacked worlds aren't remembered, as their size and modification time
+     *  don't say whether anything inside has changed.
+     *
+     * @param source A world archive, or an unpacked world
+     * @return The world's metadata, or {@code null} if {@code source} isn't a
+     *      world
+     * @throws IOException The world couldn't be read
+     */
+    public WorldInfo get(File source) throws IOException {
+        if (source.isDirectory()) return WorldInfo.readIfWorld(source);
+        String path = source.getAbsolutePath();
+        long size = source.length();
+        long modified = source.lastModified();
+        synchronized (this) {
+            Record record = records.get(path);
+            if (record != null && record.size == size && record.modified == modified) return record.info;
+        }
+
+        WorldInfo info = WorldInfo.readIfWorld(source);
+        synchronized (this) {
+            records.put(path, new Record(size, modified, info));
+            changed = true;
+        }
+        return info;
+    }
+
+    /**
+     * Get the metadata of every world in a directory (archives and unpacked
+     *  worlds), reading the ones that aren't already known in parallel
+     * <p/>
+     * Worlds that can't be read are logged and left out. The catalogue is
+     *  saved afterwards if anything new was read.
+     * <p/>
+     * If {@code msgLog} is not null, it is used as a logging buffer.
+     *
+     * @param dir The directory to list
+     * @param msgLog The logging buffer to append to (or {@code null})
+     * @return The worlds' sources and metadata, in file name order
+     * @throws IOException The catalogue couldn't be saved
+     */
+    public Map<File, WorldInfo> list(File dir, Appendable msgLog) throws IOException {
+        File[] children = dir.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File f) {
+                return f.isDirectory() || f.getName().endsWith(".zip");
+            }
+        });
+        if (children == null) throw new IOException("Can't list " + dir);
+        Arrays.sort(children);
+
+        final List<StringBuilder> logs = new ArrayList<>(children.length);
+        List<Callable<WorldInfo>> tasks = new ArrayList<>(children.length);
+        for (final File child : children) {
+            final StringBuilder log = new StringBuilder();
+            logs.add(log);
+            tasks.add(new Callable<WorldInfo>() {
+                @Override
+                public WorldInfo call() {
+                    try {
+                        return get(child);
+                    } catch (IOException e) {
+                        log.append("Couldn't read ").append(child.getPath()).append(": ")
+                                .append(e.getMessage()).append('\n');
+                        return null;
+                    }
+                }
+            });
+        }
+        List<WorldInfo> infos = Parallel.invokeAll(tasks, Parallel.IO_THREADS);
+
+        Map<File, WorldInfo> worlds = new LinkedHashMap<>();
+        for (int i = 0; i < children.length; i++) {
+            if (msgLog != null) msgLog.append(logs.get(i));
+            if (infos.get(i) != null) worlds.put(children[i], infos.get(i));
+        }
+        save();
+        return worlds;
+    }
+
+    /**
+     * Persist the catalogue, if anything has been read since it was loaded
+     *
+     * @throws IOException The catalogue couldn't be written
+     */
+    public synchronized void save() throws IOException {
+        if (!changed) return;
+        JSONObject entries = new JSONObject();
+        for (Map.Entry<String, Record> entry : records.entrySet()) {
+            JSONObject record = new JSONObject();
+            record.put("size", entry.getValue().size);
+            record.put("modified", entry.getValue().modified);
+            if (entry.getValue().info != null) record.put("world", entry.getValue().info.toJSON());
+            entries.put(entry.getKey(), record);
+        }
+        JSONObject json = new JSONObject();
+        json.put("entries", entries);
+        cacheFile.getParentFile().mkdirs();
+        StreamUtils.writeToFile(json.toString(), cacheFile);
+        changed = false;
+    }
+}
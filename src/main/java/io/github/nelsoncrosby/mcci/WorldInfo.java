@@ -0,0 +1,276 @@
+package io.github.nelsoncrosby.mcci;
+
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+
+/**
+ * What a world is, read from its {@code level.dat} without installing it
+ * <p/>
+ * For an archive, only the central directory and the compressed
+ *  {@code level.dat} entry are read (see {@link NbtReader}), so this costs
+ *  kilobytes however big the world is. The sizes come from the central
+ *  directory. For an unpacked world, the sizes come from walking the tree.
+ *
+ * @see WorldCatalogue
+ */
+public class WorldInfo {
+    private static final String LEVEL_NAME = "Data.LevelName";
+    private static final String VERSION_NAME = "Data.Version.Name";
+    private static final String DATA_VERSION = "Data.DataVersion";
+    /** Where the seed was before 1.16 */
+    private static final String RANDOM_SEED = "Data.RandomSeed";
+    /** Where the seed is since 1.16 */
+    private static final String GEN_SEED = "Data.WorldGenSettings.seed";
+    private static final String LAST_PLAYED = "Data.LastPlayed";
+    private static final String GAME_TYPE = "Data.GameType";
+    private static final String HARDCORE = "Data.hardcore";
+    private static final Set<String> PATHS = new HashSet<>(Arrays.asList(
+            LEVEL_NAME, VERSION_NAME, DATA_VERSION, RANDOM_SEED, GEN_SEED, LAST_PLAYED, GAME_TYPE, HARDCORE
+    ));
+    private static final String[] GAME_TYPES = {"Survival", "Creative", "Adventure", "Spectator"};
+
+    private final String name;
+    private final String version;
+    private final int dataVersion;
+    private final Long seed;
+    private final long lastPlayed;
+    private final int gameType;
+    private final boolean hardcore;
+    private final long size;
+    private final int files;
+
+    private WorldInfo(String name, String version, int dataVersion, Long seed, long lastPlayed, int gameType,
+                      boolean hardcore, long size, int files) {
+        this.name = name;
+        this.version = version;
+        this.dataVersion = dataVersion;
+        this.seed = seed;
+        this.lastPlayed = lastPlayed;
+        this.gameType = gameType;
+        this.hardcore = hardcore;
+        this.size = size;
+        this.files = files;
+    }
+
+    /**
+     * Read a world's metadata
+     *
+     * @param source A world archive, or an unpacked world
+     * @return The world's metadata
+     * @throws IOException The world couldn't be read, or has no
+     *      {@code level.dat}
+     */
+    public static WorldInfo read(File source) throws IOException {
+        WorldInfo info = readIfWorld(source);
+        if (info == null) throw new IOException(source + " isn't a world");
+        return info;
+    }
+
+    /**
+     * Read a world's metadata, if it is a world
+     *
+     * @param source A world archive, or an unpacked world
+     * @return The world's metadata, or {@code null} if {@code source} isn't a
+     *      zip file or has no {@code level.dat}
+     * @throws IOException The world couldn't be read
+     */
+    static WorldInfo readIfWorld(File source) throws IOException {
+        if (source.isDirectory()) {
+            File levelDat = new File(source, "level.dat");
+            if (!levelDat.isFile()) return null;
+            final long[] totals = new long[2];
+            Files.walkFileTree(source.toPath(), new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    totals[0] += attrs.size();
+                    totals[1]++;
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+            try (InputStream in = new FileInputStream(levelDat)) {
+                return fromLevelDat(in, source.getName(), totals[0], (int) totals[1]);
+            }
+        }
+
+        ZipFile zf;
+        try {
+            zf = new ZipFile(source);
+        } catch (ZipException e) {
+            return null;
+        }
+        try {
+            ZipEntry levelDat = zf.getEntry("level.dat");
+            if (levelDat == null) return null;
+            long size = 0;
+            int files = 0;
+            for (Enumeration<? extends ZipEntry> entries = zf.entries(); entries.hasMoreElements();) {
+                ZipEntry entry = entries.nextElement();
+                if (entry.isDirectory()) continue;
+                if (entry.getSize() > 0) size += entry.getSize();
+                files++;
+            }
+            String fileName = source.getName();
+            if (fileName.endsWith(".zip")) fileName = fileName.substring(0, fileName.length() - 4);
+            try (InputStream in = zf.getInputStream(levelDat)) {
+                return fromLevelDat(in, fileName, size, files);
+            }
+        } finally {
+            zf.close();
+        }
+    }
+
+    private static WorldInfo fromLevelDat(InputStream in, String fallbackName, long size, int files)
+            throws IOException {
+        Map<String, Object> values = NbtReader.read(in, PATHS);
+        Object name = values.get(LEVEL_NAME);
+        Object version = values.get(VERSION_NAME);
+        Number seed = (Number) (values.containsKey(GEN_SEED) ? values.get(GEN_SEED) : values.get(RANDOM_SEED));
+        return new WorldInfo(
+                name instanceof String ? (String) name : fallbackName,
+                version instanceof String ? (String) version : null,
+                intValue(values.get(DATA_VERSION), 0),
+                seed != null ? seed.longValue() : null,
+                values.get(LAST_PLAYED) instanceof Number ? ((Number) values.get(LAST_PLAYED)).longValue() : 0,
+                intValue(values.get(GAME_TYPE), -1),
+                intValue(values.get(HARDCORE), 0) != 0,
+                size,
+                files
+        );
+    }
+
+    private static int intValue(Object value, int otherwise) {
+        return value instanceof Number ? ((Number) value).intValue() : otherwise;
+    }
+
+    /**
+     * @return The world's name, as shown in the game (or the archive's name if
+     *      {@code level.dat} doesn't say)
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return The game version the world was last saved by, or {@code null}
+     *      if it's from before 1.9 (which didn't record it)
+     */
+    public String getVersion() {
+        return version;
+    }
+
+    /**
+     * @return The world's data version, or 0 if it's from before 1.9
+     */
+    public int getDataVersion() {
+        return dataVersion;
+    }
+
+    /**
+     * @return The world's seed, or {@code null} if it isn't recorded
+     */
+    public Long getSeed() {
+        return seed;
+    }
+
+    /**
+     * @return When the world was last played, in milliseconds since the epoch
+     *      (0 if unknown)
+     */
+    public long getLastPlayed() {
+        return lastPlayed;
+    }
+
+    /**
+     * @return The world's game mode (0 survival, 1 creative, 2 adventure, 3
+     *      spectator), or -1 if unknown
+     */
+    public int getGameType() {
+        return gameType;
+    }
+
+    public boolean isHardcore() {
+        return hardcore;
+    }
+
+    /**
+     * @return The total size of the world's files, in bytes
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * @return How many files the world has
+     */
+    public int getFiles() {
+        return files;
+    }
+
+    /**
+     * @return The metadata, for {@link WorldCatalogue}'s cache
+     */
+    JSONObject toJSON() {
+        JSONObject json = new JSONObject();
+        json.put("name", name);
+        if (version != null) json.put("version", version);
+        json.put("dataVersion", dataVersion);
+        if (seed != null) json.put("seed", seed.longValue());
+        json.put("lastPlayed", lastPlayed);
+        json.put("gameType", gameType);
+        json.put("hardcore", hardcore);
+        json.put("size", size);
+        json.put("files", files);
+        return json;
+    }
+
+    /**
+     * @param json Metadata from {@link #toJSON()}
+     * @return The metadata
+     */
+    static WorldInfo fromJSON(JSONObject json) {
+        return new WorldInfo(
+                json.getString("name"),
+                json.has("version") ? json.getString("version") : null,
+                json.getInt("dataVersion"),
+                json.has("seed") ? json.getLong("seed") : null,
+                json.getLong("lastPlayed"),
+                json.getInt("gameType"),
+                json.getBoolean("hardcore"),
+                json.getLong("size"),
+                json.getInt("files")
+        );
+    }
+
+    /**
+     * @return A one-line description, like
+     *      {@code "Skyblock (1.12.2, Survival, seed 42, 3.1 MB in 120 files)"}
+     */
+    @Override
+    public String toString() {
+        StringBuilder description = new StringBuilder(name).append(" (");
+        description.append(version != null ? version : "before 1.9");
+        if (gameType >= 0 && gameType < GAME_TYPES.length) description.append(", ").append(GAME_TYPES[gameType]);
+        if (hardcore) description.append(", hardcore");
+        if (seed != null) description.append(", seed ").append(seed);
+        description.append(", ").append(PreparedContent.formatSize(size))
+                .append(" in ").append(files).append(files == 1 ? " file)" : " files)");
+        return description.toString();
+    }
+}
@@ -0,0 +1,293 @@
+package io.github.nelsoncrosby.mcci;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+/**
+ * Snapshots of worlds, taken before an install overwrites them
+ * <p/>
+ * A snapshot hard-links every file of the world into
+ *  {@code <stateDir>/snapshots/<world>/<timestamp>}, so it only costs one
+ *  metadata operation per file. That is only safe because nothing changes the
+ *  snapshotted files in place: MCCI always writes a new file and renames it
+ *  over the old one, and deleting a file from the world leaves the snapshot's
+ *  link alone.
+ * <p/>
+ * The game, however, rewrites region files in place. After an install (or a
+ *  restore), any region file still shared with a snapshot is therefore
+ *  replaced in the world by a private copy, so playing can't change the
+ *  snapshot. This can be turned off ({@link #setDetachInPlaceFiles}) to keep
+ *  installs copy-free, if snapshots only need to last until the world is
+ *  next played.
+ * <p/>
+ * Only the newest {@link #setMaxSnapshots few} snapshots of each world (and,
+ *  optionally, only {@link #setMaxAgeMillis recent} ones) are kept.
+ */
+public class WorldSnapshots {
+    /** Snapshot directory names sort oldest first */
+    private static final String NAME_FORMAT = "yyyyMMdd-HHmmss-SSS";
+
+    private static volatile boolean enabled = true;
+    private static volatile boolean detachInPlaceFiles = true;
+    private static volatile int maxSnapshots = 5;
+    private static volatile long maxAgeMillis = Long.MAX_VALUE;
+
+    private WorldSnapshots() {}
+
+    /**
+     * @param enabled Whether worlds are snapshotted before being overwritten
+     */
+    public static void setEnabled(boolean enabled) {
+        WorldSnapshots.enabled = enabled;
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @param detach Whether files the game rewrites in place get a private
+     *      copy in the world after an install or restore (see the class docs)
+     */
+    public static void setDetachInPlaceFiles(boolean detach) {
+        detachInPlaceFiles = detach;
+    }
+
+    /**
+     * @param max How many snapshots of each world to keep
+     */
+    public static void setMaxSnapshots(int max) {
+        maxSnapshots = max;
+    }
+
+    /**
+     * @param max How old (in milliseconds) a snapshot may get before it's
+     *      deleted; the newest snapshot is always kept
+     */
+    public static void setMaxAgeMillis(long max) {
+        maxAgeMillis = max;
+    }
+
+    /**
+     * Snapshot a world that is about to be overwritten
+     * <p/>
+     * If {@code msgLog} is not null, it is used as a logging buffer.
+     *
+     * @param target The profile the world is in
+     * @param worldDir The world's directory
+     * @param msgLog The logging buffer to append to (or {@code null})
+     * @return The snapshot, or {@code null} if the world doesn't exist (or
+     *      snapshots are off)
+     * @throws IOException The snapshot couldn't be made
+     */
+    static File beforeInstall(Profile target, File worldDir, Appendable msgLog) throws IOException {
+        if (!enabled || !worldDir.isDirectory()) return null;
+        return snapshot(target, worldDir.getName(), msgLog);
+    }
+
+    /**
+     * Give the world its own copy of every file the game rewrites in place
+     *  that is still shared with {@code snapshot}
+     *
+     * @param worldDir The world's directory
+     * @param snapshot The snapshot from {@link #beforeInstall} (may be
+     *      {@code null})
+     * @param msgLog The logging buffer to append to (or {@code null})
+     * @throws IOException A file couldn't be copied
+     */
+    static void afterInstall(File worldDir, File snapshot, Appendable msgLog) throws IOException {
+        if (snapshot == null || !detachInPlaceFiles) return;
+        final Path worldRoot = worldDir.toPath();
+        final Path snapshotRoot = snapshot.toPath();
+        final List<Callable<Boolean>> tasks = new ArrayList<>();
+        Files.walkFileTree(worldRoot, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(final Path file, BasicFileAttributes attrs) throws IOException {
+                if (!isWrittenInPlace(file)) return FileVisitResult.CONTINUE;
+                Path shared = snapshotRoot.resolve(worldRoot.relativize(file).toString());
+                if (Files.exists(shared, LinkOption.NOFOLLOW_LINKS) && Files.isSameFile(file, shared)) {
+                    tasks.add(new Callable<Boolean>() {
+                        @Override
+                        public Boolean call() throws IOException {
+                            Extraction.copyAtomically(file.toFile(), file.toFile());
+                            return true;
+                        }
+                    });
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        Parallel.invokeAll(tasks, Parallel.IO_THREADS);
+        if (msgLog != null && !tasks.isEmpty())
+            msgLog.append("Copied ").append(String.valueOf(tasks.size()))
+                    .append(" region files so playing doesn't change the snapshot\n");
+    }
+
+    /**
+     * Snapshot a world now
+     * <p/>
+     * If {@code msgLog} is not null, it is used as a logging buffer.
+     *
+     * @param target The profile the world is in
+     * @param world The world's directory name in {@code saves}
+     * @param msgLog The logging buffer to append to (or {@code null})
+     * @return The snapshot
+     * @throws IOException The world doesn't exist, or the snapshot couldn't
+     *      be made
+     */
+    public static File snapshot(Profile target, String world, Appendable msgLog) throws IOException {
+        File snapshot = take(target, world, msgLog);
+        prune(target, world, null, msgLog);
+        return snapshot;
+    }
+
+    /**
+     * Snapshot a world without pruning the old snapshots (see {@link
+     *  #snapshot})
+     */
+    private static File take(Profile target, String world, Appendable msgLog) throws IOException {
+        File worldDir = worldDir(target, world);
+        if (!worldDir.isDirectory()) throw new IOException("No world " + worldDir.getAbsolutePath());
+        File snapshotsDir = snapshotsDir(target, world);
+        snapshotsDir.mkdirs();
+        String name = new SimpleDateFormat(NAME_FORMAT).format(new Date());
+        File snapshot = new File(snapshotsDir, name);
+        for (int i = 1; snapshot.exists(); i++) {
+            snapshot = new File(snapshotsDir, name + "-" + i);
+        }
+
+        // Built under a temporary name, so a half-made snapshot is never listed
+        File temp = new File(snapshotsDir, "." + snapshot.getName() + ".mcci-tmp");
+        boolean done = false;
+        try {
+            TreeLinker.Result result = TreeLinker.mirror(worldDir.toPath(), temp.toPath(),
+                    TreeLinker.LINK_ALL, Parallel.IO_THREADS);
+            Files.move(temp.toPath(), snapshot.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            done = true;
+            if (msgLog != null)
+                msgLog.append("Snapshotted ").append(world).append(" as ").append(snapshot.getName())
+                        .append(" (").append(String.valueOf(result.getLinked())).append(" linked, ")
+                        .append(String.valueOf(result.getCopied())).append(" copied)\n");
+        } finally {
+            if (!done) StreamingInstaller.deleteTree(temp.toPath());
+        }
+        return snapshot;
+    }
+
+    /**
+     * @param target The profile the world is in
+     * @param world The world's directory name in {@code saves}
+     * @return The names of the world's snapshots, newest first
+     */
+    public static List<String> list(Profile target, String world) {
+        List<String> names = new ArrayList<>();
+        String[] children = snapshotsDir(target, world).list();
+        if (children == null) return names;
+        for (String child : children) {
+            if (!child.startsWith(".")) names.add(child);
+        }
+        Collections.sort(names, Collections.reverseOrder());
+        return names;
+    }
+
+    /**
+     * Put a world back the way it was when {@code snapshotName} was taken
+     * <p/>
+     * The world as it is now is snapshotted first, so a restore can itself be
+     *  undone. The restored world is linked from the snapshot (with private
+     *  copies of files the game rewrites in place, unless that's turned off)
+     *  and swapped in for the current one.
+     * <p/>
+     * If {@code msgLog} is not null, it is used as a logging buffer.
+     *
+     * @param target The profile the world is in
+     * @param world The world's directory name in {@code saves}
+     * @param snapshotName The snapshot to restore, from {@link #list}
+     * @param msgLog The logging buffer to append to (or {@code null})
+     * @throws IOException The snapshot doesn't exist, or the world couldn't
+     *      be restored
+     */
+    public static void restore(Profile target, String world, String snapshotName, Appendable msgLog)
+            throws IOException {
+        File snapshot = new File(snapshotsDir(target, world), snapshotName);
+        if (snapshotName.contains("/") || snapshotName.contains("\\") || snapshotName.startsWith(".")
+                || !snapshot.isDirectory()) {
+            throw new IOException("No snapshot " + snapshotName + " of " + world);
+        }
+        File worldDir = worldDir(target, world);
+        // Not pruned yet, as that could delete the snapshot being restored
+        if (worldDir.isDirectory()) take(target, world, msgLog);
+
+        final boolean detach = detachInPlaceFiles;
+        File temp = new File(worldDir.getParentFile(), "." + world + "." + System.nanoTime() + ".mcci-tmp");
+        boolean done = false;
+        try {
+            TreeLinker.mirror(snapshot.toPath(), temp.toPath(), new TreeLinker.Policy() {
+                @Override
+                public TreeLinker.Action actionFor(Path relative, boolean directory) {
+                    return detach && !directory && isWrittenInPlace(relative)
+                            ? TreeLinker.Action.COPY : TreeLinker.Action.LINK;
+                }
+            }, Parallel.IO_THREADS);
+            StreamingInstaller.deleteTree(worldDir.toPath());
+            Files.move(temp.toPath(), worldDir.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            done = true;
+        } finally {
+            if (!done) StreamingInstaller.deleteTree(temp.toPath());
+        }
+        if (msgLog != null)
+            msgLog.append("Restored ").append(world).append(" from ").append(snapshotName).append('\n');
+        prune(target, world, snapshotName, msgLog);
+    }
+
+    /**
+     * Delete snapshots beyond the retention limits, oldest first
+     *
+     * @param keep A snapshot to keep regardless (or {@code null})
+     */
+    private static void prune(Profile target, String world, String keep, Appendable msgLog) throws IOException {
+        List<String> names = list(target, world);
+        File snapshotsDir = snapshotsDir(target, world);
+        long now = System.currentTimeMillis();
+        for (int i = 1; i < names.size(); i++) {
+            if (names.get(i).equals(keep)) continue;
+            File snapshot = new File(snapshotsDir, names.get(i));
+            if (i < maxSnapshots && now - snapshot.lastModified() <= maxAgeMillis) continue;
+            if (msgLog != null)
+                msgLog.append("Deleting old snapshot ").append(names.get(i)).append('\n');
+            StreamingInstaller.deleteTree(snapshot.toPath());
+        }
+    }
+
+    /**
+     * @return Whether the game changes {@code file} in place, rather than by
+     *      writing a new file and renaming it
+     */
+    static boolean isWrittenInPlace(Path file) {
+        String name = file.getFileName().toString();
+        return name.endsWith(".mca") || name.endsWith(".mcr") || name.endsWith(".mcc")
+                || name.equals("session.lock");
+    }
+
+    private static File worldDir(Profile target, String world) {
+        return new File(new File(target.getGameDir(), "saves"), world).getAbsoluteFile();
+    }
+
+    private static File snapshotsDir(Profile target, String world) {
+        return new File(target.getStateDir(), "snapshots/" + world);
+    }
+}
@@ -0,0 +1,457 @@
+package io.github.nelsoncrosby.mcci;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes a zip archive from entry data that has already been compressed
+ * <p/>
+ * Unlike {@link java.util.zip.ZipOutputStream}, the caller does the
+ *  compressing, so entries can be deflated on other threads, or copied
+ *  byte-for-byte out of an archive written earlier without being inflated and
+ *  deflated again. ZIP64 records are written when the archive needs them.
+ *  Entries get a fixed timestamp, so the same entries always make the same
+ *  archive.
+ */
+final class ZipWriter implements Closeable {
+    static final int STORED = 0;
+    static final int DEFLATED = 8;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+    /** General purpose flag: names are UTF-8 */
+    private static final int FLAG_UTF8 = 0x0800;
+    /** 1980-01-01 00:00:00, in DOS date format */
+    private static final int DOS_DATE = (1 << 5) | 1;
+
+    /**
+     * An entry's compressed data, ready to be written
+     */
+    static class Compressed {
+        final int method;
+        final long crc;
+        final long size;
+        final byte[] data;
+
+        Compressed(int method, long crc, long size, byte[] data) {
+            this.method = method;
+            this.crc = crc;
+            this.size = size;
+            this.data = data;
+        }
+    }
+
+    /**
+     * Where (and how) an entry's data was written
+     */
+    static class Written {
+        final int method;
+        final long crc;
+        final long size;
+        final long compressedSize;
+        /** The offset of the first byte of the entry's data in the archive */
+        final long dataOffset;
+
+        Written(int method, long crc, long size, long compressedSize, long dataOffset) {
+            this.method = method;
+            this.crc = crc;
+            this.size = size;
+            this.compressedSize = compressedSize;
+            this.dataOffset = dataOffset;
+        }
+    }
+
+    /**
+     * A central directory record, kept until the archive is closed
+     */
+    private static class CentralRecord {
+        final byte[] name;
+        final Written written;
+        final long headerOffset;
+
+        CentralRecord(byte[] name, Written written, long headerOffset) {
+            this.name = name;
+            this.written = written;
+            this.headerOffset = headerOffset;
+        }
+    }
+
+    /** The archive file, or {@code null} if this archive is nested in {@link #parent} */
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final List<CentralRecord> central = new ArrayList<>();
+    /** The next offset to write at, relative to {@link #base} */
+    private long position = 0;
+
+    /** The archive this one is an entry of, or {@code null} */
+    private final ZipWriter parent;
+    /** Where this archive starts in {@link #channel} */
+    private final long base;
+    /** The CRC-32 of this archive so far, if it's nested */
+    private final CRC32 nestedCrc;
+    /** The offset of this archive's local header in {@link #parent} */
+    private final long headerOffset;
+    private final byte[] name;
+    /** Whether {@link #nested} is writing, so this archive mustn't be */
+    private boolean nestedOpen = false;
+
+    /**
+     * @param dest The archive to write (replaced if it exists)
+     * @throws IOException The archive couldn't be created
+     */
+    ZipWriter(File dest) throws IOException {
+        file = new RandomAccessFile(dest, "rw");
+        file.setLength(0);
+        channel = file.getChannel();
+        parent = null;
+        base = 0;
+        nestedCrc = null;
+        headerOffset = 0;
+        name = null;
+    }
+
+    private ZipWriter(ZipWriter parent, byte[] name, long headerOffset) {
+        file = null;
+        channel = parent.channel;
+        this.parent = parent;
+        base = parent.base + parent.position;
+        nestedCrc = new CRC32();
+        this.headerOffset = headerOffset;
+        this.name = name;
+    }
+
+    /**
+     * @return The archive being written, for reading back data that's already
+     *      been written (see {@link #copy})
+     */
+    FileChannel channel() {
+        return channel;
+    }
+
+    /**
+     * Compress {@code data} as it would be stored in an archive, keeping it
+     *  uncompressed if deflating doesn't make it smaller
+     *
+     * @param data The entry's contents
+     * @param level The {@link Deflater} level (0 always stores)
+     * @return The compressed entry
+     */
+    static Compressed compress(byte[] data, int level) {
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length);
+        if (level != 0) {
+            Deflater deflater = new Deflater(level, true);
+            try {
+                deflater.setInput(data);
+                deflater.finish();
+                byte[] out = new byte[Math.max(data.length, 64)];
+                int length = 0;
+                while (!deflater.finished() && length < out.length) {
+                    length += deflater.deflate(out, length, out.length - length);
+                }
+                if (deflater.finished() && length < data.length) {
+                    byte[] deflated = new byte[length];
+                    System.arraycopy(out, 0, deflated, 0, length);
+                    return new Compressed(DEFLATED, crc.getValue(), data.length, deflated);
+                }
+            } finally {
+                deflater.end();
+            }
+        }
+        return new Compressed(STORED, crc.getValue(), data.length, data);
+    }
+
+    /**
+     * Add an entry
+     *
+     * @param name The entry's name
+     * @param entry The entry's compressed data
+     * @return Where the data was written
+     * @throws IOException The archive couldn't be written
+     */
+    Written write(String name, Compressed entry) throws IOException {
+        Written written = writeHeader(name, entry.method, entry.crc, entry.size, entry.data.length);
+        writeFully(ByteBuffer.wrap(entry.data));
+        return written;
+    }
+
+    /**
+     * Add an entry, stored uncompressed from a file
+     * <p/>
+     * In a top-level archive the file is only read once: its CRC-32 is worked
+     *  out as it's copied in, and filled in to the headers afterwards (as for
+     *  {@link #nested}). A nested archive's own CRC-32 is taken from its bytes
+     *  as they're written, so nothing in it can be filled in afterwards; there
+     *  the file is checksummed before it's written instead.
+     *
+     * @param name The entry's name
+     * @param src The entry's contents
+     * @return Where the data was written
+     * @throws IOException The file couldn't be read (or changed while it was
+     *      being stored), or the archive couldn't be written
+     */
+    Written store(String name, File src) throws IOException {
+        boolean patch = nestedCrc == null;
+        long knownCrc = patch ? 0 : CrcIndex.crc32(src);
+        try (FileChannel in = FileChannel.open(src.toPath())) {
+            long size = in.size();
+            Written placeholder = writeHeader(name, STORED, knownCrc, size, size);
+            CentralRecord record = central.get(central.size() - 1);
+            CRC32 crc = new CRC32();
+            ByteBuffer buffer = ByteBuffer.allocate(Extraction.BUFFER_SIZE);
+            long remaining = size;
+            while (remaining > 0) {
+                buffer.clear();
+                if (remaining < buffer.capacity()) buffer.limit((int) remaining);
+                int read = in.read(buffer);
+                if (read < 0) throw new IOException(src + " got shorter while storing it");
+                crc.update(buffer.array(), 0, read);
+                buffer.flip();
+                writeFully(buffer);
+                remaining -= read;
+            }
+
+            if (!patch) {
+                if (crc.getValue() != knownCrc) throw new IOException(src + " changed while storing it");
+                return placeholder;
+            }
+            ByteBuffer crcField = buffer(4);
+            crcField.putInt((int) crc.getValue());
+            write(flip(crcField), base + record.headerOffset + 14);
+            Written written = new Written(STORED, crc.getValue(), size, size, placeholder.dataOffset);
+            central.set(central.size() - 1, new CentralRecord(record.name, written, record.headerOffset));
+            return written;
+        }
+    }
+
+    /**
+     * Start an entry that is itself an archive, written in place as it's
+     *  built (stored, so it can be read like any other archive once
+     *  extracted)
+     * <p/>
+     * Nothing else may be added to this archive until the returned one is
+     *  closed. Closing it fills in the entry's header, which is why archives
+     *  can only be nested one level deep (see {@link #store}).
+     *
+     * @param name The entry's name
+     * @return The nested archive
+     * @throws IOException The archive couldn't be written
+     */
+    ZipWriter nested(String name) throws IOException {
+        checkWritable();
+        if (parent != null) throw new IllegalStateException("Archives can only be nested one level deep");
+        byte[] nameBytes = name.getBytes(UTF8);
+        long offset = position;
+        // The size isn't known yet, so always leave room for ZIP64 sizes
+        ByteBuffer header = buffer(30 + nameBytes.length + 20);
+        header.putInt(0x04034b50).putShort((short) 45).putShort((short) FLAG_UTF8)
+                .putShort((short) STORED).putShort((short) 0).putShort((short) DOS_DATE)
+                .putInt(0).putInt((int) ZIP64_MAGIC).putInt((int) ZIP64_MAGIC)
+                .putShort((short) nameBytes.length).putShort((short) 20)
+                .put(nameBytes)
+                .putShort((short) 1).putShort((short) 16).putLong(0).putLong(0);
+        writeFully(flip(header));
+        nestedOpen = true;
+        return new ZipWriter(this, nameBytes, offset);
+    }
+
+    /**
+     * Fill in the header of a {@link #nested} archive that has been closed
+     */
+    private void endNested(ZipWriter nested) throws IOException {
+        long size = nested.position;
+        long dataOffset = position;
+        position += size;
+        nestedOpen = false;
+
+        ByteBuffer crc = buffer(4);
+        crc.putInt((int) nested.nestedCrc.getValue());
+        write(flip(crc), base + nested.headerOffset + 14);
+        ByteBuffer sizes = buffer(16);
+        sizes.putLong(size).putLong(size);
+        write(flip(sizes), base + nested.headerOffset + 30 + nested.name.length + 4);
+
+        central.add(new CentralRecord(nested.name,
+                new Written(STORED, nested.nestedCrc.getValue(), size, size, dataOffset), nested.headerOffset));
+    }
+
+    /**
+     * Add an entry whose compressed data is already in another archive (or
+     *  earlier in this one), without inflating it
+     *
+     * @param name The entry's name
+     * @param from Where the data is in {@code src}
+     * @param src The archive to copy the data from
+     * @return Where the data was written
+     * @throws IOException The data couldn't be read, or the archive couldn't
+     *      be written
+     */
+    Written copy(String name, Written from, FileChannel src) throws IOException {
+        Written written = writeHeader(name, from.method, from.crc, from.size, from.compressedSize);
+        ByteBuffer buffer = ByteBuffer.allocate(Extraction.BUFFER_SIZE);
+        long offset = from.dataOffset;
+        long remaining = from.compressedSize;
+        while (remaining > 0) {
+            buffer.clear();
+            if (remaining < buffer.capacity()) buffer.limit((int) remaining);
+            int read = src.read(buffer, offset);
+            if (read < 0) throw new IOException("Unexpected end of archive copying " + name);
+            buffer.flip();
+            writeFully(buffer);
+            offset += read;
+            remaining -= read;
+        }
+        return written;
+    }
+
+    /**
+     * Write the central directory and close the archive
+     *
+     * @throws IOException The archive couldn't be written
+     */
+    @Override
+    public void close() throws IOException {
+        if (nestedOpen) throw new IllegalStateException("A nested archive is still open");
+        try {
+            long centralOffset = position;
+            for (CentralRecord record : central) {
+                writeFully(centralHeader(record));
+            }
+            long centralSize = position - centralOffset;
+            boolean zip64 = central.size() >= 0xFFFF || centralOffset >= ZIP64_MAGIC
+                    || centralSize >= ZIP64_MAGIC;
+
+            if (zip64) {
+                long endOffset = position;
+                ByteBuffer end64 = buffer(56);
+                end64.putInt(0x06064b50).putLong(44).putShort((short) 45).putShort((short) 45)
+                        .putInt(0).putInt(0).putLong(central.size()).putLong(central.size())
+                        .putLong(centralSize).putLong(centralOffset);
+                writeFully(flip(end64));
+                ByteBuffer locator = buffer(20);
+                locator.putInt(0x07064b50).putInt(0).putLong(endOffset).putInt(1);
+                writeFully(flip(locator));
+            }
+            ByteBuffer end = buffer(22);
+            int count = zip64 ? 0xFFFF : central.size();
+            end.putInt(0x06054b50).putShort((short) 0).putShort((short) 0)
+                    .putShort((short) count).putShort((short) count)
+                    .putInt((int) (zip64 ? ZIP64_MAGIC : centralSize))
+                    .putInt((int) (zip64 ? ZIP64_MAGIC : centralOffset))
+                    .putShort((short) 0);
+            writeFully(flip(end));
+        } finally {
+            if (file != null) file.close();
+        }
+        if (parent != null) parent.endNested(this);
+    }
+
+    /**
+     * Write an entry's local header
+     */
+    private Written writeHeader(String name, int method, long crc, long size, long compressedSize)
+            throws IOException {
+        checkWritable();
+        byte[] nameBytes = name.getBytes(UTF8);
+        boolean zip64 = size >= ZIP64_MAGIC || compressedSize >= ZIP64_MAGIC;
+        long headerOffset = position;
+
+        ByteBuffer header = buffer(30 + nameBytes.length + (zip64 ? 20 : 0));
+        header.putInt(0x04034b50).putShort((short) (zip64 ? 45 : 20)).putShort((short) FLAG_UTF8)
+                .putShort((short) method).putShort((short) 0).putShort((short) DOS_DATE)
+                .putInt((int) crc)
+                .putInt((int) (zip64 ? ZIP64_MAGIC : compressedSize))
+                .putInt((int) (zip64 ? ZIP64_MAGIC : size))
+                .putShort((short) nameBytes.length).putShort((short) (zip64 ? 20 : 0))
+                .put(nameBytes);
+        if (zip64) header.putShort((short) 1).putShort((short) 16).putLong(size).putLong(compressedSize);
+        writeFully(flip(header));
+
+        Written written = new Written(method, crc, size, compressedSize, position);
+        central.add(new CentralRecord(nameBytes, written, headerOffset));
+        return written;
+    }
+
+    /**
+     * @return The central directory header for {@code record}
+     */
+    private static ByteBuffer centralHeader(CentralRecord record) {
+        Written w = record.written;
+        boolean bigSize = w.size >= ZIP64_MAGIC;
+        boolean bigCompressed = w.compressedSize >= ZIP64_MAGIC;
+        boolean bigOffset = record.headerOffset >= ZIP64_MAGIC;
+        int extra = (bigSize ? 8 : 0) + (bigCompressed ? 8 : 0) + (bigOffset ? 8 : 0);
+        int extraLength = extra == 0 ? 0 : 4 + extra;
+        boolean zip64 = extra != 0;
+
+        ByteBuffer header = buffer(46 + record.name.length + extraLength);
+        header.putInt(0x02014b50).putShort((short) (zip64 ? 45 : 20)).putShort((short) (zip64 ? 45 : 20))
+                .putShort((short) FLAG_UTF8).putShort((short) w.method)
+                .putShort((short) 0).putShort((short) DOS_DATE)
+                .putInt((int) w.crc)
+                .putInt((int) (bigCompressed ? ZIP64_MAGIC : w.compressedSize))
+                .putInt((int) (bigSize ? ZIP64_MAGIC : w.size))
+                .putShort((short) record.name.length).putShort((short) extraLength).putShort((short) 0)
+                .putShort((short) 0).putShort((short) 0).putInt(0)
+                .putInt((int) (bigOffset ? ZIP64_MAGIC : record.headerOffset))
+                .put(record.name);
+        if (zip64) {
+            // Only the fields that overflowed, in this order
+            header.putShort((short) 1).putShort((short) extra);
+            if (bigSize) header.putLong(w.size);
+            if (bigCompressed) header.putLong(w.compressedSize);
+            if (bigOffset) header.putLong(record.headerOffset);
+        }
+        return flip(header);
+    }
+
+    private void checkWritable() {
+        if (nestedOpen) throw new IllegalStateException("A nested archive is still open");
+    }
+
+    private void writeFully(ByteBuffer data) throws IOException {
+        if (nestedCrc != null) {
+            ByteBuffer view = data.duplicate();
+            if (view.hasArray()) {
+                nestedCrc.update(view.array(), view.arrayOffset() + view.position(), view.remaining());
+            } else {
+                byte[] bytes = new byte[view.remaining()];
+                view.get(bytes);
+                nestedCrc.update(bytes, 0, bytes.length);
+            }
+        }
+        position += write(data, base + position);
+    }
+
+    /**
+     * Write all of {@code data} at an absolute offset in {@link #channel}
+     *
+     * @return The number of bytes written
+     */
+    private int write(ByteBuffer data, long offset) throws IOException {
+        int written = 0;
+        while (data.hasRemaining()) {
+            written += channel.write(data, offset + written);
+        }
+        return written;
+    }
+
+    private static ByteBuffer buffer(int size) {
+        return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static ByteBuffer flip(ByteBuffer buffer) {
+        buffer.flip();
+        return buffer;
+    }
+}
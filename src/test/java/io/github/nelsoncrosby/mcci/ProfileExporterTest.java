@@ -0,0 +1,161 @@
+package io.github.nelsoncrosby.mcci;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Exports a profile and reads the export back, checking every entry's CRC
+ *  (including those of the archives nested in it) and contents
+ */
+public class ProfileExporterTest {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    private File gameDir;
+    private byte[] png;
+    private byte[] region;
+
+    @Before
+    public void makeProfile() throws IOException {
+        gameDir = temp.newFolder("game");
+        Random random = new Random(1);
+
+        zip(new File(gameDir, "mods/cool.jar"),
+                "mcmod.info", "[{\"modid\":\"cool\",\"name\":\"Cool\",\"version\":\"1\"}]",
+                "cool/Cool.class", "not really a class");
+
+        // Stored (not deflated) inside the nested pack archive
+        png = new byte[20000];
+        random.nextBytes(png);
+        File pack = new File(gameDir, "resourcepacks/Loose");
+        write(new File(pack, "pack.mcmeta"), "{\"pack\":{\"pack_format\":1}}".getBytes(UTF8));
+        write(new File(pack, "assets/minecraft/textures/icon.png"), png);
+        write(new File(pack, "assets/minecraft/lang/en_US.lang"), "item.cool.name=Cool\n".getBytes(UTF8));
+
+        region = new byte[64 * 1024];
+        for (int i = 0; i < region.length; i += 7) {
+            region[i] = (byte) random.nextInt(4);
+        }
+        File world = new File(gameDir, "saves/World1");
+        write(new File(world, "level.dat"), "LEVEL".getBytes(UTF8));
+        write(new File(world, "region/r.0.0.mca"), region);
+        write(new File(world, "icon.png"), png);
+    }
+
+    @Test
+    public void exportRoundTrips() throws IOException {
+        File export = new File(temp.getRoot(), "export.zip");
+        new ProfileExporter(new Profile("test", gameDir)).export(export, null);
+
+        Map<String, byte[]> entries = readVerified(Files.readAllBytes(export.toPath()));
+        assertEquals(new HashSet<>(Arrays.asList(
+                "mods/cool.jar", "resourcepacks/Loose.zip", "saves/World1.zip")), entries.keySet());
+        assertArrayEquals(Files.readAllBytes(new File(gameDir, "mods/cool.jar").toPath()),
+                entries.get("mods/cool.jar"));
+
+        Map<String, byte[]> pack = readVerified(entries.get("resourcepacks/Loose.zip"));
+        assertArrayEquals(png, pack.get("assets/minecraft/textures/icon.png"));
+        assertEquals("item.cool.name=Cool\n",
+                new String(pack.get("assets/minecraft/lang/en_US.lang"), UTF8));
+        assertTrue(pack.containsKey("pack.mcmeta"));
+
+        Map<String, byte[]> world = readVerified(entries.get("saves/World1.zip"));
+        assertArrayEquals(region, world.get("region/r.0.0.mca"));
+        assertArrayEquals(png, world.get("icon.png"));
+        assertEquals("LEVEL", new String(world.get("level.dat"), UTF8));
+    }
+
+    /**
+     * Read every entry of an archive, failing if any entry's CRC is wrong or
+     *  the central directory doesn't list the same entries, and do the same
+     *  for every archive nested in it
+     *
+     * @return The contents of the entries, by name
+     */
+    private Map<String, byte[]> readVerified(byte[] archive) throws IOException {
+        // ZipInputStream checks each entry's CRC as it reaches the end of it
+        Map<String, byte[]> entries = new TreeMap<>();
+        try (ZipInputStream in = new ZipInputStream(new ByteArrayInputStream(archive))) {
+            ZipEntry entry;
+            while ((entry = in.getNextEntry()) != null) {
+                assertFalse("Duplicate entry " + entry.getName(), entries.containsKey(entry.getName()));
+                entries.put(entry.getName(), readFully(in));
+            }
+        }
+
+        File copy = temp.newFile();
+        write(copy, archive);
+        Set<String> listed = new HashSet<>();
+        try (ZipFile zf = new ZipFile(copy)) {
+            for (Enumeration<? extends ZipEntry> e = zf.entries(); e.hasMoreElements();) {
+                ZipEntry entry = e.nextElement();
+                listed.add(entry.getName());
+                try (InputStream in = zf.getInputStream(entry)) {
+                    assertArrayEquals(entry.getName(), entries.get(entry.getName()), readFully(in));
+                }
+            }
+        }
+        assertEquals(entries.keySet(), listed);
+
+        for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+            String name = entry.getKey();
+            if (name.endsWith(".zip") || name.endsWith(".jar")) readVerified(entry.getValue());
+        }
+        return entries;
+    }
+
+    private static void zip(File dest, String... namesAndContents) throws IOException {
+        dest.getParentFile().mkdirs();
+        try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(dest))) {
+            for (int i = 0; i < namesAndContents.length; i += 2) {
+                out.putNextEntry(new ZipEntry(namesAndContents[i]));
+                out.write(namesAndContents[i + 1].getBytes(UTF8));
+                out.closeEntry();
+            }
+        }
+    }
+
+    private static void write(File dest, byte[] data) throws IOException {
+        dest.getParentFile().mkdirs();
+        Files.write(dest.toPath(), data);
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            data.write(buffer, 0, read);
+        }
+        return data.toByteArray();
+    }
+}